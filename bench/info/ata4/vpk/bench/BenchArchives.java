@@ -0,0 +1,174 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.bench;
+
+import info.ata4.vpk.VPKPreloadPolicy;
+import info.ata4.vpk.VPKWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator for reproducible synthetic archives used by the benchmarks. The
+ * entry paths, sizes and contents only depend on the layout parameters, so
+ * generated archives are reused by later runs. They are written to the
+ * directory in the "vpk.bench.dir" system property, or to "build/bench/vpk".
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class BenchArchives {
+
+    private static final long SEED = 0x55aa1234L;
+
+    private static final String[] TYPES = {"vmt", "vtf", "txt", "mdl", "wav"};
+
+    // entries per directory, similar to the material folders of game archives
+    private static final int ENTRIES_PER_DIR = 64;
+
+    private BenchArchives() {
+    }
+
+    /**
+     * Storage of the entry data in a generated archive.
+     */
+    public enum Layout {
+
+        /**
+         * All data is stored as preload data in the directory tree.
+         */
+        PRELOAD,
+
+        /**
+         * All data is stored after the directory tree in a single file.
+         */
+        EXTERNAL,
+
+        /**
+         * All data is stored in chunk files of 1 MiB.
+         */
+        MULTI_CHUNK
+    }
+
+    /**
+     * Returns the directory for generated archives.
+     *
+     * @return archive directory
+     */
+    public static File getDirectory() {
+        return new File(System.getProperty("vpk.bench.dir", "build/bench/vpk"));
+    }
+
+    /**
+     * Returns the path of an entry in generated archives.
+     *
+     * @param index entry index
+     * @return entry path
+     */
+    public static String getPath(int index) {
+        int dir = index / ENTRIES_PER_DIR;
+        String type = TYPES[index % TYPES.length];
+        return String.format("materials/group%03d/dir%05d/file%07d.%s",
+                dir % 1000, dir, index, type);
+    }
+
+    /**
+     * Returns the paths of all entries in a generated archive.
+     *
+     * @param entries number of entries
+     * @return list of entry paths
+     */
+    public static List<String> getPaths(int entries) {
+        List<String> paths = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            paths.add(getPath(i));
+        }
+        return paths;
+    }
+
+    /**
+     * Returns a generated archive, writing it first if it doesn't exist yet.
+     *
+     * @param entries number of entries
+     * @param maxSize maximum entry data size in bytes
+     * @param layout data storage
+     * @return archive file; the "_dir" file for multi-chunk archives
+     * @throws IOException if the archive can't be written
+     */
+    public static File get(int entries, int maxSize, Layout layout) throws IOException {
+        String name = String.format("bench_%d_%d_%s", entries, maxSize,
+                layout.name().toLowerCase());
+
+        if (layout == Layout.MULTI_CHUNK) {
+            name += "_dir";
+        }
+
+        File file = new File(getDirectory(), name + ".vpk");
+
+        if (file.exists()) {
+            return file;
+        }
+
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+
+        VPKWriter writer = new VPKWriter();
+
+        if (layout == Layout.PRELOAD) {
+            writer.setPreloadPolicy(new VPKPreloadPolicy() {
+                @Override
+                public int getPreloadSize(String path, int size) {
+                    return size;
+                }
+            });
+        } else if (layout == Layout.MULTI_CHUNK) {
+            writer.setMaxChunkSize(1 << 20);
+        }
+
+        Random random = new Random(SEED);
+
+        for (int i = 0; i < entries; i++) {
+            byte[] data = new byte[1 + random.nextInt(maxSize)];
+            random.nextBytes(data);
+            writer.addData(getPath(i), ByteBuffer.wrap(data));
+        }
+
+        // write to a temporary file first, so interrupted runs don't leave
+        // incomplete archives behind
+        File tmpFile = new File(dir, "tmp_" + file.getName());
+        writer.write(tmpFile);
+
+        if (layout == Layout.MULTI_CHUNK) {
+            String tmpPrefix = "tmp_" + name.substring(0, name.length() - 3);
+            String prefix = name.substring(0, name.length() - 3);
+
+            for (File chunk : dir.listFiles()) {
+                String chunkName = chunk.getName();
+                if (chunkName.startsWith(tmpPrefix) && !chunk.equals(tmpFile)) {
+                    rename(chunk, new File(dir, prefix + chunkName.substring(tmpPrefix.length())));
+                }
+            }
+        }
+
+        rename(tmpFile, file);
+
+        return file;
+    }
+
+    private static void rename(File src, File dst) throws IOException {
+        if (!src.renameTo(dst)) {
+            throw new IOException("Can't rename " + src + " to " + dst);
+        }
+    }
+}
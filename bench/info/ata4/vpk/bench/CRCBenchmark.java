@@ -0,0 +1,76 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.bench;
+
+import info.ata4.vpk.VPKArchive;
+import info.ata4.vpk.VPKEntry;
+import info.ata4.vpk.VPKValidationReport;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the CRC32 calculation of all entries in an archive with about
+ * 128 MiB of data, sequentially and with the parallel validator.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CRCBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int maxSize;
+
+    private final VPKArchive vpk = new VPKArchive();
+    private List<VPKEntry> entries;
+
+    @Setup
+    public void setup() throws IOException {
+        // the average entry size is half of the maximum size
+        int numEntries = (int) ((256L << 20) / maxSize);
+        vpk.load(BenchArchives.get(numEntries, maxSize, BenchArchives.Layout.MULTI_CHUNK));
+        entries = vpk.getEntries();
+    }
+
+    @TearDown
+    public void tearDown() {
+        vpk.clear();
+    }
+
+    @Benchmark
+    public void calcCRC32(Blackhole bh) throws IOException {
+        for (VPKEntry entry : entries) {
+            bh.consume(entry.calcCRC32());
+        }
+    }
+
+    @Benchmark
+    public VPKValidationReport validate() throws IOException {
+        return vpk.validate();
+    }
+}
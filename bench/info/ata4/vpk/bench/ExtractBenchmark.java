@@ -0,0 +1,75 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.bench;
+
+import info.ata4.vpk.VPKArchive;
+import info.ata4.vpk.VPKExtractor;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the bulk extraction of an archive with 10k entries into a
+ * temporary directory with different numbers of threads.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExtractBenchmark {
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private final VPKArchive vpk = new VPKArchive();
+    private final VPKExtractor extractor = new VPKExtractor();
+    private File destDir;
+
+    @Setup
+    public void setup() throws IOException {
+        vpk.load(BenchArchives.get(10000, 16384, BenchArchives.Layout.MULTI_CHUNK));
+        extractor.setThreads(threads);
+        destDir = new File(BenchArchives.getDirectory(), "extract");
+    }
+
+    @Setup(Level.Iteration)
+    public void cleanDestDir() throws IOException {
+        FileUtils.deleteDirectory(destDir);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        vpk.clear();
+        FileUtils.deleteDirectory(destDir);
+    }
+
+    @Benchmark
+    public void extract() throws IOException {
+        extractor.extract(vpk.getEntries(), destDir);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.bench;
+
+import info.ata4.vpk.VPKArchive;
+import info.ata4.vpk.VPKIndexMode;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to load the directory tree of archives with 1k to 1M
+ * entries in each index mode.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"DEFAULT", "COMPACT", "LAZY"})
+    public VPKIndexMode indexMode;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = BenchArchives.get(entries, 256, BenchArchives.Layout.MULTI_CHUNK);
+    }
+
+    @Benchmark
+    public VPKArchive load() throws IOException {
+        VPKArchive vpk = new VPKArchive();
+        vpk.setIndexMode(indexMode);
+        vpk.load(file);
+        return vpk;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.bench;
+
+import info.ata4.vpk.VPKArchive;
+import info.ata4.vpk.VPKEntry;
+import info.ata4.vpk.VPKIndexMode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures entry lookups by path in random order, for existing and missing
+ * paths and for case-insensitive lookups of UTF-8 encoded paths.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LookupBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"DEFAULT", "COMPACT", "LAZY"})
+    public VPKIndexMode indexMode;
+
+    private final VPKArchive vpk = new VPKArchive();
+    private String[] paths;
+    private String[] missingPaths;
+    private ByteBuffer[] pathBuffers;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        vpk.setIndexMode(indexMode);
+        vpk.load(BenchArchives.get(entries, 256, BenchArchives.Layout.MULTI_CHUNK));
+
+        List<String> pathList = BenchArchives.getPaths(entries);
+        Collections.shuffle(pathList, new Random(entries));
+        paths = pathList.toArray(new String[pathList.size()]);
+
+        missingPaths = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            missingPaths[i] = paths[i] + "_";
+        }
+
+        pathBuffers = new ByteBuffer[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            pathBuffers[i] = ByteBuffer.wrap(paths[i].toUpperCase().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        vpk.clear();
+    }
+
+    @Benchmark
+    public VPKEntry getEntry() {
+        next = (next + 1) % paths.length;
+        return vpk.getEntry(paths[next]);
+    }
+
+    @Benchmark
+    public VPKEntry getEntryMissing() {
+        next = (next + 1) % missingPaths.length;
+        return vpk.getEntry(missingPaths[next]);
+    }
+
+    @Benchmark
+    public VPKEntry findEntryBytes() {
+        next = (next + 1) % pathBuffers.length;
+        return vpk.findEntry(pathBuffers[next]);
+    }
+}
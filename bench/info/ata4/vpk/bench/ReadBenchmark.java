@@ -0,0 +1,82 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.bench;
+
+import info.ata4.vpk.VPKArchive;
+import info.ata4.vpk.VPKEntry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures reading the data of all entries of an archive with preload data,
+ * external data in a single file or data in multiple chunk files, one entry
+ * at a time and as batch.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadBenchmark {
+
+    private static final int ENTRIES = 10000;
+
+    @Param({"PRELOAD", "EXTERNAL", "MULTI_CHUNK"})
+    public BenchArchives.Layout layout;
+
+    private final VPKArchive vpk = new VPKArchive();
+    private List<VPKEntry> entries;
+    private List<String> paths;
+
+    @Setup
+    public void setup() throws IOException {
+        vpk.load(BenchArchives.get(ENTRIES, 4096, layout));
+        entries = vpk.getEntries();
+        paths = BenchArchives.getPaths(ENTRIES);
+    }
+
+    @TearDown
+    public void tearDown() {
+        vpk.clear();
+    }
+
+    @Benchmark
+    public void getData(Blackhole bh) throws IOException {
+        for (VPKEntry entry : entries) {
+            ByteBuffer bb = entry.getData();
+            bh.consume(bb.get(bb.limit() - 1));
+        }
+    }
+
+    @Benchmark
+    public void readAll(Blackhole bh) throws IOException {
+        for (ByteBuffer bb : vpk.readAll(paths)) {
+            bh.consume(bb.get(bb.limit() - 1));
+        }
+    }
+}
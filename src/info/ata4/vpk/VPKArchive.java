@@ -12,16 +12,32 @@ package info.ata4.vpk;
 import info.ata4.io.DataInputReader;
 import info.ata4.io.util.ByteBufferUtils;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import org.apache.commons.io.FilenameUtils;
+import java.util.concurrent.Future;
 
 /**
  * VPK archive class.
+ * <p>
+ * Thread safety: once {@link #load(File)} has returned, the archive can be
+ * shared by any number of reading threads. Every load builds a new index and
+ * directory tree and publishes them only when they are complete, so readers
+ * always see either the previous or the new state. The file names, offsets
+ * and sizes of the loaded directory file are kept by the index itself, so
+ * entries and lists of the previous index still resolve against the files
+ * they were loaded from. {@link #clear()} swaps in
+ * an empty index instead of emptying the current one, so lists and entries
+ * obtained before stay valid. Lookups don't lock in the
+ * {@link VPKIndexMode#DEFAULT} and {@link VPKIndexMode#COMPACT} modes;
+ * {@link VPKIndexMode#LAZY} lookups are serialized while sections are decoded.
+ * {@link VPKEntry#getData()} can be called concurrently on all entries. Calls
+ * of {@link #load(File)} and the setters must not overlap with each other.
  * 
  * @author Nico Bergemann <barracuda415 at yahoo.de>
  */
@@ -31,15 +47,42 @@ public class VPKArchive {
     public static final int VERS_MIN = 1;
     public static final int VERS_MAX = 2;
     
-    private List<VPKEntry> entries = new ArrayList<>();
-    private Map<String, List<VPKEntry>> typeEntries = new HashMap<>();
-    private Map<String, List<VPKEntry>> dirEntries = new HashMap<>();
-    private Map<String, VPKEntry> pathEntries = new HashMap<>();
-    private int version = 1;
-    private boolean multiChunk;
+    /**
+     * Chunk index of entries that are stored in the directory file after the
+     * directory tree.
+     */
+    public static final int CHUNK_INDEX_DIR = 0x7fff;
+    
+    /**
+     * Flag in the chunk index field of the directory tree for entries with
+     * deflate-compressed data. Archives with compressed entries can't be read
+     * by other VPK tools.
+     */
+    public static final int CHUNK_FLAG_COMPRESSED = 0x8000;
+    
+    /**
+     * Default maximum number of unused bytes between two entries that are
+     * fetched with the same read in batch reads.
+     */
+    public static final int DEFAULT_READ_GAP = 32 << 10;
+    
+    private VPKIndexMode indexMode = VPKIndexMode.DEFAULT;
+    private volatile VPKIndex index = new VPKMapIndex(this, VPKLayout.EMPTY);
+    private final VPKChunkPool chunkPool = new VPKChunkPool(this);
+    private final VPKDataCache dataCache = new VPKDataCache();
+    private final VPKAsyncReader asyncReader = new VPKAsyncReader();
+    private final VPKPrefetcher prefetcher = new VPKPrefetcher(this);
+    private int readGap = DEFAULT_READ_GAP;
+    private volatile VPKMetrics metrics;
+    private volatile boolean adaptivePrefetch;
+    private volatile int version = 1;
+    private volatile boolean multiChunk;
+    private VPKIndexCache indexCache;
+    private volatile VPKDirectory root;
     
     /**
-     * Loads all entries from a VPK archive file.
+     * Loads all entries from a VPK archive file. Unless the index mode is
+     * {@link VPKIndexMode#DEFAULT}, previously loaded entries are replaced.
      * 
      * @param file VPK archive file. For multichunk archives, this must be the
      *             "_dir" index file.
@@ -47,18 +90,45 @@ public class VPKArchive {
      * @throws VPKException when a VPK file format error occured
      */
     public void load(File file) throws VPKException, IOException {
-        File baseDir = file.getParentFile();
-        String vpkName = FilenameUtils.getBaseName(file.getName());
+        load(file, true);
+    }
+    
+    /**
+     * Loads the current directory file again after its files have been
+     * updated, without clearing the archive first. Readers keep using the
+     * previous index until the new one is published. The chunk file mappings
+     * and asynchronous channels are reset before, so appended data is visible
+     * to the new index, and the data cache is cleared after. Unlike
+     * {@link #load(File)}, previously loaded entries are replaced in every
+     * index mode.
+     * 
+     * @throws IOException when the archive can't be read correctly
+     */
+    void reload() throws IOException {
+        File file = getLayout().getFile();
         
-        // it must be a multichunk VPK if it ends with _dir
-        multiChunk = vpkName.endsWith("_dir");
+        chunkPool.clear();
+        asyncReader.reset();
         
-        // strip "_dir"
-        if (multiChunk) {
-            vpkName = vpkName.substring(0, vpkName.length() - 4);
-        }
+        load(file, false);
+        
+        dataCache.clear();
+    }
+    
+    private void load(File file, boolean merge) throws VPKException, IOException {
+        long start = System.nanoTime();
+        
+        loadIndex(file, merge);
         
-        DataInputReader in = DataInputReader.newReader(ByteBufferUtils.openReadOnly(file.toPath()));
+        VPKMetrics m = metrics;
+        if (m != null) {
+            m.archiveLoaded(this, file, System.nanoTime() - start);
+        }
+    }
+    
+    private void loadIndex(File file, boolean merge) throws VPKException, IOException {
+        ByteBuffer bb = ByteBufferUtils.openReadOnly(file.toPath());
+        DataInputReader in = DataInputReader.newReader(bb);
         in.setSwap(true);
 
         int sig = in.readInt();
@@ -67,117 +137,155 @@ public class VPKArchive {
             throw new VPKException(String.format("Unknown signature: 0x%06x (expected: 0x%06x)", sig, SIGNATURE));
         }
         
-        version = in.readInt();
-        int headerSize;
-
-        switch (version) {
-            case 1:
-                headerSize = 12;
-                break;
-            case 2:
-                headerSize = 28;
-                // TODO: unknown fields
-                int v1 = in.readInt(); // footer offset
-                int v2 = in.readInt(); // always 0?
-                int v3 = in.readInt(); // footer size?
-                int v4 = in.readInt(); // always 48?
-//                System.out.printf("%d %d %d %d\n", v1, v2, v3, v4);
-                break;
-            default:
-                throw new VPKException("Unsupported version: " + version);
+        int fileVersion = in.readInt();
+        
+        if (fileVersion < VERS_MIN || fileVersion > VERS_MAX) {
+            throw new VPKException("Unsupported version: " + fileVersion);
         }
         
-        // dictionary size in v1 (something else in v2?)
-        int dictSize = in.readInt();
-
-        for (String type; !(type = in.readStringNull(1024)).isEmpty();) {
-            if (!typeEntries.containsKey(type)) {
-                typeEntries.put(type, new ArrayList<VPKEntry>());
+        int treeSize = in.readInt();
+        int headerSize;
+        int fileDataSize;
+        VPKFooter footer = null;
+        
+        if (fileVersion == 2) {
+            fileDataSize = in.readInt();
+            int archiveMD5Size = in.readInt();
+            int otherMD5Size = in.readInt();
+            int signatureSize = in.readInt();
+            
+            headerSize = (int) in.position();
+            
+            long footerOffset = (long) headerSize + treeSize + fileDataSize;
+            long footerSize = (long) archiveMD5Size + otherMD5Size + signatureSize;
+            
+            if (footerOffset + footerSize > bb.capacity()) {
+                throw new VPKException(String.format("Footer out of bounds: %d+%d (file size %d)", footerOffset, footerSize, bb.capacity()));
             }
             
-            for (String dir; !(dir = in.readStringNull(1024)).isEmpty();) {
-                // separator should always be "/"
-                dir = dir.replace('\\', '/');
+            footer = new VPKFooter(bb, (int) footerOffset, archiveMD5Size, otherMD5Size, signatureSize);
+        } else {
+            headerSize = (int) in.position();
+            fileDataSize = bb.capacity() - headerSize - treeSize;
+        }
+        
+        // the layout is published together with the new index, readers of the
+        // previous index keep resolving their entries against its layout
+        VPKLayout layout = new VPKLayout(file, fileVersion, headerSize, treeSize,
+                fileDataSize, footer);
+        
+        long dictEnd;
+        
+        // new entries are loaded into new structures that replace the current
+        // ones when complete, so readers never see a partially loaded index
+        VPKIndex newIndex;
+        VPKDirectory newRoot = null;
+        
+        switch (indexMode) {
+            case LAZY:
+                VPKLazyIndex lazyIndex = new VPKLazyIndex(this, layout, bb);
+                dictEnd = lazyIndex.skim((int) in.position());
+                newIndex = lazyIndex;
+                newRoot = lazyIndex.getRootDirectory();
+                break;
                 
-                // fix root dir
-                if (dir.equals(" ")) {
-                    dir = "";
-                }
+            case COMPACT:
+                VPKCompactIndex compactIndex = new VPKCompactIndex(this, layout);
                 
-                // add missing slash unless it's the root dir
-                if (!dir.isEmpty() && !dir.endsWith("/")) {
-                    dir += "/";
+                if (indexCache != null && indexCache.read(compactIndex, file, bb)) {
+                    publish(compactIndex, null);
+                    return;
                 }
                 
-                if (!dirEntries.containsKey(dir)) {
-                    dirEntries.put(dir, new ArrayList<VPKEntry>());
-                }
+                newIndex = compactIndex;
+                newRoot = new VPKDirectory(this, null, "");
+                dictEnd = new VPKTreeDecoder(layout, bb).decode(headerSize, newIndex, newRoot);
+                break;
                 
-                for (String name; !(name = in.readStringNull(1024)).isEmpty();) {
-                    long crc32 = in.readUnsignedInt();
-                    int preloadSize = in.readUnsignedShort();
-                    byte[] preload = new byte[preloadSize];
-                    int chunkIndex = in.readUnsignedShort();
-                    int offset = in.readInt();
-                    int size = in.readInt();
-
-                    int term = in.readUnsignedShort();
-
-                    if (term != 0xffff) {
-                        throw new VPKException("Unexpected terminator: " + term);
-                    }
-
-                    if (preload.length > 0) {
-                        in.readFully(preload);
-                    }
-                    
-                    File entryFile;
+            default:
+                newRoot = new VPKDirectory(this, null, "");
+                
+                // add the entries to a copy of the current map index
+                if (merge && index instanceof VPKMapIndex) {
+                    VPKMapIndex mapIndex = new VPKMapIndex(this, layout, (VPKMapIndex) index);
                     
-                    if (multiChunk) {
-                        String entryName = String.format("%s_%03d.vpk", vpkName, chunkIndex);
-                        entryFile = new File(baseDir, entryName);
-                    } else {
-                        entryFile = file;
-                        if (version == 1) {
-                            // offset is relative to the header/dictionary, fix it
-                            offset += headerSize + dictSize;
-                        }
-                        // TODO: how to fix offsets for v2?
+                    for (VPKEntry entry : mapIndex.getEntries()) {
+                        newRoot.getOrCreate(entry.getDir()).addEntry(entry.getDataSize());
                     }
                     
-                    VPKEntry entry = new VPKEntry(entryFile, true);
-                    entry.setType(type);
-                    entry.setName(name);
-                    entry.setDir(dir);
-                    entry.setCRC32(crc32);
-                    entry.setOffset(offset);
-                    entry.setSize(size);
-                    entry.setPreloadData(preload);
-                    
-                    entries.add(entry);
-                    typeEntries.get(type).add(entry);
-                    dirEntries.get(dir).add(entry);
-                    pathEntries.put(entry.getPath(), entry);
+                    newIndex = mapIndex;
+                } else {
+                    newIndex = new VPKMapIndex(this, layout);
                 }
-            }
+                
+                dictEnd = new VPKTreeDecoder(layout, bb).decode(headerSize, newIndex, newRoot);
         }
         
         // check the current position
-        if (version == 1) {
-            long dictSizeActual = in.position() - headerSize;
-            if (dictSize != 0 && dictSizeActual != dictSize) {
-                throw new VPKException(String.format("Incorrect dictionary size %d (expected %d)", dictSizeActual, dictSize));
-            }
+        long treeSizeActual = dictEnd - headerSize;
+        if (treeSize != 0 && treeSizeActual != treeSize) {
+            throw new VPKException(String.format("Incorrect dictionary size %d (expected %d)", treeSizeActual, treeSize));
+        }
+        
+        publish(newIndex, newRoot);
+        
+        if (indexCache != null && newIndex instanceof VPKCompactIndex) {
+            indexCache.write((VPKCompactIndex) newIndex, file, bb, (int) dictEnd);
         }
     }
     
+    /**
+     * Replaces the current index and directory tree. The version and the
+     * multi-chunk flag are taken from the layout of the new index.
+     * 
+     * @param newIndex completed index
+     * @param newRoot completed directory tree or {@code null} to build it on
+     *                demand
+     */
+    private synchronized void publish(VPKIndex newIndex, VPKDirectory newRoot) {
+        VPKLayout layout = newIndex.getLayout();
+        
+        if (layout.getFile() != null) {
+            version = layout.getVersion();
+            multiChunk = layout.isMultiChunk();
+        }
+        
+        index = newIndex;
+        root = newRoot;
+    }
+    
+    /**
+     * Converts a directory path from the directory tree to the form used by
+     * the entries.
+     * 
+     * @param dir raw directory path
+     * @return directory path with "/" separators and a trailing slash, or an
+     *         empty string for the root directory
+     */
+    static String normalizeDir(String dir) {
+        // separator should always be "/"
+        dir = dir.replace('\\', '/');
+
+        // fix root dir
+        if (dir.equals(" ")) {
+            dir = "";
+        }
+
+        // add missing slash unless it's the root dir
+        if (!dir.isEmpty() && !dir.endsWith("/")) {
+            dir += "/";
+        }
+        
+        return dir;
+    }
+    
     /**
      * Returns a list of all VPK entries.
      * 
      * @return VPK entry list
      */
     public List<VPKEntry> getEntries() {
-        return Collections.unmodifiableList(entries);
+        return index.getEntries();
     }
     
     /**
@@ -188,8 +296,7 @@ public class VPKArchive {
      * @return VPK entry list inside the given directory
      */
     public List<VPKEntry> getEntriesForDir(String dir) {
-        List<VPKEntry> result = dirEntries.get(dir);
-        return result == null ? result : Collections.unmodifiableList(result);
+        return index.getEntriesForDir(dir);
     }
     
     /**
@@ -200,8 +307,7 @@ public class VPKArchive {
      * @return VPK entry list of the given type
      */
     public List<VPKEntry> getEntriesForType(String type) {
-        List<VPKEntry> result = typeEntries.get(type);
-        return result == null ? result : Collections.unmodifiableList(result);
+        return index.getEntriesForType(type);
     }
     
     /**
@@ -212,7 +318,362 @@ public class VPKArchive {
      * @return VPK entry for this path
      */
     public VPKEntry getEntry(String path) {
-        return pathEntries.get(path);
+        return index.getEntry(path);
+    }
+    
+    /**
+     * Finds the VPK entry for the given path, ignoring the case of ASCII
+     * letters and treating "\" like "/". Unlike {@link #getEntry(String)},
+     * the path can be any character sequence, like a {@link StringBuilder} or
+     * a {@link java.nio.CharBuffer}, and no normalized copy of it is created.
+     * If several entries only differ in case, one of them is returned.
+     * 
+     * @param path full file path
+     * @return VPK entry for this path or {@code null}
+     */
+    public VPKEntry findEntry(CharSequence path) {
+        return index.findEntry(path);
+    }
+    
+    /**
+     * Finds the VPK entry for the UTF-8 encoded path in the remaining bytes of
+     * a buffer, without decoding it first. The position of the buffer isn't
+     * changed. This is useful for paths that were received from a network
+     * connection.
+     * 
+     * @param path buffer with the full file path
+     * @return VPK entry for this path or {@code null}
+     * @see #findEntry(CharSequence)
+     */
+    public VPKEntry findEntry(ByteBuffer path) {
+        return index.findEntry(path);
+    }
+    
+    /**
+     * Reads the data of an entry asynchronously.
+     * 
+     * @param path full file path
+     * @return future for the little-endian entry data, which fails with a
+     *         {@link FileNotFoundException} if there's no entry for the path
+     * @see #readAllAsync(List, Object, CompletionHandler)
+     */
+    public Future<ByteBuffer> readAsync(String path) {
+        VPKFuture<ByteBuffer> future = new VPKFuture<>();
+        readAsync(path, null, future);
+        return future;
+    }
+    
+    /**
+     * Reads the data of an entry asynchronously.
+     * 
+     * @param <A> attachment type
+     * @param path full file path
+     * @param attachment object passed to the handler
+     * @param handler completion handler for the little-endian entry data
+     * @see #readAllAsync(List, Object, CompletionHandler)
+     */
+    public <A> void readAsync(String path, A attachment,
+            final CompletionHandler<ByteBuffer, ? super A> handler) {
+        readAllAsync(Collections.singletonList(path), attachment,
+                new CompletionHandler<List<ByteBuffer>, A>() {
+            @Override
+            public void completed(List<ByteBuffer> result, A attachment) {
+                handler.completed(result.get(0), attachment);
+            }
+
+            @Override
+            public void failed(Throwable ex, A attachment) {
+                handler.failed(ex, attachment);
+            }
+        });
+    }
+    
+    /**
+     * Reads the data of multiple entries asynchronously.
+     * 
+     * @param paths full file paths
+     * @return future for the list of little-endian entry data buffers, in the
+     *         order of the paths
+     * @see #readAllAsync(List, Object, CompletionHandler)
+     */
+    public Future<List<ByteBuffer>> readAllAsync(List<String> paths) {
+        VPKFuture<List<ByteBuffer>> future = new VPKFuture<>();
+        readAllAsync(paths, null, future);
+        return future;
+    }
+    
+    /**
+     * Reads the data of multiple entries asynchronously. The data is fetched
+     * with positional reads on asynchronous channels for the chunk files, and
+     * entries with adjacent or nearby data are read together, see
+     * {@link #readAll(List)}. The handler is called once when all data has
+     * been read, or with the first error. It usually runs on a thread of the
+     * default channel thread pool and shouldn't block.
+     * <p>
+     * The channels are closed by {@link #clear()}, which makes pending reads
+     * fail.
+     * 
+     * @param <A> attachment type
+     * @param paths full file paths
+     * @param attachment object passed to the handler
+     * @param handler completion handler for the list of little-endian entry
+     *                data buffers, in the order of the paths. It fails with a
+     *                {@link FileNotFoundException} if there's no entry for one
+     *                of the paths.
+     */
+    public <A> void readAllAsync(List<String> paths, A attachment,
+            CompletionHandler<List<ByteBuffer>, ? super A> handler) {
+        List<VPKEntry> entries;
+        
+        try {
+            entries = getEntries(paths);
+        } catch (FileNotFoundException ex) {
+            handler.failed(ex, attachment);
+            return;
+        }
+        
+        asyncReader.read(entries, readGap, metrics, attachment, handler);
+    }
+    
+    /**
+     * Reads the data of multiple entries at once. The entries are sorted by
+     * chunk file and offset, and entries that are at most
+     * {@link #getReadGap()} bytes apart are fetched with a single read. The
+     * returned buffers are slices of these reads and don't depend on the chunk
+     * file mappings. This is faster than separate {@link VPKEntry#getData()}
+     * calls for many small entries, like all files a map depends on.
+     * 
+     * @param paths full file paths
+     * @return list of little-endian entry data buffers, in the order of the
+     *         paths
+     * @throws FileNotFoundException if there's no entry for one of the paths
+     * @throws IOException if a chunk file can't be read
+     */
+    public List<ByteBuffer> readAll(List<String> paths) throws IOException {
+        return new VPKReadPlan(getEntries(paths), readGap).read(metrics);
+    }
+    
+    private List<VPKEntry> getEntries(List<String> paths) throws FileNotFoundException {
+        List<VPKEntry> entries = new ArrayList<>(paths.size());
+        
+        for (String path : paths) {
+            VPKEntry entry = getEntry(path);
+            
+            if (entry == null) {
+                throw new FileNotFoundException(path);
+            }
+            
+            entries.add(entry);
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Loads the chunk file ranges of the given entries into the page cache on
+     * a background thread, so later reads of the entries don't have to wait
+     * for the disk. Nearby ranges are merged like in {@link #readAll(List)}.
+     * 
+     * @param entries entries to prefetch
+     * @return future for the number of prefetched bytes
+     */
+    public Future<Long> prefetch(Collection<VPKEntry> entries) {
+        return prefetcher.warm(entries);
+    }
+    
+    /**
+     * Prefetches all entries in a directory, like before a burst of requests
+     * for the materials of a model.
+     * 
+     * @param dir directory path
+     * @return future for the number of prefetched bytes
+     * @see #prefetch(Collection)
+     */
+    public Future<Long> prefetchDir(String dir) {
+        List<VPKEntry> entries = getEntriesForDir(dir);
+        return prefetch(entries == null ? Collections.<VPKEntry>emptyList() : entries);
+    }
+    
+    /**
+     * Prefetches all entries of a type.
+     * 
+     * @param type file extension
+     * @return future for the number of prefetched bytes
+     * @see #prefetch(Collection)
+     */
+    public Future<Long> prefetchType(String type) {
+        List<VPKEntry> entries = getEntriesForType(type);
+        return prefetch(entries == null ? Collections.<VPKEntry>emptyList() : entries);
+    }
+    
+    /**
+     * Returns whether entry accesses are recorded to prefetch related
+     * directories.
+     * 
+     * @return true if adaptive prefetching is enabled
+     */
+    public boolean isAdaptivePrefetch() {
+        return adaptivePrefetch;
+    }
+    
+    /**
+     * Enables adaptive prefetching. The directories of entries whose data is
+     * accessed are recorded. When a directory is accessed the first time in a
+     * while, all of its entries and those of the directories that usually
+     * followed it are prefetched in the background.
+     * 
+     * @param adaptivePrefetch true to enable adaptive prefetching
+     */
+    public void setAdaptivePrefetch(boolean adaptivePrefetch) {
+        this.adaptivePrefetch = adaptivePrefetch;
+    }
+    
+    /**
+     * Called before the data of an entry of this archive is accessed.
+     * 
+     * @param entry accessed entry
+     */
+    void entryAccessed(VPKEntry entry) {
+        if (adaptivePrefetch) {
+            prefetcher.accessed(entry);
+        }
+    }
+    
+    /**
+     * Returns the metrics that receive the measurements of this archive.
+     * 
+     * @return metrics or {@code null} if disabled
+     */
+    public VPKMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Sets the metrics that receive measurements of loads, chunk file
+     * mappings and reads and entry data accesses of this archive, like
+     * {@link VPKStatistics}. Measuring is disabled by default and costs
+     * nothing while disabled.
+     * 
+     * @param metrics metrics or {@code null} to disable measuring
+     */
+    public void setMetrics(VPKMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Returns the maximum number of unused bytes between two entries that are
+     * fetched with the same read by {@link #readAll(List)} and
+     * {@link #readAllAsync(List)}.
+     * 
+     * @return maximum gap in bytes
+     */
+    public int getReadGap() {
+        return readGap;
+    }
+    
+    /**
+     * Sets the maximum number of unused bytes between two entries that are
+     * fetched with the same read in batch reads. Larger gaps mean fewer reads,
+     * but more bytes that are read and dropped. A gap of 0 only merges entries
+     * whose data is directly adjacent.
+     * 
+     * @param readGap maximum gap in bytes
+     */
+    public void setReadGap(int readGap) {
+        if (readGap < 0) {
+            throw new IllegalArgumentException("Invalid read gap: " + readGap);
+        }
+        
+        this.readGap = readGap;
+    }
+    
+    /**
+     * Returns the cache for entry data buffers that can't be served directly
+     * from the chunk files, like entries with preload data.
+     * 
+     * @return data cache
+     */
+    public VPKDataCache getDataCache() {
+        return dataCache;
+    }
+    
+    /**
+     * Returns the root of the directory tree. The tree is built while loading
+     * the directory file, except for indices read from the index cache, where
+     * it is built from all entries on the first call.
+     * 
+     * @return root directory
+     */
+    public VPKDirectory getRootDirectory() {
+        VPKDirectory tree = root;
+        
+        if (tree == null) {
+            synchronized (this) {
+                tree = root;
+                
+                if (tree == null) {
+                    tree = new VPKDirectory(this, null, "");
+                    VPKDirectory node = tree;
+                    
+                    for (VPKEntry entry : index.getEntries()) {
+                        if (!entry.getDir().equals(node.getPath())) {
+                            node = tree.getOrCreate(entry.getDir());
+                        }
+                        node.addEntry(entry.getDataSize());
+                    }
+                    
+                    tree.complete();
+                    root = tree;
+                }
+            }
+        }
+        
+        return tree;
+    }
+    
+    /**
+     * Returns the directory tree node for the given directory path. If the
+     * directory doesn't exist, {@code null} will be returned.
+     * 
+     * @param dir directory path, with or without trailing slash
+     * @return directory node
+     */
+    public VPKDirectory getDirectory(String dir) {
+        return getRootDirectory().getDirectory(dir);
+    }
+    
+    /**
+     * Returns all entries whose paths match a glob pattern, like
+     * "materials/models/**.vmt". Only directories that can contain matching
+     * entries are searched.
+     * 
+     * @param glob glob pattern for the full entry path, see {@link VPKGlob}
+     * @return list of matching entries
+     */
+    public List<VPKEntry> findEntries(String glob) {
+        return getRootDirectory().findEntries(glob);
+    }
+    
+    /**
+     * Extracts all entries of this archive to a directory using a
+     * {@link VPKExtractor} with default settings.
+     * 
+     * @param destDir destination directory
+     * @throws IOException if one or more entries couldn't be extracted
+     */
+    public void extract(File destDir) throws IOException {
+        new VPKExtractor().extract(getEntries(), destDir);
+    }
+    
+    /**
+     * Validates the CRC32 checksums of all entries of this archive using a
+     * {@link VPKValidator} with default settings.
+     * 
+     * @return validation report
+     * @throws IOException if the validation was interrupted
+     */
+    public VPKValidationReport validate() throws IOException {
+        return new VPKValidator().validate(getEntries());
     }
     
     /**
@@ -224,6 +685,16 @@ public class VPKArchive {
         return version;
     }
 
+    /**
+     * Returns the footer sections of a version 2 archive.
+     * 
+     * @return VPK footer or {@code null} if the archive isn't a loaded
+     *         version 2 archive
+     */
+    public VPKFooter getFooter() {
+        return index.getLayout().getFooter();
+    }
+    
     /**
      * Sets a new version number for this VPK archive.
      * 
@@ -239,6 +710,40 @@ public class VPKArchive {
         this.version = version;
     }
     
+    /**
+     * Returns the entry index mode of this archive.
+     * 
+     * @return index mode
+     */
+    public VPKIndexMode getIndexMode() {
+        return indexMode;
+    }
+
+    /**
+     * Sets the entry index mode that is used by the next {@link #load} call.
+     * 
+     * @param indexMode new index mode
+     */
+    public void setIndexMode(VPKIndexMode indexMode) {
+        if (indexMode == null) {
+            throw new NullPointerException();
+        }
+        
+        this.indexMode = indexMode;
+    }
+    
+    /**
+     * Sets the file for the persistent index cache. If set, archives loaded in
+     * {@link VPKIndexMode#COMPACT} mode are restored from the cache as long as
+     * the directory file hasn't changed, otherwise the cache is rebuilt after
+     * loading. The cache isn't used in other index modes.
+     * 
+     * @param cacheFile index cache file or {@code null} to disable the cache
+     */
+    public void setIndexCacheFile(File cacheFile) {
+        indexCache = cacheFile == null ? null : new VPKIndexCache(cacheFile);
+    }
+    
     /**
      * Returns true if this archive is split up into multiple chunk files.
      * 
@@ -258,12 +763,59 @@ public class VPKArchive {
     }
     
     /**
-     * Clears all loaded entries from this archive instance. This won't effect any data.
+     * Clears all loaded entries from this archive instance, releases the
+     * chunk file mappings and closes the channels for asynchronous reads. This won't effect any data.
      */
     public void clear() {
-        entries.clear();
-        dirEntries.clear();
-        typeEntries.clear();
-        pathEntries.clear();
+        publish(new VPKMapIndex(this, index.getLayout()), null);
+        dataCache.clear();
+        chunkPool.clear();
+        asyncReader.close();
+        prefetcher.clear();
+    }
+    
+    /**
+     * Returns the layout of the currently loaded directory file. Callers that
+     * need several layout properties should query them from the same layout.
+     * 
+     * @return current layout
+     */
+    VPKLayout getLayout() {
+        return index.getLayout();
+    }
+    
+    /**
+     * Returns the file that contains the data for the given chunk index in
+     * the currently loaded archive.
+     * 
+     * @param chunkIndex chunk index
+     * @return chunk file
+     */
+    File getChunkFile(int chunkIndex) {
+        return index.getLayout().getChunkFile(chunkIndex);
+    }
+    
+    /**
+     * Returns the chunk file for the given chunk index of a multi-chunk
+     * archive.
+     * 
+     * @param dirFile directory file of the archive
+     * @param vpkName archive name without "_dir" and extension
+     * @param chunkIndex chunk index
+     * @return chunk file
+     */
+    static File getChunkFile(File dirFile, String vpkName, int chunkIndex) {
+        String chunkName = String.format("%s_%03d.vpk", vpkName, chunkIndex);
+        return new File(dirFile.getParentFile(), chunkName);
+    }
+    
+    /**
+     * Returns the pool of chunk file mappings shared by all entries of this
+     * archive.
+     * 
+     * @return chunk mapping pool
+     */
+    VPKChunkPool getChunkPool() {
+        return chunkPool;
     }
 }
@@ -0,0 +1,101 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.util.Arrays;
+
+/**
+ * Entry of the archive MD5 section of a version 2 VPK archive. It contains the
+ * MD5 checksum of a continuous data range inside a chunk file.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKArchiveMD5 {
+    
+    private final int chunkIndex;
+    private final int offset;
+    private final int size;
+    private final byte[] md5;
+
+    VPKArchiveMD5(int chunkIndex, int offset, int size, byte[] md5) {
+        this.chunkIndex = chunkIndex;
+        this.offset = offset;
+        this.size = size;
+        this.md5 = md5;
+    }
+
+    /**
+     * Returns the index of the chunk file that contains the data range.
+     * 
+     * @return chunk index
+     */
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    /**
+     * Returns the start offset of the data range, as stored in the archive.
+     * 
+     * @return data offset
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the size of the data range.
+     * 
+     * @return data size in bytes
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the expected MD5 checksum of the data range.
+     * 
+     * @return MD5 checksum
+     */
+    public byte[] getMD5() {
+        return md5.clone();
+    }
+    
+    byte[] getMD5Internal() {
+        return md5;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%03d:%d+%d", chunkIndex, offset, size);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 7;
+        hash = 53 * hash + chunkIndex;
+        hash = 53 * hash + offset;
+        hash = 53 * hash + size;
+        hash = 53 * hash + Arrays.hashCode(md5);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final VPKArchiveMD5 other = (VPKArchiveMD5) obj;
+        return chunkIndex == other.chunkIndex && offset == other.offset
+                && size == other.size && Arrays.equals(md5, other.md5);
+    }
+}
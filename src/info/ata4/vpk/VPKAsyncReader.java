@@ -0,0 +1,233 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads entry data with positional reads on asynchronous channels, so no
+ * thread is blocked while waiting for the disk. Each chunk file is opened only
+ * once and requests for adjacent or nearby data ranges are merged into a
+ * single read.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKAsyncReader {
+
+    private final ConcurrentMap<File, Channel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Reads the data of multiple entries. The handler is called once all
+     * reads have completed or on the first failed read, usually from a thread
+     * of the channel thread pool.
+     *
+     * @param <A> attachment type
+     * @param entries entries to read
+     * @param maxGap maximum number of unused bytes between two entries that
+     *               are read together
+     * @param metrics metrics that receive the read times or {@code null}
+     * @param attachment object passed to the handler
+     * @param handler completion handler that receives the entry buffers in the
+     *                order of the entry list
+     */
+    <A> void read(List<VPKEntry> entries, int maxGap, VPKMetrics metrics, final A attachment,
+            final CompletionHandler<List<ByteBuffer>, ? super A> handler) {
+        final VPKReadPlan plan;
+
+        try {
+            plan = new VPKReadPlan(entries, maxGap);
+        } catch (IOException ex) {
+            handler.failed(ex, attachment);
+            return;
+        }
+
+        List<VPKReadPlan.Run> runs = plan.getRuns();
+
+        if (runs.isEmpty()) {
+            handler.completed(plan.getResults(), attachment);
+            return;
+        }
+
+        final AtomicInteger pending = new AtomicInteger(runs.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        CompletionHandler<ByteBuffer, VPKReadPlan.Run> runHandler = new CompletionHandler<ByteBuffer, VPKReadPlan.Run>() {
+            @Override
+            public void completed(ByteBuffer data, VPKReadPlan.Run run) {
+                try {
+                    plan.complete(run, data);
+                } catch (IOException ex) {
+                    failed(ex, run);
+                    return;
+                }
+
+                if (pending.decrementAndGet() == 0 && !failed.get()) {
+                    handler.completed(plan.getResults(), attachment);
+                }
+            }
+
+            @Override
+            public void failed(Throwable ex, VPKReadPlan.Run run) {
+                if (failed.compareAndSet(false, true)) {
+                    handler.failed(ex, attachment);
+                }
+            }
+        };
+
+        for (VPKReadPlan.Run run : runs) {
+            if (failed.get()) {
+                break;
+            }
+
+            try {
+                readRun(acquire(run.file), run, metrics, runHandler);
+            } catch (IOException ex) {
+                runHandler.failed(ex, run);
+            }
+        }
+    }
+
+    private void readRun(final Channel channel, final VPKReadPlan.Run run,
+            final VPKMetrics metrics, final CompletionHandler<ByteBuffer, VPKReadPlan.Run> handler) {
+        final ByteBuffer data = ByteBuffer.allocateDirect(run.getSize());
+        final long start = System.nanoTime();
+
+        channel.channel.read(data, run.start, run, new CompletionHandler<Integer, VPKReadPlan.Run>() {
+            @Override
+            public void completed(Integer result, VPKReadPlan.Run run) {
+                if (result < 0) {
+                    failed(new EOFException("Unexpected end of " + run.file.getName()), run);
+                } else if (data.hasRemaining()) {
+                    // read the rest of the run
+                    channel.channel.read(data, run.start + data.position(), run, this);
+                } else {
+                    channel.release();
+
+                    if (metrics != null) {
+                        metrics.chunkRead(run.file, run.slots.size(), run.getSize(),
+                                System.nanoTime() - start);
+                    }
+
+                    data.flip();
+                    handler.completed(data, run);
+                }
+            }
+
+            @Override
+            public void failed(Throwable ex, VPKReadPlan.Run run) {
+                channel.release();
+                handler.failed(ex, run);
+            }
+        });
+    }
+
+    /**
+     * Returns the channel for a file and registers a pending read on it. The
+     * channel is opened on the first call.
+     */
+    private Channel acquire(File file) throws IOException {
+        for (;;) {
+            Channel channel = channels.get(file);
+
+            if (channel == null) {
+                channel = new Channel(AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ));
+                Channel existing = channels.putIfAbsent(file, channel);
+
+                if (existing != null) {
+                    channel.release();
+                    channel = existing;
+                }
+            }
+
+            if (channel.retain()) {
+                return channel;
+            }
+
+            // closed by a concurrent reset
+            channels.remove(file, channel);
+        }
+    }
+
+    /**
+     * Retires all open channels. Reads that are started afterwards open new
+     * channels, while pending reads complete on the old ones, which are closed
+     * once they are idle.
+     */
+    void reset() {
+        for (File file : channels.keySet()) {
+            Channel channel = channels.remove(file);
+
+            if (channel != null) {
+                channel.release();
+            }
+        }
+    }
+
+    /**
+     * Closes all open channels. Pending reads on them will fail.
+     */
+    void close() {
+        for (File file : channels.keySet()) {
+            Channel channel = channels.remove(file);
+
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reference-counted channel. The reader map holds one reference and each
+     * pending read another one.
+     */
+    private static class Channel {
+
+        private final AsynchronousFileChannel channel;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Channel(AsynchronousFileChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean retain() {
+            for (int n; (n = refs.get()) > 0;) {
+                if (refs.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // the channel is read-only, so there's nothing to lose
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pool of read-only memory mappings for the chunk files of an archive. Each
+ * chunk file is opened and mapped only once, entry data buffers are slices of
+ * these mappings. Lookups of mapped files don't lock, only mapping a new
+ * file does. The pool also keeps a shared read-only channel per chunk file for
+ * transfers that don't go through a mapping.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKChunkPool {
+
+    // maximum size of a single mapping, larger files are split into windows
+    private static final long WINDOW_SIZE = 1 << 30;
+
+    private final VPKArchive archive;
+    private final Map<File, ByteBuffer[]> chunks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<File, FileChannel> channels = new ConcurrentHashMap<>();
+
+    VPKChunkPool(VPKArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Returns the mapped windows for a chunk file. The file is mapped on the
+     * first call.
+     *
+     * @param file chunk file
+     * @return array of mapped windows
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be opened or mapped
+     */
+    private ByteBuffer[] getWindows(File file) throws IOException {
+        ByteBuffer[] windows = chunks.get(file);
+
+        if (windows == null) {
+            windows = map(file);
+        }
+
+        return windows;
+    }
+
+    private synchronized ByteBuffer[] map(File file) throws IOException {
+        ByteBuffer[] windows = chunks.get(file);
+
+        if (windows == null) {
+            long start = System.nanoTime();
+            long fileSize;
+
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                fileSize = fc.size();
+                int numWindows = (int) ((fileSize + WINDOW_SIZE - 1) / WINDOW_SIZE);
+                windows = new ByteBuffer[numWindows];
+
+                for (int i = 0; i < numWindows; i++) {
+                    long pos = i * WINDOW_SIZE;
+                    long len = Math.min(WINDOW_SIZE, fileSize - pos);
+                    windows[i] = fc.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                }
+            } catch (NoSuchFileException ex) {
+                FileNotFoundException fnfe = new FileNotFoundException(file.getPath());
+                fnfe.initCause(ex);
+                throw fnfe;
+            }
+
+            chunks.put(file, windows);
+
+            VPKMetrics metrics = archive.getMetrics();
+            if (metrics != null) {
+                metrics.chunkMapped(file, fileSize, System.nanoTime() - start);
+            }
+        }
+
+        return windows;
+    }
+
+    /**
+     * Returns a read-only slice of a chunk file without copying any data.
+     *
+     * @param file chunk file
+     * @param offset data offset in the chunk file
+     * @param size data size
+     * @return little-endian byte buffer for the given range
+     * @throws IOException if the file can't be mapped or the range is out of
+     *                     bounds
+     */
+    ByteBuffer slice(File file, long offset, int size) throws IOException {
+        ByteBuffer[] windows = getWindows(file);
+
+        int window = (int) (offset / WINDOW_SIZE);
+        int windowOffset = (int) (offset % WINDOW_SIZE);
+
+        if (window >= windows.length || windowOffset + size > windows[window].capacity()) {
+            long fileSize = (windows.length - 1) * WINDOW_SIZE;
+            if (windows.length > 0) {
+                fileSize += windows[windows.length - 1].capacity();
+            }
+
+            if (offset + size > fileSize) {
+                throw new VPKException(String.format("Data range %d+%d out of bounds in %s",
+                        offset, size, file.getName()));
+            }
+
+            // range crosses a window boundary, map it separately
+            long start = System.nanoTime();
+            ByteBuffer bb;
+
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                bb = fc.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                bb.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            VPKMetrics metrics = archive.getMetrics();
+            if (metrics != null) {
+                metrics.chunkMapped(file, size, System.nanoTime() - start);
+            }
+
+            return bb;
+        }
+
+        ByteBuffer bb = windows[window].duplicate();
+        bb.limit(windowOffset + size);
+        bb.position(windowOffset);
+        bb = bb.slice();
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+        return bb;
+    }
+
+    /**
+     * Returns the shared read-only channel for a chunk file. The channel is
+     * opened on the first call and reopened if it has been closed in the
+     * meantime. Only positional operations may be used on it, since it is
+     * shared between threads.
+     *
+     * @param file chunk file
+     * @return file channel
+     * @throws FileNotFoundException if the file doesn't exist
+     * @throws IOException if the file can't be opened
+     */
+    FileChannel channel(File file) throws IOException {
+        FileChannel fc = channels.get(file);
+
+        if (fc == null || !fc.isOpen()) {
+            fc = open(file);
+        }
+
+        return fc;
+    }
+
+    private synchronized FileChannel open(File file) throws IOException {
+        FileChannel fc = channels.get(file);
+
+        if (fc == null || !fc.isOpen()) {
+            try {
+                fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException ex) {
+                FileNotFoundException fnfe = new FileNotFoundException(file.getPath());
+                fnfe.initCause(ex);
+                throw fnfe;
+            }
+
+            channels.put(file, fc);
+        }
+
+        return fc;
+    }
+
+    /**
+     * Releases all mappings and closes the shared channels. Buffers that were
+     * handed out before remain valid.
+     */
+    void clear() {
+        chunks.clear();
+
+        for (File file : channels.keySet()) {
+            FileChannel fc = channels.remove(file);
+
+            if (fc != null) {
+                try {
+                    fc.close();
+                } catch (IOException ex) {
+                    // the channel is read-only, so there's nothing to lose
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,711 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Memory-efficient entry index. The entry fields are stored in primitive
+ * arrays, names and preload data in shared byte arrays and every type and
+ * directory string exists only once. Entries are grouped into sections, one
+ * for each type/directory pair of the directory tree. {@link VPKEntry} objects
+ * are created on request and not retained.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKCompactIndex implements VPKIndex {
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final VPKArchive archive;
+    private final VPKLayout layout;
+
+    // shared type and directory strings
+    private final List<String> types = new ArrayList<>();
+    private final List<String> dirs = new ArrayList<>();
+    private final Map<String, Integer> typeIds = new HashMap<>();
+    private final Map<String, Integer> dirIds = new HashMap<>();
+
+    // sections, the end of a section is the start of the next one
+    private int numSections;
+    private int[] sectionType;
+    private int[] sectionDir;
+    private int[] sectionStart;
+    private int[][] typeSections;
+    private int[][] dirSections;
+
+    // entry columns
+    private int numEntries;
+    private int[] crcs;
+    private char[] chunks;
+    private int[] offsets;
+    private int[] sizes;
+    private int[] preloadOffsets;
+    private char[] preloadSizes;
+    private int[] nameOffsets;
+    private byte[] names;
+    private int namesSize;
+    private byte[] preloads;
+    private int preloadsSize;
+
+    // open addressing hash table for path lookups, stores entry index + 1
+    private int[] table;
+
+    // same for normalized path lookups
+    private int[] foldTable;
+
+    VPKCompactIndex(VPKArchive archive, VPKLayout layout) {
+        this.archive = archive;
+        this.layout = layout;
+        clear();
+    }
+
+    @Override
+    public void add(String type, String dir, byte[] name, int nameLength, long crc32,
+            byte[] preload, int preloadSize, int chunkIndex, int offset, int size) {
+        int typeId = intern(type, types, typeIds);
+        int dirId = intern(dir, dirs, dirIds);
+
+        // start a new section if the type or directory has changed
+        if (numSections == 0 || sectionType[numSections - 1] != typeId
+                || sectionDir[numSections - 1] != dirId) {
+            if (numSections + 1 >= sectionStart.length) {
+                int capacity = sectionStart.length * 2;
+                sectionType = Arrays.copyOf(sectionType, capacity);
+                sectionDir = Arrays.copyOf(sectionDir, capacity);
+                sectionStart = Arrays.copyOf(sectionStart, capacity);
+            }
+
+            sectionType[numSections] = typeId;
+            sectionDir[numSections] = dirId;
+            sectionStart[numSections] = numEntries;
+            numSections++;
+        }
+
+        if (numEntries + 1 >= nameOffsets.length) {
+            int capacity = nameOffsets.length * 2;
+            crcs = Arrays.copyOf(crcs, capacity);
+            chunks = Arrays.copyOf(chunks, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            preloadOffsets = Arrays.copyOf(preloadOffsets, capacity);
+            preloadSizes = Arrays.copyOf(preloadSizes, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+        }
+
+        names = ensureCapacity(names, namesSize + nameLength);
+        System.arraycopy(name, 0, names, namesSize, nameLength);
+        namesSize += nameLength;
+
+        preloads = ensureCapacity(preloads, preloadsSize + preloadSize);
+        System.arraycopy(preload, 0, preloads, preloadsSize, preloadSize);
+
+        crcs[numEntries] = (int) crc32;
+        chunks[numEntries] = (char) chunkIndex;
+        offsets[numEntries] = offset;
+        sizes[numEntries] = size;
+        preloadOffsets[numEntries] = preloadsSize;
+        preloadSizes[numEntries] = (char) preloadSize;
+        nameOffsets[numEntries + 1] = namesSize;
+
+        preloadsSize += preloadSize;
+        numEntries++;
+    }
+
+    @Override
+    public void complete() {
+        sectionStart[numSections] = numEntries;
+
+        // trim arrays to their final size
+        sectionType = Arrays.copyOf(sectionType, numSections);
+        sectionDir = Arrays.copyOf(sectionDir, numSections);
+        sectionStart = Arrays.copyOf(sectionStart, numSections + 1);
+        crcs = Arrays.copyOf(crcs, numEntries);
+        chunks = Arrays.copyOf(chunks, numEntries);
+        offsets = Arrays.copyOf(offsets, numEntries);
+        sizes = Arrays.copyOf(sizes, numEntries);
+        preloadOffsets = Arrays.copyOf(preloadOffsets, numEntries);
+        preloadSizes = Arrays.copyOf(preloadSizes, numEntries);
+        nameOffsets = Arrays.copyOf(nameOffsets, numEntries + 1);
+        names = Arrays.copyOf(names, namesSize);
+        preloads = Arrays.copyOf(preloads, preloadsSize);
+
+        typeSections = groupSections(sectionType, types.size());
+        dirSections = groupSections(sectionDir, dirs.size());
+
+        // build path hash table with a load factor of 0.5 or less
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < numEntries * 2) {
+            capacity *= 2;
+        }
+
+        table = new int[capacity];
+        int mask = capacity - 1;
+
+        for (int s = 0; s < numSections; s++) {
+            String dir = dirs.get(sectionDir[s]);
+            String type = types.get(sectionType[s]);
+
+            // later entries replace earlier ones with the same path, like in
+            // the map index
+            for (int i = sectionStart[s]; i < sectionStart[s + 1]; i++) {
+                int slot = spread(hashPath(dir, i, type)) & mask;
+                while (table[slot] != 0 && !samePath(table[slot] - 1, s, i)) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
+            }
+        }
+
+        buildFoldTable();
+    }
+
+    /**
+     * Builds the hash table for normalized path lookups, using the same
+     * capacity as the path hash table.
+     */
+    private void buildFoldTable() {
+        foldTable = new int[table.length];
+        int mask = foldTable.length - 1;
+
+        for (int s = 0; s < numSections; s++) {
+            int dirHash = VPKPathMatcher.hash(0, dirs.get(sectionDir[s]));
+            String type = types.get(sectionType[s]);
+
+            for (int i = sectionStart[s]; i < sectionStart[s + 1]; i++) {
+                int start = nameOffsets[i];
+                int h = VPKPathMatcher.hash(dirHash, names, start, nameOffsets[i + 1] - start);
+                h = VPKPathMatcher.hash(31 * h + '.', type);
+
+                int slot = spread(h) & mask;
+                while (foldTable[slot] != 0 && !samePath(foldTable[slot] - 1, s, i)) {
+                    slot = (slot + 1) & mask;
+                }
+                foldTable[slot] = i + 1;
+            }
+        }
+    }
+
+    @Override
+    public VPKLayout getLayout() {
+        return layout;
+    }
+
+    @Override
+    public List<VPKEntry> getEntries() {
+        return new EntryList(new int[] {0}, new int[] {0, numEntries});
+    }
+
+    @Override
+    public List<VPKEntry> getEntriesForDir(String dir) {
+        Integer dirId = dirIds.get(dir);
+        return dirId == null ? null : sectionList(dirSections[dirId]);
+    }
+
+    @Override
+    public List<VPKEntry> getEntriesForType(String type) {
+        Integer typeId = typeIds.get(type);
+        return typeId == null ? null : sectionList(typeSections[typeId]);
+    }
+
+    @Override
+    public VPKEntry getEntry(String path) {
+        int mask = table.length - 1;
+
+        // String.hashCode() is cached and computed the same way as hashPath()
+        for (int slot = spread(path.hashCode()) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (matches(index, path)) {
+                return getEntry(index);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public VPKEntry findEntry(CharSequence path) {
+        int mask = foldTable.length - 1;
+
+        for (int slot = spread(VPKPathMatcher.hash(0, path)) & mask; foldTable[slot] != 0; slot = (slot + 1) & mask) {
+            int index = foldTable[slot] - 1;
+            int section = findSection(index);
+            int start = nameOffsets[index];
+
+            int pos = VPKPathMatcher.match(path, 0, dirs.get(sectionDir[section]));
+            pos = VPKPathMatcher.match(path, pos, names, start, nameOffsets[index + 1] - start);
+            pos = VPKPathMatcher.match(path, pos, ".");
+            pos = VPKPathMatcher.match(path, pos, types.get(sectionType[section]));
+
+            if (pos == path.length()) {
+                return getEntry(index);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public VPKEntry findEntry(ByteBuffer path) {
+        int mask = foldTable.length - 1;
+
+        for (int slot = spread(VPKPathMatcher.hash(path)) & mask; foldTable[slot] != 0; slot = (slot + 1) & mask) {
+            int index = foldTable[slot] - 1;
+            int section = findSection(index);
+            int start = nameOffsets[index];
+
+            int pos = VPKPathMatcher.match(path, path.position(), dirs.get(sectionDir[section]));
+            pos = VPKPathMatcher.match(path, pos, names, start, nameOffsets[index + 1] - start);
+            pos = VPKPathMatcher.match(path, pos, ".");
+            pos = VPKPathMatcher.match(path, pos, types.get(sectionType[section]));
+
+            if (pos == path.limit()) {
+                return getEntry(index);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public final void clear() {
+        types.clear();
+        dirs.clear();
+        typeIds.clear();
+        dirIds.clear();
+
+        numSections = 0;
+        sectionType = new int[INITIAL_CAPACITY];
+        sectionDir = new int[INITIAL_CAPACITY];
+        sectionStart = new int[INITIAL_CAPACITY];
+        typeSections = new int[0][];
+        dirSections = new int[0][];
+
+        numEntries = 0;
+        crcs = new int[INITIAL_CAPACITY];
+        chunks = new char[INITIAL_CAPACITY];
+        offsets = new int[INITIAL_CAPACITY];
+        sizes = new int[INITIAL_CAPACITY];
+        preloadOffsets = new int[INITIAL_CAPACITY];
+        preloadSizes = new char[INITIAL_CAPACITY];
+        nameOffsets = new int[INITIAL_CAPACITY];
+        names = new byte[INITIAL_CAPACITY];
+        namesSize = 0;
+        preloads = new byte[INITIAL_CAPACITY];
+        preloadsSize = 0;
+
+        table = new int[INITIAL_CAPACITY];
+        foldTable = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the number of bytes required by {@link #write}.
+     *
+     * @return serialized index size in bytes
+     */
+    int getSerializedSize() {
+        int size = 8 * 4;
+
+        for (String str : types) {
+            size += 4 + str.getBytes(CHARSET).length;
+        }
+
+        for (String str : dirs) {
+            size += 4 + str.getBytes(CHARSET).length;
+        }
+
+        size += (numSections * 3 + 1) * 4;
+        size += numEntries * (5 * 4 + 2 * 2) + 4;
+        size += namesSize + preloadsSize;
+        size += (table.length + foldTable.length) * 4;
+
+        return size;
+    }
+
+    /**
+     * Writes the completed index to a buffer. The columns and both hash
+     * tables are stored as plain arrays in the byte order of the buffer, so
+     * they can be read back with bulk transfers.
+     *
+     * @param bb target buffer
+     */
+    void write(ByteBuffer bb) {
+        bb.putInt(types.size());
+        bb.putInt(dirs.size());
+        bb.putInt(numSections);
+        bb.putInt(numEntries);
+        bb.putInt(namesSize);
+        bb.putInt(preloadsSize);
+        bb.putInt(table.length);
+        bb.putInt(foldTable.length);
+
+        for (String str : types) {
+            putString(bb, str);
+        }
+
+        for (String str : dirs) {
+            putString(bb, str);
+        }
+
+        putInts(bb, sectionType);
+        putInts(bb, sectionDir);
+        putInts(bb, sectionStart);
+        putInts(bb, crcs);
+        putInts(bb, offsets);
+        putInts(bb, sizes);
+        putInts(bb, preloadOffsets);
+        putInts(bb, nameOffsets);
+        putInts(bb, table);
+        putInts(bb, foldTable);
+        putChars(bb, chunks);
+        putChars(bb, preloadSizes);
+        bb.put(names);
+        bb.put(preloads);
+    }
+
+    /**
+     * Reads an index that was previously saved with {@link #write}. The
+     * columns are copied into new arrays with bulk transfers rather than used
+     * as views of the buffer. This keeps lookups on plain arrays, the same as
+     * for a decoded index, and doesn't keep the buffer alive, which is
+     * usually a mapping of a cache file that may be replaced while the
+     * archive is open.
+     *
+     * @param bb source buffer
+     * @throws BufferUnderflowException if the buffer is truncated
+     */
+    void read(ByteBuffer bb) {
+        clear();
+
+        int numTypes = bb.getInt();
+        int numDirs = bb.getInt();
+        numSections = bb.getInt();
+        numEntries = bb.getInt();
+        namesSize = bb.getInt();
+        preloadsSize = bb.getInt();
+        int tableSize = bb.getInt();
+        int foldTableSize = bb.getInt();
+
+        for (int i = 0; i < numTypes; i++) {
+            intern(getString(bb), types, typeIds);
+        }
+
+        for (int i = 0; i < numDirs; i++) {
+            intern(getString(bb), dirs, dirIds);
+        }
+
+        sectionType = getInts(bb, numSections);
+        sectionDir = getInts(bb, numSections);
+        sectionStart = getInts(bb, numSections + 1);
+        crcs = getInts(bb, numEntries);
+        offsets = getInts(bb, numEntries);
+        sizes = getInts(bb, numEntries);
+        preloadOffsets = getInts(bb, numEntries);
+        nameOffsets = getInts(bb, numEntries + 1);
+        table = getInts(bb, tableSize);
+        foldTable = getInts(bb, foldTableSize);
+        chunks = getChars(bb, numEntries);
+        preloadSizes = getChars(bb, numEntries);
+        names = new byte[namesSize];
+        bb.get(names);
+        preloads = new byte[preloadsSize];
+        bb.get(preloads);
+
+        typeSections = groupSections(sectionType, types.size());
+        dirSections = groupSections(sectionDir, dirs.size());
+    }
+
+    /**
+     * Creates a new entry object for the entry at the given index.
+     *
+     * @param index entry index
+     * @return new entry object
+     */
+    private VPKEntry getEntry(int index) {
+        int section = findSection(index);
+        int preloadOffset = preloadOffsets[index];
+
+        int chunk = chunks[index] & ~VPKArchive.CHUNK_FLAG_COMPRESSED;
+
+        VPKEntry entry = new VPKEntry(archive, layout.getChunkFile(chunk), true);
+        entry.setType(types.get(sectionType[section]));
+        entry.setName(getName(index));
+        entry.setDir(dirs.get(sectionDir[section]));
+        entry.setCRC32(crcs[index] & 0xffffffffL);
+        entry.setChunkIndex(chunk);
+        entry.setOffset(offsets[index]);
+        entry.setSize(sizes[index]);
+
+        // compressed entries keep their uncompressed size in the preload data
+        if (chunk != chunks[index]) {
+            entry.setUncompressedSize(VPKCompression.getDataSize(preloads, preloadOffset));
+        } else {
+            entry.setPreloadData(Arrays.copyOfRange(preloads, preloadOffset,
+                    preloadOffset + preloadSizes[index]));
+        }
+
+        return entry;
+    }
+
+    private String getName(int index) {
+        int start = nameOffsets[index];
+        return new String(names, start, nameOffsets[index + 1] - start, CHARSET);
+    }
+
+    private int findSection(int index) {
+        int section = Arrays.binarySearch(sectionStart, 0, numSections, index);
+        return section >= 0 ? section : -section - 2;
+    }
+
+    private boolean isAscii(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (names[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates the hash code of the full path of an entry. The result is
+     * identical to {@code entry.getPath().hashCode()}.
+     */
+    private int hashPath(String dir, int index, String type) {
+        int h = hashChars(0, dir);
+
+        int start = nameOffsets[index];
+        int end = nameOffsets[index + 1];
+
+        if (isAscii(start, end)) {
+            for (int i = start; i < end; i++) {
+                h = 31 * h + names[i];
+            }
+        } else {
+            h = hashChars(h, getName(index));
+        }
+
+        h = 31 * h + '.';
+
+        return hashChars(h, type);
+    }
+
+    /**
+     * Checks if an entry has the same path as the entry at the given index in
+     * the given section.
+     *
+     * @param other index of the other entry
+     * @param section section of the entry
+     * @param index entry index
+     * @return true if both paths are equal
+     */
+    private boolean samePath(int other, int section, int index) {
+        int otherSection = findSection(other);
+
+        if (sectionDir[otherSection] != sectionDir[section]
+                || sectionType[otherSection] != sectionType[section]) {
+            return false;
+        }
+
+        int start = nameOffsets[index];
+        int len = nameOffsets[index + 1] - start;
+        int otherStart = nameOffsets[other];
+
+        if (nameOffsets[other + 1] - otherStart != len) {
+            return false;
+        }
+
+        for (int i = 0; i < len; i++) {
+            if (names[start + i] != names[otherStart + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean matches(int index, String path) {
+        int section = findSection(index);
+        String dir = dirs.get(sectionDir[section]);
+        String type = types.get(sectionType[section]);
+
+        int start = nameOffsets[index];
+        int end = nameOffsets[index + 1];
+
+        if (!isAscii(start, end)) {
+            return path.equals(dir + getName(index) + "." + type);
+        }
+
+        int nameLength = end - start;
+        if (path.length() != dir.length() + nameLength + 1 + type.length()) {
+            return false;
+        }
+
+        if (!path.startsWith(dir) || !path.endsWith(type)) {
+            return false;
+        }
+
+        int pos = dir.length();
+        for (int i = start; i < end; i++, pos++) {
+            if (path.charAt(pos) != names[i]) {
+                return false;
+            }
+        }
+
+        return path.charAt(pos) == '.';
+    }
+
+    private List<VPKEntry> sectionList(int[] sections) {
+        int[] bounds = new int[sections.length + 1];
+        int[] starts = new int[sections.length];
+
+        for (int i = 0; i < sections.length; i++) {
+            int s = sections[i];
+            starts[i] = sectionStart[s];
+            bounds[i + 1] = bounds[i] + sectionStart[s + 1] - sectionStart[s];
+        }
+
+        return new EntryList(starts, bounds);
+    }
+
+    private static int[][] groupSections(int[] sectionIds, int numIds) {
+        int[] counts = new int[numIds];
+        for (int id : sectionIds) {
+            counts[id]++;
+        }
+
+        int[][] groups = new int[numIds][];
+        for (int i = 0; i < numIds; i++) {
+            groups[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+
+        for (int s = 0; s < sectionIds.length; s++) {
+            int id = sectionIds[s];
+            groups[id][counts[id]++] = s;
+        }
+
+        return groups;
+    }
+
+    private static int intern(String str, List<String> list, Map<String, Integer> ids) {
+        Integer id = ids.get(str);
+        if (id == null) {
+            id = list.size();
+            list.add(str);
+            ids.put(str, id);
+        }
+        return id;
+    }
+
+    private static byte[] ensureCapacity(byte[] array, int size) {
+        if (size <= array.length) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(size, array.length * 2));
+    }
+
+    private static void putString(ByteBuffer bb, String str) {
+        byte[] raw = str.getBytes(CHARSET);
+        bb.putInt(raw.length);
+        bb.put(raw);
+    }
+
+    private static String getString(ByteBuffer bb) {
+        byte[] raw = new byte[bb.getInt()];
+        bb.get(raw);
+        return new String(raw, CHARSET);
+    }
+
+    private static void putInts(ByteBuffer bb, int[] array) {
+        bb.asIntBuffer().put(array);
+        bb.position(bb.position() + array.length * 4);
+    }
+
+    private static int[] getInts(ByteBuffer bb, int length) {
+        int[] array = new int[length];
+        bb.asIntBuffer().get(array);
+        bb.position(bb.position() + length * 4);
+        return array;
+    }
+
+    private static void putChars(ByteBuffer bb, char[] array) {
+        bb.asCharBuffer().put(array);
+        bb.position(bb.position() + array.length * 2);
+    }
+
+    private static char[] getChars(ByteBuffer bb, int length) {
+        char[] array = new char[length];
+        bb.asCharBuffer().get(array);
+        bb.position(bb.position() + length * 2);
+        return array;
+    }
+
+    private static int hashChars(int h, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            h = 31 * h + str.charAt(i);
+        }
+        return h;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Read-only list of entries from one or more index ranges.
+     */
+    private class EntryList extends AbstractList<VPKEntry> implements RandomAccess {
+
+        // first entry index of each range
+        private final int[] starts;
+        // cumulative list positions, bounds[i] is the list index of starts[i]
+        private final int[] bounds;
+
+        EntryList(int[] starts, int[] bounds) {
+            this.starts = starts;
+            this.bounds = bounds;
+        }
+
+        @Override
+        public VPKEntry get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+
+            int range = Arrays.binarySearch(bounds, 0, starts.length, index);
+            if (range < 0) {
+                range = -range - 2;
+            } else {
+                // skip empty ranges
+                while (range + 1 < starts.length && bounds[range + 1] == index) {
+                    range++;
+                }
+            }
+
+            return getEntry(starts[range] + index - bounds[range]);
+        }
+
+        @Override
+        public int size() {
+            return bounds[starts.length];
+        }
+    }
+}
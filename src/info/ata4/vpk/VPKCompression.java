@@ -0,0 +1,280 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of entry data. Compressed entries are flagged with
+ * {@link VPKArchive#CHUNK_FLAG_COMPRESSED} in the chunk index of the directory
+ * tree. Instead of preload data, they store the uncompressed data size as
+ * 32 bit little-endian integer in the tree, the chunk file contains the zlib
+ * stream. The CRC32 checksum covers the uncompressed data.
+ * <p>
+ * Inflaters and their transfer buffers are pooled, since creating them for
+ * every access costs more than decompressing a small entry. Streams and
+ * transfers to channels and checksum calculations decompress through the
+ * pooled buffers only, while
+ * {@link #inflate(ByteBuffer, int)} creates the buffer that is handed out by
+ * {@link VPKEntry#getData()} and kept in the data cache.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+final class VPKCompression {
+
+    /**
+     * Size of the uncompressed size field that replaces the preload data.
+     */
+    static final int HEADER_SIZE = 4;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final BlockingQueue<Context> POOL = new ArrayBlockingQueue<>(
+            2 * Runtime.getRuntime().availableProcessors());
+
+    private VPKCompression() {
+    }
+
+    /**
+     * Reads the uncompressed data size from the tree data of a compressed
+     * entry.
+     *
+     * @param header buffer with the preload data of the entry
+     * @param off start offset of the size field
+     * @return uncompressed data size
+     */
+    static int getDataSize(byte[] header, int off) {
+        return (header[off] & 0xff) | (header[off + 1] & 0xff) << 8
+                | (header[off + 2] & 0xff) << 16 | (header[off + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Creates the tree data for a compressed entry.
+     *
+     * @param dataSize uncompressed data size
+     * @return size field stored as preload data
+     */
+    static byte[] createHeader(int dataSize) {
+        return new byte[] {
+            (byte) dataSize, (byte) (dataSize >>> 8),
+            (byte) (dataSize >>> 16), (byte) (dataSize >>> 24)
+        };
+    }
+
+    /**
+     * Compresses the remaining bytes of a buffer without changing its
+     * position.
+     *
+     * @param data uncompressed data
+     * @param level deflate compression level
+     * @return new buffer with the zlib stream
+     */
+    static ByteBuffer deflate(ByteBuffer data, int level) {
+        ByteBuffer src = data.duplicate();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, src.remaining() / 2));
+        byte[] in = new byte[Math.min(src.remaining(), BUFFER_SIZE)];
+        byte[] buf = new byte[BUFFER_SIZE];
+        Deflater deflater = new Deflater(level);
+
+        try {
+            while (!deflater.finished()) {
+                if (deflater.needsInput()) {
+                    if (src.hasRemaining()) {
+                        int n = Math.min(src.remaining(), in.length);
+                        src.get(in, 0, n);
+                        deflater.setInput(in, 0, n);
+                    } else {
+                        deflater.finish();
+                    }
+                }
+
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Decompresses a zlib stream into a new direct buffer.
+     *
+     * @param data buffer with the zlib stream
+     * @param dataSize expected uncompressed data size
+     * @return new buffer with the uncompressed data
+     * @throws IOException if the stream is corrupt or doesn't match the
+     *                     expected size
+     */
+    static ByteBuffer inflate(ByteBuffer data, int dataSize) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocateDirect(dataSize);
+        inflate(data, dataSize, dst, null, null);
+
+        dst.rewind();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+
+        return dst;
+    }
+
+    /**
+     * Decompresses a zlib stream to a channel. The data is passed through the
+     * pooled transfer buffer, no buffer for the full data is allocated.
+     *
+     * @param data buffer with the zlib stream
+     * @param dataSize expected uncompressed data size
+     * @param target channel to write to, must be in blocking mode
+     * @throws VPKException if the stream is corrupt or doesn't match the
+     *                      expected size
+     * @throws IOException if the data can't be written
+     */
+    static void inflate(ByteBuffer data, int dataSize, WritableByteChannel target)
+            throws IOException {
+        inflate(data, dataSize, null, target, null);
+    }
+
+    /**
+     * Decompresses a zlib stream into a checksum. The data is passed through
+     * the pooled transfer buffer, no buffer for the full data is allocated.
+     *
+     * @param data buffer with the zlib stream
+     * @param dataSize expected uncompressed data size
+     * @param crc checksum to update with the uncompressed data
+     * @throws VPKException if the stream is corrupt or doesn't match the
+     *                      expected size
+     */
+    static void inflate(ByteBuffer data, int dataSize, CRC32 crc) throws IOException {
+        inflate(data, dataSize, null, null, crc);
+    }
+
+    private static void inflate(ByteBuffer data, int dataSize, ByteBuffer dst,
+            WritableByteChannel target, CRC32 crc) throws IOException {
+        ByteBuffer src = data.duplicate();
+        Context ctx = acquire();
+        Inflater inflater = ctx.inflater;
+        long remaining = dataSize;
+
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (!src.hasRemaining()) {
+                        throw new VPKException("Unexpected end of compressed data");
+                    }
+
+                    int n = Math.min(src.remaining(), ctx.in.length);
+                    src.get(ctx.in, 0, n);
+                    inflater.setInput(ctx.in, 0, n);
+                }
+
+                int n = inflater.inflate(ctx.out);
+
+                if (n > remaining) {
+                    throw new VPKException("Compressed data is larger than the entry size");
+                }
+
+                if (n == 0 && inflater.needsDictionary()) {
+                    throw new VPKException("Unsupported compressed data");
+                }
+
+                remaining -= n;
+
+                if (dst != null) {
+                    dst.put(ctx.out, 0, n);
+                } else if (crc != null) {
+                    crc.update(ctx.out, 0, n);
+                } else {
+                    ByteBuffer bb = ByteBuffer.wrap(ctx.out, 0, n);
+                    while (bb.hasRemaining()) {
+                        target.write(bb);
+                    }
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new VPKException("Corrupt compressed data", ex);
+        } finally {
+            release(ctx);
+        }
+
+        if (remaining > 0) {
+            throw new VPKException("Compressed data is smaller than the entry size");
+        }
+    }
+
+    /**
+     * Wraps a stream of compressed data in a decompressing stream. The
+     * inflater and its input buffer are taken from the pool and returned when
+     * the stream is closed.
+     *
+     * @param in stream of the zlib stream
+     * @return stream of the uncompressed data
+     */
+    static InputStream openInputStream(InputStream in) {
+        final Context ctx = acquire();
+
+        return new InflaterInputStream(in, ctx.inflater, 1) {
+            private boolean closed;
+
+            {
+                // replace the buffer allocated by the constructor
+                buf = ctx.in;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+
+                try {
+                    super.close();
+                } finally {
+                    release(ctx);
+                }
+            }
+        };
+    }
+
+    private static Context acquire() {
+        Context ctx = POOL.poll();
+        return ctx != null ? ctx : new Context();
+    }
+
+    private static void release(Context ctx) {
+        ctx.inflater.reset();
+
+        if (!POOL.offer(ctx)) {
+            ctx.inflater.end();
+        }
+    }
+
+    /**
+     * Inflater with transfer buffers for compressed and uncompressed data.
+     */
+    private static class Context {
+
+        final Inflater inflater = new Inflater();
+        final byte[] in = new byte[BUFFER_SIZE];
+        final byte[] out = new byte[BUFFER_SIZE];
+    }
+}
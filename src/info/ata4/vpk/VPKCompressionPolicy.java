@@ -0,0 +1,50 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+/**
+ * Decides which entries are stored compressed when writing an archive.
+ * Compression pays off for text-based data like scripts and materials, but
+ * rarely for already compressed formats like textures or sounds. Entries that
+ * don't get smaller are stored uncompressed regardless of the policy.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public interface VPKCompressionPolicy {
+    
+    /**
+     * Policy that doesn't compress any data.
+     */
+    VPKCompressionPolicy NONE = new VPKCompressionPolicy() {
+        @Override
+        public boolean isCompressed(String path, int size) {
+            return false;
+        }
+    };
+    
+    /**
+     * Policy that compresses all data.
+     */
+    VPKCompressionPolicy ALL = new VPKCompressionPolicy() {
+        @Override
+        public boolean isCompressed(String path, int size) {
+            return true;
+        }
+    };
+    
+    /**
+     * Returns whether the data of an entry should be compressed.
+     * 
+     * @param path entry path
+     * @param size entry data size
+     * @return true to compress the data
+     */
+    boolean isCompressed(String path, int size);
+}
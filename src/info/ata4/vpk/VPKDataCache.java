@@ -0,0 +1,377 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size-limited LRU cache for entry data buffers that can't be served as
+ * zero-copy slices of the chunk files, like entries with preload data or the
+ * decompressed data of compressed entries. The buffers are allocated outside
+ * of the heap. Once the cached bytes exceed the size limit, the least recently
+ * used buffers are dropped, except those of pinned entry types. Buffers of
+ * pinned types are kept apart from the LRU order, so eviction never has to
+ * skip over them.
+ * <p>
+ * Dropped buffers are released by the garbage collector once no caller holds
+ * them anymore, they are never freed explicitly.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKDataCache {
+
+    public static final long DEFAULT_MAX_SIZE = 64 << 20;
+
+    private final LinkedHashMap<Key, Node> nodes = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Node> pinnedNodes = new LinkedHashMap<>();
+    private final Set<String> pinnedTypes = new HashSet<>();
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private long size;
+    private long pinnedSize;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long evictedBytes;
+
+    /**
+     * Returns the cached data for an entry.
+     *
+     * @param entry entry
+     * @return duplicate of the cached buffer or {@code null} if the data isn't
+     *         cached
+     */
+    synchronized ByteBuffer get(VPKEntry entry) {
+        Key key = new Key(entry);
+        Node node = pinnedNodes.get(key);
+
+        if (node == null) {
+            node = nodes.get(key);
+        }
+
+        if (node == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return node.data.duplicate().order(node.data.order());
+    }
+
+    /**
+     * Adds the data of an entry to the cache and evicts old buffers if
+     * required. Buffers larger than the maximum size aren't cached, neither
+     * are buffers of pinned types that would raise the pinned bytes above the
+     * maximum size.
+     *
+     * @param entry entry
+     * @param data full entry data
+     * @return duplicate of the buffer
+     */
+    synchronized ByteBuffer put(VPKEntry entry, ByteBuffer data) {
+        int dataSize = data.capacity();
+
+        if (dataSize <= maxSize) {
+            Key key = new Key(entry);
+            remove(key);
+
+            Node node = new Node(entry.getType(), data);
+
+            if (!pinnedTypes.contains(node.type)) {
+                nodes.put(key, node);
+                size += dataSize;
+            } else if (pinnedSize + dataSize <= maxSize) {
+                pinnedNodes.put(key, node);
+                pinnedSize += dataSize;
+                size += dataSize;
+            }
+
+            evict();
+        }
+
+        return data.duplicate().order(data.order());
+    }
+
+    private void remove(Key key) {
+        Node old = nodes.remove(key);
+
+        if (old == null) {
+            old = pinnedNodes.remove(key);
+
+            if (old != null) {
+                pinnedSize -= old.data.capacity();
+            }
+        }
+
+        if (old != null) {
+            size -= old.data.capacity();
+        }
+    }
+
+    private void evict() {
+        // unpinned buffers in LRU order
+        Iterator<Node> it = nodes.values().iterator();
+
+        while (size > maxSize && it.hasNext()) {
+            evict(it);
+        }
+
+        // pinned buffers only if they alone exceed the limit, which happens if
+        // it was lowered or a type with many cached buffers was pinned
+        it = pinnedNodes.values().iterator();
+
+        while (pinnedSize > maxSize && it.hasNext()) {
+            pinnedSize -= evict(it);
+        }
+    }
+
+    private int evict(Iterator<Node> it) {
+        int dataSize = it.next().data.capacity();
+        it.remove();
+        size -= dataSize;
+        evictions++;
+        evictedBytes += dataSize;
+        return dataSize;
+    }
+
+    private void updatePinnedSize() {
+        pinnedSize = 0;
+
+        for (Node node : pinnedNodes.values()) {
+            pinnedSize += node.data.capacity();
+        }
+    }
+
+    /**
+     * Moves all buffers of a type between the unpinned and pinned buffers.
+     */
+    private void move(String type, Map<Key, Node> from, Map<Key, Node> to) {
+        Iterator<Map.Entry<Key, Node>> it = from.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<Key, Node> e = it.next();
+
+            if (e.getValue().type.equals(type)) {
+                it.remove();
+                to.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes all buffers from the cache. The counters are not reset.
+     */
+    public synchronized void clear() {
+        nodes.clear();
+        pinnedNodes.clear();
+        size = 0;
+        pinnedSize = 0;
+    }
+
+    /**
+     * Resets the hit, miss and eviction counters.
+     */
+    public synchronized void resetStatistics() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        evictedBytes = 0;
+    }
+
+    /**
+     * Returns the maximum number of cached bytes.
+     *
+     * @return maximum cache size in bytes
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum number of cached bytes. Buffers are evicted
+     * immediately if the current size exceeds the new limit, buffers of pinned
+     * types only if the pinned bytes alone exceed it. A size of 0 disables
+     * caching.
+     *
+     * @param maxSize maximum cache size in bytes
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+        }
+
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Pins an entry type. Cached buffers of pinned types aren't evicted in
+     * favor of other buffers, but still count towards the cache size. The
+     * pinned bytes are limited to the maximum size; already cached buffers of
+     * the type that exceed it are evicted.
+     *
+     * @param type file type, like "vmt"
+     */
+    public synchronized void pinType(String type) {
+        if (!pinnedTypes.add(type)) {
+            return;
+        }
+
+        move(type, nodes, pinnedNodes);
+        updatePinnedSize();
+        evict();
+    }
+
+    /**
+     * Unpins an entry type. Its buffers can be evicted again.
+     *
+     * @param type file type
+     */
+    public synchronized void unpinType(String type) {
+        if (!pinnedTypes.remove(type)) {
+            return;
+        }
+
+        move(type, pinnedNodes, nodes);
+        updatePinnedSize();
+        evict();
+    }
+
+    /**
+     * Returns the pinned entry types.
+     *
+     * @return set of pinned types
+     */
+    public synchronized Set<String> getPinnedTypes() {
+        return Collections.unmodifiableSet(new HashSet<>(pinnedTypes));
+    }
+
+    /**
+     * Returns the number of bytes currently cached.
+     *
+     * @return cache size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of buffers currently cached.
+     *
+     * @return number of cached buffers
+     */
+    public synchronized int getCount() {
+        return nodes.size() + pinnedNodes.size();
+    }
+
+    /**
+     * Returns the number of lookups that were served from the cache.
+     *
+     * @return number of cache hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that weren't served from the cache.
+     *
+     * @return number of cache misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of buffers that were evicted.
+     *
+     * @return number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of bytes that were evicted.
+     *
+     * @return evicted bytes
+     */
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d buffers, %d/%d bytes, %d hits, %d misses, %d evictions",
+                getCount(), size, maxSize, hits, misses, evictions);
+    }
+
+    /**
+     * Identifies entry data by its location and checksum, so entries that
+     * share the same data also share the cached buffer.
+     */
+    private static class Key {
+
+        private final File file;
+        private final long offset;
+        private final int size;
+        private final int preloadSize;
+        private final long crc32;
+
+        Key(VPKEntry entry) {
+            this.file = entry.getFile();
+            this.offset = entry.getOffsetUnsigned();
+            this.size = entry.getSize();
+            this.preloadSize = entry.getPreloadSize();
+            this.crc32 = entry.getCRC32();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+
+            return offset == other.offset && size == other.size
+                    && preloadSize == other.preloadSize && crc32 == other.crc32
+                    && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 5;
+            hash = 59 * hash + file.hashCode();
+            hash = 59 * hash + (int) (offset ^ (offset >>> 32));
+            hash = 59 * hash + size;
+            hash = 59 * hash + preloadSize;
+            hash = 59 * hash + (int) (crc32 ^ (crc32 >>> 32));
+            return hash;
+        }
+    }
+
+    private static class Node {
+
+        private final String type;
+        private final ByteBuffer data;
+
+        Node(String type, ByteBuffer data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
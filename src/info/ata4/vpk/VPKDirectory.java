@@ -0,0 +1,304 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Node of the directory tree of an archive. Each node knows its
+ * sub-directories, the number and size of the entries directly inside it and
+ * the totals for its whole subtree. The entries themselves are fetched from
+ * the archive index on request, so subtree queries only touch the directories
+ * and entries in the result.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKDirectory {
+
+    private final VPKArchive archive;
+    private final VPKDirectory parent;
+    private final String name;
+    private final String path;
+    private final Map<String, VPKDirectory> children = new TreeMap<>();
+    private int entryCount;
+    private long dataSize;
+    private int totalEntryCount;
+    private long totalDataSize;
+
+    VPKDirectory(VPKArchive archive, VPKDirectory parent, String name) {
+        this.archive = archive;
+        this.parent = parent;
+        this.name = name;
+        this.path = parent == null ? "" : parent.path + name + "/";
+    }
+
+    /**
+     * Returns the node for a directory path, creating all missing nodes on the
+     * way.
+     *
+     * @param dir directory path with trailing slash, like the entry directories
+     * @return directory node
+     */
+    VPKDirectory getOrCreate(String dir) {
+        VPKDirectory node = this;
+
+        for (int start = 0, end; (end = dir.indexOf('/', start)) >= 0; start = end + 1) {
+            if (end == start) {
+                continue;
+            }
+
+            String childName = dir.substring(start, end);
+            VPKDirectory child = node.children.get(childName);
+
+            if (child == null) {
+                child = new VPKDirectory(archive, node, childName);
+                node.children.put(childName, child);
+            }
+
+            node = child;
+        }
+
+        return node;
+    }
+
+    /**
+     * Registers an entry directly inside this directory.
+     *
+     * @param entryDataSize full data size of the entry
+     */
+    void addEntry(int entryDataSize) {
+        entryCount++;
+        dataSize += entryDataSize & 0xffffffffL;
+    }
+
+    /**
+     * Calculates the subtree totals of this directory and all sub-directories.
+     */
+    void complete() {
+        totalEntryCount = entryCount;
+        totalDataSize = dataSize;
+
+        for (VPKDirectory child : children.values()) {
+            child.complete();
+            totalEntryCount += child.totalEntryCount;
+            totalDataSize += child.totalDataSize;
+        }
+    }
+
+    /**
+     * Returns the node for a path relative to this directory.
+     *
+     * @param dir relative directory path, with or without trailing slash
+     * @return directory node or {@code null} if it doesn't exist
+     */
+    public VPKDirectory getDirectory(String dir) {
+        VPKDirectory node = this;
+
+        for (String childName : dir.split("/")) {
+            if (childName.isEmpty()) {
+                continue;
+            }
+
+            node = node.children.get(childName);
+
+            if (node == null) {
+                return null;
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * Returns the name of this directory.
+     *
+     * @return directory name, which is empty for the root directory
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the path of this directory in the same form as
+     * {@link VPKEntry#getDir()}.
+     *
+     * @return directory path with trailing slash, or an empty string for the
+     *         root directory
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the parent directory.
+     *
+     * @return parent directory or {@code null} for the root directory
+     */
+    public VPKDirectory getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the direct sub-directories, sorted by name.
+     *
+     * @return sub-directories
+     */
+    public Collection<VPKDirectory> getChildren() {
+        return Collections.unmodifiableCollection(children.values());
+    }
+
+    /**
+     * Returns the entries directly inside this directory.
+     *
+     * @return entry list
+     */
+    public List<VPKEntry> getEntries() {
+        List<VPKEntry> entries = entryCount == 0 ? null : archive.getEntriesForDir(path);
+        return entries == null ? Collections.<VPKEntry>emptyList() : entries;
+    }
+
+    /**
+     * Returns all entries inside this directory and its sub-directories.
+     *
+     * @return entry list
+     */
+    public List<VPKEntry> getEntriesRecursive() {
+        List<VPKEntry> entries = new ArrayList<>(totalEntryCount);
+        collectEntries(entries, null, Integer.MAX_VALUE);
+        return entries;
+    }
+
+    /**
+     * Returns all entries inside this directory and its sub-directories whose
+     * full paths match a glob pattern. Only the directories that can contain
+     * matches are visited: the leading literal directories of the pattern
+     * select the subtree and, without "**", the number of remaining
+     * directory levels limits the search depth.
+     *
+     * @param glob glob pattern for the full entry path, see {@link VPKGlob}
+     * @return list of matching entries
+     */
+    public List<VPKEntry> findEntries(String glob) {
+        // find the directory prefix without special characters
+        int prefixEnd = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if ("*?[{\\".indexOf(c) >= 0) {
+                break;
+            }
+            if (c == '/') {
+                prefixEnd = i + 1;
+            }
+        }
+
+        String prefix = glob.substring(0, prefixEnd);
+        String rest = glob.substring(prefixEnd);
+        List<VPKEntry> entries = new ArrayList<>();
+
+        if (!prefix.startsWith(path)) {
+            if (!path.startsWith(prefix)) {
+                return entries;
+            }
+
+            // the pattern starts above this directory
+            prefix = path;
+            rest = null;
+        }
+
+        VPKDirectory start = getDirectory(prefix.substring(path.length()));
+
+        if (start == null) {
+            return entries;
+        }
+
+        int maxDepth = Integer.MAX_VALUE;
+        if (rest != null && !rest.contains("**")) {
+            maxDepth = 0;
+            for (int i = 0; i < rest.length(); i++) {
+                if (rest.charAt(i) == '/') {
+                    maxDepth++;
+                }
+            }
+        }
+
+        start.collectEntries(entries, VPKGlob.compile(glob), maxDepth);
+
+        return entries;
+    }
+
+    private void collectEntries(List<VPKEntry> entries, Pattern pattern, int depth) {
+        if (entryCount > 0) {
+            if (pattern == null) {
+                entries.addAll(getEntries());
+            } else {
+                for (VPKEntry entry : getEntries()) {
+                    if (pattern.matcher(entry.getPath()).matches()) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+
+        if (depth > 0) {
+            for (VPKDirectory child : children.values()) {
+                child.collectEntries(entries, pattern, depth - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries directly inside this directory.
+     *
+     * @return number of entries
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Returns the number of entries inside this directory and its
+     * sub-directories.
+     *
+     * @return number of entries in the subtree
+     */
+    public int getTotalEntryCount() {
+        return totalEntryCount;
+    }
+
+    /**
+     * Returns the data size of all entries directly inside this directory.
+     *
+     * @return data size in bytes
+     */
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * Returns the data size of all entries inside this directory and its
+     * sub-directories.
+     *
+     * @return data size of the subtree in bytes
+     */
+    public long getTotalDataSize() {
+        return totalDataSize;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
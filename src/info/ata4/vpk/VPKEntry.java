@@ -13,8 +13,16 @@ import info.ata4.io.util.ByteBufferUtils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
 import java.util.zip.CRC32;
 import org.apache.commons.io.FilenameUtils;
 
@@ -24,22 +32,47 @@ import org.apache.commons.io.FilenameUtils;
  */
 public class VPKEntry {
     
+    static final int CRC_BUFFER_SIZE = 1 << 16;
+    
+    /**
+     * Orders entries by chunk file and offset.
+     */
+    static final Comparator<VPKEntry> CHUNK_ORDER = new Comparator<VPKEntry>() {
+        @Override
+        public int compare(VPKEntry e1, VPKEntry e2) {
+            int result = e1.getFile().compareTo(e2.getFile());
+            if (result == 0) {
+                result = Long.compare(e1.getOffsetUnsigned(), e2.getOffsetUnsigned());
+            }
+            return result;
+        }
+    };
+    
+    private final VPKArchive archive;
     private final File vpkFile;
-    private ByteBuffer bb;
+    private volatile ByteBuffer bb;
     private String type;
     private String name;
     private String dir;
+    private String path;
     private long crc32;
+    private int chunkIndex = VPKArchive.CHUNK_INDEX_DIR;
     private int offset;
     private int size;
     private byte[] preload = new byte[0];
+    private int uncompressedSize = -1;
     private boolean readOnly;
     
-    VPKEntry(File vpkFile, boolean readOnly) {
+    VPKEntry(VPKArchive archive, File vpkFile, boolean readOnly) {
+        this.archive = archive;
         this.vpkFile = vpkFile;
         this.readOnly = readOnly;
     }
     
+    VPKEntry(File vpkFile, boolean readOnly) {
+        this(null, vpkFile, readOnly);
+    }
+    
     /**
      * Returns the VPK archive file for this entry.
      * 
@@ -50,52 +83,312 @@ public class VPKEntry {
     }
     
     /**
-     * Creates and returs a byte buffer for this entry.
+     * Creates and returs a byte buffer for this entry. In read-only mode, the
+     * buffer is a slice of the chunk file mapping shared by all entries of the
+     * archive. Data of entries with preload data is copied into a buffer that
+     * is kept in the {@link VPKDataCache} of the archive, as well as the
+     * decompressed data of compressed entries.
+     * This method can be called by multiple threads at once.
      * 
      * @return byte buffer containing the data of this entry
      * @throws IOException If the buffer creation caused an error
      */
     public ByteBuffer getData() throws IOException {
+        if (archive != null) {
+            archive.entryAccessed(this);
+        }
+        
+        VPKMetrics metrics = getMetrics();
+        long start = metrics != null ? System.nanoTime() : 0;
+        
         // if there's nothing defined, simply return an empty buffer
         if (size == 0 && preload.length == 0) {
+            accessed(metrics, VPKMetrics.Source.PRELOAD, start);
             return ByteBuffer.allocate(0);
         }
         
         // don't create another buffer if a previous one was created
-        if (bb != null && bb.capacity() == size) {
-            return bb.duplicate();
+        ByteBuffer data = bb;
+        if (data != null) {
+            accessed(metrics, VPKMetrics.Source.CACHE, start);
+            return data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        if (isCompressed()) {
+            return getInflatedData(metrics, start);
         }
         
         // return the preloaded data directly if there's no actual size for the
         // file
         if (size == 0 && preload.length > 0) {
-            return ByteBuffer.wrap(preload);
+            accessed(metrics, VPKMetrics.Source.PRELOAD, start);
+            return ByteBuffer.wrap(preload).order(ByteOrder.LITTLE_ENDIAN);
         }
         
-        if (size == 0 && preload.length > 0) {
-            // data is fully preloaded, simply wrap the array
-            bb = ByteBuffer.wrap(preload);
-        } else if (size > 0 && preload.length > 0) {
+        if (preload.length > 0 && archive != null) {
+            // concat preloaded and external data in a buffer that is kept in
+            // the size-limited cache of the archive
+            VPKDataCache cache = archive.getDataCache();
+            data = cache.get(this);
+            
+            if (data == null) {
+                data = ByteBuffer.allocateDirect(getDataSize());
+                data.put(preload);
+                data.put(archive.getChunkPool().slice(vpkFile, getOffsetUnsigned(), size));
+                data.order(ByteOrder.LITTLE_ENDIAN);
+                data.rewind();
+                data = cache.put(this, data);
+                accessed(metrics, VPKMetrics.Source.COPY, start);
+            } else {
+                accessed(metrics, VPKMetrics.Source.CACHE, start);
+            }
+            
+            return data;
+        }
+        
+        // the buffer is completely set up before it is published, so other
+        // threads never see it half-filled
+        VPKMetrics.Source source = VPKMetrics.Source.MAPPING;
+        
+        if (preload.length > 0) {
             // concat preloaded and external data
-            bb = ByteBuffer.allocateDirect(getDataSize());
-            bb.put(preload);
-            ByteBufferUtils.load(vpkFile.toPath(), offset, size, bb);
+            data = ByteBuffer.allocateDirect(getDataSize());
+            data.put(preload);
+            ByteBufferUtils.load(vpkFile.toPath(), offset, size, data);
+            source = VPKMetrics.Source.COPY;
         } else if (readOnly) {
-            if (vpkFile.exists()) {
-                // map the file directly
-                bb = ByteBufferUtils.openReadOnly(vpkFile.toPath(), offset, size);
-            } else {
+            if (archive != null) {
+                // slice the shared chunk mapping, which is cheap enough to
+                // not keep the buffer around; the pool reports missing files
+                // when it maps them for the first time
+                data = archive.getChunkPool().slice(vpkFile, getOffsetUnsigned(), size);
+                accessed(metrics, source, start);
+                return data;
+            }
+            
+            if (!vpkFile.exists()) {
                 // can't create files in read-only mode
                 throw new FileNotFoundException();
             }
+            
+            // map the file directly
+            data = ByteBufferUtils.openReadOnly(vpkFile.toPath(), offset, size);
+        } else {
+            data = ByteBufferUtils.openReadWrite(vpkFile.toPath(), offset, size);
+        }
+        
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        data.rewind();
+        bb = data;
+        
+        accessed(metrics, source, start);
+        
+        return data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Decompresses the data of a compressed entry. The buffer is kept in the
+     * data cache of the archive, or by the entry itself if it doesn't belong
+     * to an archive.
+     */
+    private ByteBuffer getInflatedData(VPKMetrics metrics, long start) throws IOException {
+        ByteBuffer data;
+        
+        if (archive != null) {
+            VPKDataCache cache = archive.getDataCache();
+            data = cache.get(this);
+            
+            if (data != null) {
+                accessed(metrics, VPKMetrics.Source.CACHE, start);
+                return data;
+            }
+            
+            data = VPKCompression.inflate(archive.getChunkPool().slice(vpkFile,
+                    getOffsetUnsigned(), size), uncompressedSize);
+            data = cache.put(this, data);
         } else {
-            bb = ByteBufferUtils.openReadWrite(vpkFile.toPath(), offset, size);
+            data = VPKCompression.inflate(ByteBufferUtils.openReadOnly(vpkFile.toPath(),
+                    offset, size), uncompressedSize);
+            bb = data;
+            data = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        accessed(metrics, VPKMetrics.Source.DECOMPRESSION, start);
+        
+        return data;
+    }
+    
+    private VPKMetrics getMetrics() {
+        return archive == null ? null : archive.getMetrics();
+    }
+    
+    private void accessed(VPKMetrics metrics, VPKMetrics.Source source, long start) {
+        if (metrics != null) {
+            metrics.dataAccessed(this, source, System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Opens a channel that streams the data of this entry. Unlike
+     * {@link #getData()}, no buffer for the full data is allocated or kept,
+     * the preload data is followed by direct reads of the archive file.
+     * Compressed data is decompressed while it is read.
+     * 
+     * @return readable channel for the data of this entry
+     * @throws IOException If the archive file doesn't exist
+     */
+    public ReadableByteChannel openChannel() throws IOException {
+        if (isCompressed()) {
+            return Channels.newChannel(openInputStream());
+        }
+        
+        return openStoredChannel();
+    }
+    
+    private ReadableByteChannel openStoredChannel() throws IOException {
+        if (size > 0 && !vpkFile.exists()) {
+            throw new FileNotFoundException(vpkFile.getPath());
+        }
+        
+        return new VPKEntryChannel(preload, vpkFile, getOffsetUnsigned(), size);
+    }
+    
+    /**
+     * Opens an input stream that streams the data of this entry.
+     * 
+     * @return input stream for the data of this entry
+     * @throws IOException If the archive file doesn't exist
+     * @see #openChannel()
+     */
+    public InputStream openInputStream() throws IOException {
+        if (isCompressed()) {
+            return VPKCompression.openInputStream(Channels.newInputStream(openStoredChannel()));
+        }
+        
+        return Channels.newInputStream(openChannel());
+    }
+    
+    /**
+     * Writes the data of this entry to a channel. The preload data is written
+     * first, then the data range of the archive file is transferred with
+     * {@link FileChannel#transferTo}, which lets the operating system copy
+     * the data directly to files or sockets without mapping it or passing it
+     * through the Java heap. Compressed entries are written from the data
+     * cache if their data is cached, otherwise they are decompressed through
+     * a pooled transfer buffer. The target channel must be in blocking mode.
+     * 
+     * @param target channel to write to
+     * @return number of bytes written
+     * @throws IOException If the archive file doesn't exist or the data
+     *                     couldn't be written
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        if (archive != null) {
+            archive.entryAccessed(this);
+        }
+        
+        if (isCompressed()) {
+            return transferInflated(target);
+        }
+        
+        // open the archive file before anything is written, so a missing file
+        // doesn't leave a partial write in the target
+        VPKChunkPool pool = archive != null ? archive.getChunkPool() : null;
+        FileChannel fc = null;
+        
+        if (size > 0) {
+            if (pool != null) {
+                fc = pool.channel(vpkFile);
+            } else if (vpkFile.exists()) {
+                fc = FileChannel.open(vpkFile.toPath(), StandardOpenOption.READ);
+            } else {
+                throw new FileNotFoundException(vpkFile.getPath());
+            }
+        }
+        
+        try {
+            ByteBuffer bbPreload = ByteBuffer.wrap(preload);
+            
+            while (bbPreload.hasRemaining()) {
+                target.write(bbPreload);
+            }
+            
+            if (fc == null) {
+                return preload.length;
+            }
+            
+            VPKMetrics metrics = getMetrics();
+            long time = metrics != null ? System.nanoTime() : 0;
+            long start = getOffsetUnsigned();
+            long done = 0;
+            
+            while (done < size) {
+                long n;
+                
+                try {
+                    n = fc.transferTo(start + done, size - done, target);
+                } catch (ClosedChannelException ex) {
+                    // the shared channel was closed by the pool in the
+                    // meantime, continue on a new one
+                    if (pool == null || fc.isOpen() || Thread.currentThread().isInterrupted()) {
+                        throw ex;
+                    }
+                    
+                    fc = pool.channel(vpkFile);
+                    continue;
+                }
+                
+                // transferTo returns 0 at the end of the file
+                if (n <= 0) {
+                    throw new VPKException("Unexpected end of file in " + vpkFile.getName());
+                }
+                
+                done += n;
+            }
+            
+            if (metrics != null) {
+                metrics.chunkRead(vpkFile, 1, size, System.nanoTime() - time);
+            }
+        } finally {
+            if (pool == null && fc != null) {
+                fc.close();
+            }
         }
         
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        bb.rewind();
+        return getDataSize();
+    }
+    
+    private long transferInflated(WritableByteChannel target) throws IOException {
+        ByteBuffer data = bb;
+        
+        if (data == null && archive != null) {
+            data = archive.getDataCache().get(this);
+        }
         
-        return bb.duplicate();
+        if (data != null) {
+            data = data.duplicate();
+            
+            while (data.hasRemaining()) {
+                target.write(data);
+            }
+            
+            return uncompressedSize;
+        }
+        
+        VPKMetrics metrics = getMetrics();
+        long time = metrics != null ? System.nanoTime() : 0;
+        
+        ByteBuffer src = archive != null
+                ? archive.getChunkPool().slice(vpkFile, getOffsetUnsigned(), size)
+                : ByteBufferUtils.openReadOnly(vpkFile.toPath(), offset, size);
+        
+        VPKCompression.inflate(src, uncompressedSize, target);
+        
+        if (metrics != null) {
+            metrics.chunkRead(vpkFile, 1, size, System.nanoTime() - time);
+        }
+        
+        return uncompressedSize;
     }
     
     /**
@@ -120,18 +413,79 @@ public class VPKEntry {
      * @throws IOException If the checksum calculation caused an I/O error
      */
     public long calcCRC32() throws IOException {
+        return calcCRC32(null);
+    }
+    
+    /**
+     * Calculates the actual CRC32 checksum for the data, using the given
+     * array as transfer buffer for direct buffers. Unlike {@link #getData()},
+     * this reads the preload data and a slice of the chunk file separately and
+     * decompresses through the pooled transfer buffers, so no buffer is
+     * created for or taken from the data cache.
+     * 
+     * @param buf transfer buffer or {@code null} to allocate one if required
+     * @return actual calculated CRC32 checksum
+     * @throws IOException If the checksum calculation caused an I/O error
+     */
+    long calcCRC32(byte[] buf) throws IOException {
+        VPKMetrics metrics = getMetrics();
+        long start = metrics != null ? System.nanoTime() : 0;
+        
         CRC32 crc = new CRC32();
-        byte[] buf = new byte[4096];
+        ByteBuffer data = bb;
+        
+        if (data != null) {
+            updateCRC32(crc, data, buf);
+        } else {
+            ByteBuffer src = ByteBuffer.allocate(0);
+            
+            if (size > 0) {
+                src = archive != null
+                        ? archive.getChunkPool().slice(vpkFile, getOffsetUnsigned(), size)
+                        : ByteBufferUtils.openReadOnly(vpkFile.toPath(), offset, size);
+            }
+            
+            if (isCompressed()) {
+                VPKCompression.inflate(src, uncompressedSize, crc);
+            } else {
+                crc.update(preload);
+                updateCRC32(crc, src, buf);
+            }
+        }
         
-        ByteBuffer bbCheck = getData();
+        if (metrics != null) {
+            metrics.checksumCalculated(this, System.nanoTime() - start);
+        }
+        
+        return crc.getValue();
+    }
+    
+    /**
+     * Updates a checksum with the remaining bytes of a buffer without changing
+     * its position. Heap buffers are processed in place, direct buffers are
+     * copied in blocks to the transfer buffer.
+     * 
+     * @param crc checksum to update
+     * @param bb data buffer
+     * @param buf transfer buffer or {@code null} to allocate one if required
+     */
+    static void updateCRC32(CRC32 crc, ByteBuffer bb, byte[] buf) {
+        if (bb.hasArray()) {
+            crc.update(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+            return;
+        }
+        
+        if (buf == null) {
+            buf = new byte[Math.min(bb.remaining(), CRC_BUFFER_SIZE)];
+        }
+        
+        ByteBuffer bbCheck = bb.duplicate();
         
         while (bbCheck.hasRemaining()) {
             int bsize = Math.min(buf.length, bbCheck.remaining());
             bbCheck.get(buf, 0, bsize);
             crc.update(buf, 0, bsize);
         }
-
-        return crc.getValue();
     }
     
     /**
@@ -159,6 +513,7 @@ public class VPKEntry {
      */
     void setType(String type) {
         this.type = type;
+        this.path = null;
     }
 
     /**
@@ -177,6 +532,7 @@ public class VPKEntry {
      */
     void setName(String name) {
         this.name = name;
+        this.path = null;
     }
 
     /**
@@ -195,6 +551,7 @@ public class VPKEntry {
      */
     void setDir(String dir) {
         this.dir = dir;
+        this.path = null;
     }
 
     /**
@@ -255,6 +612,25 @@ public class VPKEntry {
         preload = new byte[preloadSize];
     }
 
+    /**
+     * Returns the index of the chunk file that contains the data of this
+     * entry. Data in the directory file uses {@link VPKArchive#CHUNK_INDEX_DIR}.
+     * 
+     * @return chunk index
+     */
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    /**
+     * Sets the index of the chunk file that contains the data of this entry.
+     * 
+     * @param chunkIndex chunk index
+     */
+    void setChunkIndex(int chunkIndex) {
+        this.chunkIndex = chunkIndex;
+    }
+
     /**
      * Returns the data offset in the associated file for this entry.
      * 
@@ -264,6 +640,16 @@ public class VPKEntry {
         return offset;
     }
 
+    /**
+     * Returns the data offset as unsigned value, since VPK offsets are 32 bit
+     * unsigned integers.
+     * 
+     * @return unsigned file offset
+     */
+    long getOffsetUnsigned() {
+        return offset & 0xffffffffL;
+    }
+
     /**
      * Sets the data offset in the associated file for this entry.
      * 
@@ -274,7 +660,8 @@ public class VPKEntry {
     }
 
     /**
-     * Returns the external archive data size for this entry.
+     * Returns the external archive data size for this entry. For compressed
+     * entries, this is the size of the compressed data.
      * 
      * @return data size
      */
@@ -291,23 +678,53 @@ public class VPKEntry {
         this.size = size;
     }
     
+    /**
+     * Returns whether the archive data of this entry is compressed.
+     * 
+     * @return true if the data is compressed
+     */
+    public boolean isCompressed() {
+        return uncompressedSize >= 0;
+    }
+    
+    /**
+     * Sets the uncompressed data size for an entry with compressed archive
+     * data. Compressed entries have no preload data.
+     * 
+     * @param uncompressedSize uncompressed data size or -1 if the data isn't
+     *                         compressed
+     */
+    void setUncompressedSize(int uncompressedSize) {
+        this.uncompressedSize = uncompressedSize;
+    }
+    
     /**
      * Returns the full data size for this entry. It includes the size of the
-     * preloaded data and the archive data.
+     * preloaded data and the archive data, or the uncompressed size for
+     * compressed entries.
      * 
      * @return full data size
      */
     public int getDataSize() {
+        if (isCompressed()) {
+            return uncompressedSize;
+        }
         return size + preload.length;
     }
     
     /**
-     * Returns the full path of this entry.
+     * Returns the full path of this entry. The path is built on the first call
+     * and kept until the entry is renamed.
      * 
      * @return entry path
      */
     public String getPath() {
-        return getDir() + getName() + "." + getType();
+        String result = path;
+        if (result == null) {
+            result = getDir() + getName() + "." + getType();
+            path = result;
+        }
+        return result;
     }
     
     /**
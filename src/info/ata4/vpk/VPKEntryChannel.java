@@ -0,0 +1,111 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Channel that streams the data of an entry: the preload data first, followed
+ * by positional reads of the data range in the chunk file. No buffer for the
+ * full entry data is allocated.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKEntryChannel implements ReadableByteChannel {
+
+    private final byte[] preload;
+    private final File file;
+    private final long offset;
+    private final long size;
+    private FileChannel fc;
+    private long position;
+    private boolean open = true;
+
+    VPKEntryChannel(byte[] preload, File file, long offset, long size) {
+        this.preload = preload;
+        this.file = file;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+
+        long total = preload.length + size;
+
+        if (position >= total) {
+            return -1;
+        }
+
+        int read = 0;
+
+        // preload data
+        if (position < preload.length && dst.hasRemaining()) {
+            int length = (int) Math.min(preload.length - position, dst.remaining());
+            dst.put(preload, (int) position, length);
+            position += length;
+            read += length;
+        }
+
+        // chunk file data
+        if (position >= preload.length && position < total && dst.hasRemaining()) {
+            if (fc == null) {
+                fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+
+            long remaining = total - position;
+            ByteBuffer dstLimited = dst;
+
+            if (dst.remaining() > remaining) {
+                dstLimited = dst.duplicate();
+                dstLimited.limit(dst.position() + (int) remaining);
+            }
+
+            int n = fc.read(dstLimited, offset + position - preload.length);
+
+            if (n < 0) {
+                throw new VPKException("Unexpected end of file in " + file.getName());
+            }
+
+            if (dstLimited != dst) {
+                dst.position(dstLimited.position());
+            }
+
+            position += n;
+            read += n;
+        }
+
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        
+        if (fc != null) {
+            fc.close();
+            fc = null;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded extractor for VPK entries. Entries are sorted by chunk file
+ * and offset, so the archive is read sequentially, and written to disk on a
+ * pool of worker threads. The amount of data that is queued but not yet
+ * written is limited to avoid reading ahead too far.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKExtractor {
+    
+    private static final long DEFAULT_MAX_PENDING_BYTES = 64 << 20;
+    
+    private ExecutorService executor;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+    private VPKProgressListener listener;
+    
+    /**
+     * Extracts entries to a directory. Each entry is written to its path
+     * relative to the destination directory.
+     * 
+     * @param entries entries to extract
+     * @param destDir destination directory
+     * @throws IOException if one or more entries couldn't be extracted. The
+     *                     individual errors are attached as suppressed
+     *                     exceptions.
+     */
+    public void extract(Collection<VPKEntry> entries, File destDir) throws IOException {
+        final List<VPKEntry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, VPKEntry.CHUNK_ORDER);
+        
+        long bytesTotal = 0;
+        for (VPKEntry entry : sorted) {
+            bytesTotal += entry.getDataSize();
+        }
+        
+        final File destDirAbs = destDir.getAbsoluteFile();
+        final int entriesTotal = sorted.size();
+        final long bytesTotalFinal = bytesTotal;
+        final AtomicInteger entriesDone = new AtomicInteger();
+        final AtomicLong bytesDone = new AtomicLong();
+        final Queue<IOException> errors = new ConcurrentLinkedQueue<>();
+        
+        int maxPermits = (int) Math.min(maxPendingBytes, Integer.MAX_VALUE);
+        final Semaphore pending = new Semaphore(maxPermits);
+        
+        ExecutorService exec = executor;
+        if (exec == null) {
+            exec = Executors.newFixedThreadPool(threads);
+        }
+        
+        try {
+            for (final VPKEntry entry : sorted) {
+                final int permits = Math.min(entry.getDataSize(), maxPermits);
+                
+                pending.acquire(permits);
+                
+                try {
+                    exec.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                extract(entry, destDirAbs);
+
+                                int done = entriesDone.incrementAndGet();
+                                long bytes = bytesDone.addAndGet(entry.getDataSize());
+
+                                if (listener != null) {
+                                    listener.entryCompleted(entry, done, entriesTotal, bytes, bytesTotalFinal);
+                                }
+                            } catch (IOException | RuntimeException ex) {
+                                // unchecked exceptions would be lost in the pool
+                                IOException ex2 = new IOException("Can't extract " + entry.getPath(), ex);
+                                errors.add(ex2);
+                                
+                                if (listener != null) {
+                                    listener.entryFailed(entry, ex2);
+                                }
+                            } finally {
+                                pending.release(permits);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    pending.release(permits);
+                    throw new IOException("Extraction task rejected", ex);
+                }
+            }
+            
+            // wait for all running tasks
+            pending.acquire(maxPermits);
+            pending.release(maxPermits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Extraction interrupted");
+        } finally {
+            if (executor == null) {
+                exec.shutdown();
+                try {
+                    exec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        if (!errors.isEmpty()) {
+            IOException ex = new IOException(errors.size() + " of " + entriesTotal + " entries couldn't be extracted");
+            for (IOException error : errors) {
+                ex.addSuppressed(error);
+            }
+            throw ex;
+        }
+    }
+    
+    private void extract(VPKEntry entry, File destDir) throws IOException {
+        File entryFile = new File(destDir, entry.getPath());
+        
+        // don't write outside of the destination directory
+        if (!entryFile.getCanonicalPath().startsWith(destDir.getCanonicalPath() + File.separator)) {
+            throw new VPKException("Invalid entry path: " + entry.getPath());
+        }
+        
+        File entryDir = entryFile.getParentFile();
+        if (!entryDir.isDirectory() && !entryDir.mkdirs() && !entryDir.isDirectory()) {
+            throw new IOException("Can't create directory " + entryDir);
+        }
+        
+        // transfer the data without mapping it
+        try (FileChannel fc = FileChannel.open(entryFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            entry.transferTo(fc);
+        }
+    }
+
+    /**
+     * Returns the executor for the extraction tasks.
+     * 
+     * @return executor service or {@code null} if a temporary thread pool is
+     *         used
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor for the extraction tasks. The executor isn't shut down
+     * after the extraction.
+     * 
+     * @param executor executor service or {@code null} to use a temporary
+     *                 thread pool with {@link #getThreads()} threads
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the number of threads of the temporary thread pool.
+     * 
+     * @return number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads of the temporary thread pool. It isn't used
+     * if an executor is set.
+     * 
+     * @param threads number of threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        
+        this.threads = threads;
+    }
+
+    /**
+     * Returns the maximum amount of data that is queued for writing.
+     * 
+     * @return maximum number of pending bytes
+     */
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    /**
+     * Sets the maximum amount of data that is queued for writing. Reading
+     * blocks until the workers have caught up.
+     * 
+     * @param maxPendingBytes maximum number of pending bytes
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        if (maxPendingBytes < 1) {
+            throw new IllegalArgumentException("Invalid pending size: " + maxPendingBytes);
+        }
+        
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Returns the progress listener.
+     * 
+     * @return progress listener or {@code null} if not set
+     */
+    public VPKProgressListener getProgressListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the progress listener.
+     * 
+     * @param listener progress listener or {@code null} to remove it
+     */
+    public void setProgressListener(VPKProgressListener listener) {
+        this.listener = listener;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Footer sections of a version 2 VPK archive, which follow the embedded file
+ * data in the directory file.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKFooter {
+    
+    static final int ARCHIVE_MD5_SIZE = 28;
+    static final int OTHER_MD5_SIZE = 48;
+    
+    private final List<VPKArchiveMD5> archiveMD5s = new ArrayList<>();
+    private final int archiveMD5Offset;
+    private final int archiveMD5Size;
+    private byte[] treeMD5;
+    private byte[] archiveMD5SectionMD5;
+    private byte[] wholeFileMD5;
+    private byte[] publicKey;
+    private byte[] signature;
+    
+    /**
+     * Reads the footer sections from the directory file.
+     * 
+     * @param bb buffer of the directory file
+     * @param offset start offset of the footer
+     * @param archiveMD5Size size of the archive MD5 section
+     * @param otherMD5Size size of the other MD5 section
+     * @param signatureSize size of the signature section
+     * @throws VPKException if a section is malformed
+     */
+    VPKFooter(ByteBuffer bb, int offset, int archiveMD5Size, int otherMD5Size,
+            int signatureSize) throws VPKException {
+        if (archiveMD5Size % ARCHIVE_MD5_SIZE != 0) {
+            throw new VPKException("Invalid archive MD5 section size: " + archiveMD5Size);
+        }
+        
+        this.archiveMD5Offset = offset;
+        this.archiveMD5Size = archiveMD5Size;
+        
+        ByteBuffer in = bb.duplicate();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        in.position(offset);
+        
+        for (int i = 0; i < archiveMD5Size / ARCHIVE_MD5_SIZE; i++) {
+            int chunkIndex = in.getInt();
+            int chunkOffset = in.getInt();
+            int size = in.getInt();
+            byte[] md5 = new byte[16];
+            in.get(md5);
+            
+            archiveMD5s.add(new VPKArchiveMD5(chunkIndex, chunkOffset, size, md5));
+        }
+        
+        if (otherMD5Size == OTHER_MD5_SIZE) {
+            treeMD5 = new byte[16];
+            in.get(treeMD5);
+            archiveMD5SectionMD5 = new byte[16];
+            in.get(archiveMD5SectionMD5);
+            wholeFileMD5 = new byte[16];
+            in.get(wholeFileMD5);
+        } else if (otherMD5Size != 0) {
+            throw new VPKException("Invalid other MD5 section size: " + otherMD5Size);
+        }
+        
+        if (signatureSize > 0) {
+            int end = in.position() + signatureSize;
+            
+            int publicKeySize = in.getInt();
+            if (publicKeySize < 0 || in.position() + publicKeySize > end) {
+                throw new VPKException("Invalid public key size: " + publicKeySize);
+            }
+            publicKey = new byte[publicKeySize];
+            in.get(publicKey);
+            
+            int sigSize = in.getInt();
+            if (sigSize < 0 || in.position() + sigSize > end) {
+                throw new VPKException("Invalid signature size: " + sigSize);
+            }
+            signature = new byte[sigSize];
+            in.get(signature);
+        }
+    }
+
+    /**
+     * Returns the entries of the archive MD5 section.
+     * 
+     * @return list of archive MD5 entries
+     */
+    public List<VPKArchiveMD5> getArchiveMD5s() {
+        return Collections.unmodifiableList(archiveMD5s);
+    }
+    
+    /**
+     * Returns the offset of the archive MD5 section in the directory file.
+     * 
+     * @return section offset
+     */
+    int getArchiveMD5Offset() {
+        return archiveMD5Offset;
+    }
+    
+    /**
+     * Returns the size of the archive MD5 section in the directory file.
+     * 
+     * @return section size
+     */
+    int getArchiveMD5Size() {
+        return archiveMD5Size;
+    }
+
+    /**
+     * Returns the MD5 checksum of the directory tree.
+     * 
+     * @return MD5 checksum or {@code null} if the section is missing
+     */
+    public byte[] getTreeMD5() {
+        return treeMD5 == null ? null : treeMD5.clone();
+    }
+
+    /**
+     * Returns the MD5 checksum of the archive MD5 section.
+     * 
+     * @return MD5 checksum or {@code null} if the section is missing
+     */
+    public byte[] getArchiveMD5SectionMD5() {
+        return archiveMD5SectionMD5 == null ? null : archiveMD5SectionMD5.clone();
+    }
+
+    /**
+     * Returns the third MD5 checksum of the other MD5 section, which is
+     * believed to cover the whole directory file.
+     * 
+     * @return MD5 checksum or {@code null} if the section is missing
+     */
+    public byte[] getWholeFileMD5() {
+        return wholeFileMD5 == null ? null : wholeFileMD5.clone();
+    }
+
+    /**
+     * Returns the public key of the signature section.
+     * 
+     * @return public key or {@code null} if the archive isn't signed
+     */
+    public byte[] getPublicKey() {
+        return publicKey == null ? null : publicKey.clone();
+    }
+
+    /**
+     * Returns the signature of the signature section.
+     * 
+     * @return signature or {@code null} if the archive isn't signed
+     */
+    public byte[] getSignature() {
+        return signature == null ? null : signature.clone();
+    }
+}
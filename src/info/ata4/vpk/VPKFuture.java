@@ -0,0 +1,82 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future that is completed by the completion handler callbacks of an
+ * asynchronous operation. The operation can't be cancelled.
+ *
+ * @param <V> result type
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKFuture<V> implements Future<V>, CompletionHandler<V, Object> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private V result;
+    private Throwable failure;
+
+    @Override
+    public void completed(V result, Object attachment) {
+        this.result = result;
+        done.countDown();
+    }
+
+    @Override
+    public void failed(Throwable failure, Object attachment) {
+        this.failure = failure;
+        done.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+
+        return getResult();
+    }
+
+    private V getResult() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Glob patterns for entry paths, using the syntax of
+ * {@link java.nio.file.FileSystem#getPathMatcher}:
+ * <ul>
+ * <li>{@code *} matches any number of characters within a directory</li>
+ * <li>{@code **} matches any number of characters across directories</li>
+ * <li>{@code ?} matches exactly one character except "/"</li>
+ * <li>{@code [abc]}, {@code [a-z]} and {@code [!abc]} match one character of
+ * a set</li>
+ * <li>{@code {a,b}} matches one of the comma-separated sub-patterns</li>
+ * <li>{@code \} escapes the following character</li>
+ * </ul>
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public final class VPKGlob {
+
+    private static final String REGEX_META = ".^$+()|[]{}\\*?";
+
+    private VPKGlob() {
+    }
+
+    /**
+     * Compiles a glob pattern.
+     *
+     * @param glob glob pattern
+     * @return regular expression that matches the same paths
+     * @throws PatternSyntaxException if the pattern is invalid
+     */
+    public static Pattern compile(String glob) {
+        return Pattern.compile(toRegex(glob));
+    }
+
+    /**
+     * Converts a glob pattern to a regular expression.
+     *
+     * @param glob glob pattern
+     * @return regular expression
+     * @throws PatternSyntaxException if the pattern is invalid
+     */
+    public static String toRegex(String glob) {
+        StringBuilder sb = new StringBuilder("^");
+        boolean inGroup = false;
+
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        sb.append(".*");
+                        i++;
+                    } else {
+                        sb.append("[^/]*");
+                    }
+                    break;
+
+                case '?':
+                    sb.append("[^/]");
+                    break;
+
+                case '{':
+                    if (inGroup) {
+                        throw new PatternSyntaxException("Nested groups", glob, i);
+                    }
+                    sb.append("(?:");
+                    inGroup = true;
+                    break;
+
+                case '}':
+                    if (inGroup) {
+                        sb.append(')');
+                        inGroup = false;
+                    } else {
+                        sb.append("\\}");
+                    }
+                    break;
+
+                case ',':
+                    sb.append(inGroup ? "|" : ",");
+                    break;
+
+                case '[':
+                    i = appendClass(sb, glob, i);
+                    break;
+
+                case '\\':
+                    if (++i == glob.length()) {
+                        throw new PatternSyntaxException("Missing escaped character", glob, i);
+                    }
+                    appendLiteral(sb, glob.charAt(i));
+                    break;
+
+                default:
+                    appendLiteral(sb, c);
+            }
+        }
+
+        if (inGroup) {
+            throw new PatternSyntaxException("Missing '}'", glob, glob.length());
+        }
+
+        return sb.append('$').toString();
+    }
+
+    private static int appendClass(StringBuilder sb, String glob, int start) {
+        int i = start + 1;
+
+        sb.append("[[^/]&&[");
+
+        if (i < glob.length() && glob.charAt(i) == '!') {
+            sb.append('^');
+            i++;
+        }
+
+        for (; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+
+            if (c == ']' && i > start + 1) {
+                sb.append("]]");
+                return i;
+            }
+
+            if (c == '\\' || c == '[' || c == '&' || c == '^' || c == ']') {
+                sb.append('\\');
+            }
+
+            sb.append(c);
+        }
+
+        throw new PatternSyntaxException("Missing ']'", glob, start);
+    }
+
+    private static void appendLiteral(StringBuilder sb, char c) {
+        if (REGEX_META.indexOf(c) >= 0) {
+            sb.append('\\');
+        }
+        sb.append(c);
+    }
+}
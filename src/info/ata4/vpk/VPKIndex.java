@@ -0,0 +1,81 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Entry index of a VPK archive.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+interface VPKIndex {
+    
+    /**
+     * Adds an entry read from the directory tree.
+     * 
+     * @param type file type
+     * @param dir directory path, including the trailing slash
+     * @param name buffer with the UTF-8 encoded file name without extension
+     * @param nameLength number of valid bytes in the name buffer
+     * @param crc32 CRC32 checksum
+     * @param preload preload data buffer, contains the uncompressed size for
+     *                compressed entries
+     * @param preloadSize number of valid bytes in the preload buffer
+     * @param chunkIndex chunk file index, including
+     *                   {@link VPKArchive#CHUNK_FLAG_COMPRESSED} for compressed
+     *                   entries
+     * @param offset data offset in the chunk file
+     * @param size data size in the chunk file
+     */
+    void add(String type, String dir, byte[] name, int nameLength, long crc32,
+            byte[] preload, int preloadSize, int chunkIndex, int offset, int size);
+    
+    /**
+     * Called after all entries of the directory tree have been added.
+     */
+    void complete();
+    
+    /**
+     * Returns the layout of the directory file the entries were loaded from.
+     * 
+     * @return archive layout
+     */
+    VPKLayout getLayout();
+    
+    List<VPKEntry> getEntries();
+    
+    List<VPKEntry> getEntriesForDir(String dir);
+    
+    List<VPKEntry> getEntriesForType(String type);
+    
+    VPKEntry getEntry(String path);
+    
+    /**
+     * Finds an entry by path, ignoring the case of ASCII letters and treating
+     * "\" like "/".
+     * 
+     * @param path entry path
+     * @return matching entry or {@code null}
+     */
+    VPKEntry findEntry(CharSequence path);
+    
+    /**
+     * Finds an entry by the UTF-8 encoded path in the remaining bytes of a
+     * buffer, like {@link #findEntry(CharSequence)}.
+     * 
+     * @param path buffer with the entry path
+     * @return matching entry or {@code null}
+     */
+    VPKEntry findEntry(ByteBuffer path);
+    
+    void clear();
+}
@@ -0,0 +1,176 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar file that stores a {@link VPKCompactIndex} together with the state of
+ * the directory file it was created from. The cache is only used if the size,
+ * modification time and the checksum of the directory tree still match.
+ * <p>
+ * Reading the cache saves decoding the tree and building the lookup tables,
+ * but not all work: the directory tree is still checksummed once per load,
+ * since a changed tree may keep its size and modification time, and the
+ * columns are copied out of the cache file.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKIndexCache {
+
+    private static final int MAGIC = 0x494b5056; // "VPKI"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 48;
+
+    private final File cacheFile;
+
+    VPKIndexCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Reads the cached index for a directory file.
+     *
+     * @param index empty index to read into
+     * @param dirFile directory file
+     * @param dirBuffer buffer of the directory file
+     * @return true if the cache was valid and has been read, false if it is
+     *         missing, outdated or can't be read
+     */
+    boolean read(VPKCompactIndex index, File dirFile, ByteBuffer dirBuffer) {
+        if (!cacheFile.isFile()) {
+            return false;
+        }
+
+        try (FileChannel fc = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            if (fc.size() < HEADER_SIZE || fc.size() > Integer.MAX_VALUE) {
+                return false;
+            }
+
+            ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            bb.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (bb.getInt() != MAGIC || bb.getInt() != VERSION) {
+                return false;
+            }
+
+            long dirSize = bb.getLong();
+            long dirTime = bb.getLong();
+            int treeEnd = bb.getInt();
+            int treeCrc = bb.getInt();
+            int dataSize = bb.getInt();
+            int dataCrc = bb.getInt();
+            bb.getLong();
+
+            // check if the directory file is still the same
+            if (dirSize != dirFile.length() || dirTime != dirFile.lastModified()) {
+                return false;
+            }
+
+            if (treeEnd > dirBuffer.capacity() || treeCrc != checksum(dirBuffer, 0, treeEnd)) {
+                return false;
+            }
+
+            // check if the cache itself is intact
+            if (dataSize != bb.remaining() || dataCrc != checksum(bb, HEADER_SIZE, dataSize)) {
+                return false;
+            }
+
+            index.read(bb);
+
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            // unreadable or invalid caches are treated like missing ones
+            index.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Writes an index to the cache. The file is replaced atomically where
+     * supported, so concurrent readers never see a partially written cache.
+     * If the cache can't be written, it is left unchanged.
+     *
+     * @param index completed index
+     * @param dirFile directory file
+     * @param dirBuffer buffer of the directory file
+     * @param treeEnd end position of the directory tree
+     */
+    void write(VPKCompactIndex index, File dirFile, ByteBuffer dirBuffer, int treeEnd) {
+        int dataSize = index.getSerializedSize();
+
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + dataSize);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        bb.position(HEADER_SIZE);
+        index.write(bb);
+
+        bb.rewind();
+        bb.putInt(MAGIC);
+        bb.putInt(VERSION);
+        bb.putLong(dirFile.length());
+        bb.putLong(dirFile.lastModified());
+        bb.putInt(treeEnd);
+        bb.putInt(checksum(dirBuffer, 0, treeEnd));
+        bb.putInt(dataSize);
+        bb.putInt(checksum(bb, HEADER_SIZE, dataSize));
+        bb.putLong(0);
+        bb.rewind();
+
+        Path target = cacheFile.toPath();
+        Path tmp = null;
+
+        try {
+            tmp = Files.createTempFile(target.toAbsolutePath().getParent(), cacheFile.getName(), ".tmp");
+
+            try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (bb.hasRemaining()) {
+                    fc.write(bb);
+                }
+            }
+
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            // the cache is optional, the index is rebuilt on the next load
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ex2) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static int checksum(ByteBuffer bb, int offset, int length) {
+        ByteBuffer bbCheck = bb.duplicate();
+        bbCheck.limit(offset + length);
+        bbCheck.position(offset);
+
+        CRC32 crc = new CRC32();
+        VPKEntry.updateCRC32(crc, bbCheck, null);
+
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+/**
+ * Entry index modes for {@link VPKArchive}.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public enum VPKIndexMode {
+    
+    /**
+     * One {@link VPKEntry} object per file, stored in hash maps by path,
+     * directory and type.
+     */
+    DEFAULT,
+    
+    /**
+     * Entry fields are stored in primitive arrays and type/directory strings
+     * are shared. {@link VPKEntry} objects are only created when requested and
+     * aren't retained by the archive.
+     */
+    COMPACT,
+    
+    /**
+     * Only the positions of the type/directory sections are read on load. A
+     * section is decoded the first time it is accessed by a lookup. The entry
+     * list returned by {@link VPKArchive#getEntries()} is ordered by decoding
+     * time.
+     */
+    LAZY
+}
@@ -0,0 +1,142 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with power-of-two buckets. Recording doesn't lock or
+ * allocate, so it can be used on hot paths by multiple threads. Percentiles
+ * are accurate to a factor of two.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKLatencyHistogram {
+    
+    private static final int BUCKETS = 64;
+    
+    // bucket i counts durations in [2^(i-1), 2^i) ns, bucket 0 counts zero
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    /**
+     * Records a duration.
+     * 
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        
+        for (long current; nanos > (current = max.get());) {
+            if (max.compareAndSet(current, nanos)) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of recorded durations.
+     * 
+     * @return number of durations
+     */
+    public long getCount() {
+        return count.get();
+    }
+    
+    /**
+     * Returns the sum of all recorded durations.
+     * 
+     * @param unit time unit of the result
+     * @return total duration
+     */
+    public long getTotal(TimeUnit unit) {
+        return unit.convert(total.get(), TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns the mean of all recorded durations.
+     * 
+     * @param unit time unit of the result
+     * @return mean duration or 0 if nothing was recorded
+     */
+    public double getMean(TimeUnit unit) {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n / unit.toNanos(1);
+    }
+    
+    /**
+     * Returns the longest recorded duration.
+     * 
+     * @param unit time unit of the result
+     * @return maximum duration
+     */
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns an upper bound for the given percentile of the recorded
+     * durations.
+     * 
+     * @param percentile percentile between 0 and 100
+     * @param unit time unit of the result
+     * @return upper bound of the bucket that contains the percentile
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        
+        long n = count.get();
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank && seen > 0) {
+                long bound = i == 0 ? 0 : (1L << i) - 1;
+                return unit.convert(Math.min(bound, max.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        
+        return getMax(unit);
+    }
+    
+    /**
+     * Clears all recorded durations.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("n=%d, mean=%.1fus, p50=%dus, p99=%dus, max=%dus",
+                getCount(), getMean(TimeUnit.MICROSECONDS),
+                getPercentile(50, TimeUnit.MICROSECONDS),
+                getPercentile(99, TimeUnit.MICROSECONDS),
+                getMax(TimeUnit.MICROSECONDS));
+    }
+}
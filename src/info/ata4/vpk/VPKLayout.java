@@ -0,0 +1,183 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.util.Arrays;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Immutable layout of a loaded directory file: the file itself, the names of
+ * its chunk files and the sizes of its header and directory tree. Each load
+ * creates a new layout that is kept by the index built from it, so entries of
+ * an index always resolve against the files they were loaded from, even after
+ * the archive has loaded another file.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+final class VPKLayout {
+
+    /**
+     * Layout of an archive that hasn't been loaded yet.
+     */
+    static final VPKLayout EMPTY = new VPKLayout(null, 1, 0, 0, 0, null);
+
+    private final File file;
+    private final String vpkName;
+    private final boolean multiChunk;
+    private final int version;
+    private final int headerSize;
+    private final int treeSize;
+    private final int fileDataSize;
+    private final VPKFooter footer;
+
+    // chunk files by index, created on demand
+    private volatile File[] chunkFiles = new File[0];
+
+    /**
+     * Creates a new layout. Like {@link VPKArchive#load}, the name of the
+     * directory file decides if the archive has chunk files.
+     *
+     * @param file directory file
+     * @param version archive version
+     * @param headerSize size of the header
+     * @param treeSize size of the directory tree
+     * @param fileDataSize size of the entry data stored after the tree
+     * @param footer footer sections of a version 2 archive or {@code null}
+     */
+    VPKLayout(File file, int version, int headerSize, int treeSize, int fileDataSize,
+            VPKFooter footer) {
+        String name = file == null ? "" : FilenameUtils.getBaseName(file.getName());
+
+        // it must be a multichunk VPK if it ends with _dir
+        this.multiChunk = name.endsWith("_dir");
+
+        // strip "_dir"
+        this.vpkName = multiChunk ? name.substring(0, name.length() - 4) : name;
+        this.file = file;
+        this.version = version;
+        this.headerSize = headerSize;
+        this.treeSize = treeSize;
+        this.fileDataSize = fileDataSize;
+        this.footer = footer;
+    }
+
+    /**
+     * Returns the directory file.
+     *
+     * @return directory file or {@code null} for {@link #EMPTY}
+     */
+    File getFile() {
+        return file;
+    }
+
+    boolean isMultiChunk() {
+        return multiChunk;
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the size of the header of the directory file.
+     *
+     * @return header size in bytes
+     */
+    int getHeaderSize() {
+        return headerSize;
+    }
+
+    /**
+     * Returns the size of the directory tree.
+     *
+     * @return tree size in bytes
+     */
+    int getTreeSize() {
+        return treeSize;
+    }
+
+    /**
+     * Returns the size of the entry data stored in the directory file after
+     * the directory tree.
+     *
+     * @return size of the embedded data in bytes
+     */
+    int getFileDataSize() {
+        return fileDataSize;
+    }
+
+    /**
+     * Returns the footer sections of a version 2 archive.
+     *
+     * @return footer or {@code null}
+     */
+    VPKFooter getFooter() {
+        return footer;
+    }
+
+    /**
+     * Returns the file that contains the data for the given chunk index.
+     *
+     * @param chunkIndex chunk index
+     * @return chunk file
+     */
+    File getChunkFile(int chunkIndex) {
+        if (!multiChunk || chunkIndex == VPKArchive.CHUNK_INDEX_DIR) {
+            return file;
+        }
+
+        File[] files = chunkFiles;
+
+        if (chunkIndex < files.length && files[chunkIndex] != null) {
+            return files[chunkIndex];
+        }
+
+        return resolveChunkFile(chunkIndex);
+    }
+
+    /**
+     * Creates the file for a chunk index and stores it in the chunk file
+     * table, so each chunk file name is only built once.
+     */
+    private synchronized File resolveChunkFile(int chunkIndex) {
+        File[] files = chunkFiles;
+
+        if (chunkIndex >= files.length) {
+            files = Arrays.copyOf(files, Math.max(chunkIndex + 1, files.length * 2));
+        } else if (files[chunkIndex] != null) {
+            return files[chunkIndex];
+        }
+
+        File chunkFile = VPKArchive.getChunkFile(file, vpkName, chunkIndex);
+        files[chunkIndex] = chunkFile;
+        chunkFiles = files;
+
+        return chunkFile;
+    }
+
+    /**
+     * Converts an offset from the directory tree or the archive MD5 section to
+     * an absolute offset in the chunk file. Data in the directory file is
+     * stored after the tree, so its offsets are relative to the end of the
+     * tree.
+     *
+     * @param chunkIndex chunk index
+     * @param offset relative offset
+     * @return absolute offset in the chunk file
+     */
+    int getChunkOffset(int chunkIndex, int offset) {
+        if (!multiChunk || chunkIndex == VPKArchive.CHUNK_INDEX_DIR) {
+            return offset + headerSize + treeSize;
+        }
+
+        return offset;
+    }
+}
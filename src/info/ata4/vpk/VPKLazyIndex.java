@@ -0,0 +1,308 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry index that decodes the directory tree on demand. The initial skim pass
+ * only records the position of every type/directory section and builds the
+ * directory tree with the entry counts and sizes. A section is decoded into a
+ * {@link VPKMapIndex} the first time a lookup touches it.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKLazyIndex implements VPKIndex {
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    // size of the fixed entry fields following the name
+    private static final int ENTRY_SIZE = 18;
+
+    private final VPKMapIndex decoded;
+    private final VPKTreeDecoder decoder;
+    private final ByteBuffer tree;
+    private final VPKDirectory root;
+    private final List<Section> sections = new ArrayList<>();
+    private final Map<String, List<Section>> typeSections = new HashMap<>();
+    private final Map<String, List<Section>> dirSections = new HashMap<>();
+    private int numDecoded;
+
+    /**
+     * Creates a new lazy index.
+     *
+     * @param archive archive the entries belong to
+     * @param layout layout of the directory file
+     * @param tree buffer of the directory file
+     */
+    VPKLazyIndex(VPKArchive archive, VPKLayout layout, ByteBuffer tree) {
+        this.decoded = new VPKMapIndex(archive, layout);
+        this.decoder = new VPKTreeDecoder(layout, tree);
+        this.tree = tree.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.root = new VPKDirectory(archive, null, "");
+    }
+
+    /**
+     * Scans the directory tree and records the position of each section without
+     * decoding any entries. The directory tree is completed afterwards.
+     *
+     * @param pos start position of the directory tree
+     * @return end position of the directory tree
+     * @throws VPKException if the tree is malformed
+     */
+    int skim(int pos) throws VPKException {
+        try {
+            tree.position(pos);
+
+            for (String type; !(type = readString()).isEmpty();) {
+                for (String dir; !(dir = readString()).isEmpty();) {
+                    Section section = new Section(type, VPKArchive.normalizeDir(dir), tree.position());
+
+                    sections.add(section);
+                    addSection(typeSections, section.type, section);
+                    addSection(dirSections, section.dir, section);
+
+                    VPKDirectory node = root.getOrCreate(section.dir);
+
+                    // skip entries, but check everything the decoder would
+                    // reject, so decoding a section later can't fail
+                    for (int nameLen; (nameLen = skipString()) > 0;) {
+                        if (nameLen > VPKTreeDecoder.MAX_STRING_SIZE) {
+                            throw new VPKException("String in directory tree is too long");
+                        }
+
+                        int entryPos = tree.position();
+                        int preloadSize = tree.getShort(entryPos + 4) & 0xffff;
+                        int chunkIndex = tree.getShort(entryPos + 6) & 0xffff;
+                        int term = tree.getShort(entryPos + 16) & 0xffff;
+
+                        if (term != 0xffff) {
+                            throw new VPKException("Unexpected terminator: " + term);
+                        }
+
+                        int dataSize = preloadSize + tree.getInt(entryPos + 12);
+
+                        if ((chunkIndex & VPKArchive.CHUNK_FLAG_COMPRESSED) != 0) {
+                            if (preloadSize != VPKCompression.HEADER_SIZE) {
+                                throw new VPKException("Invalid header of compressed entry");
+                            }
+                            dataSize = tree.getInt(entryPos + ENTRY_SIZE);
+                        }
+
+                        node.addEntry(dataSize);
+
+                        tree.position(entryPos + ENTRY_SIZE + preloadSize);
+                    }
+                }
+            }
+
+            root.complete();
+
+            return tree.position();
+        } catch (RuntimeException ex) {
+            throw new VPKException("Malformed directory tree", ex);
+        }
+    }
+
+    /**
+     * Returns the directory tree built by the skim pass.
+     *
+     * @return root directory
+     */
+    VPKDirectory getRootDirectory() {
+        return root;
+    }
+
+    @Override
+    public void add(String type, String dir, byte[] name, int nameLength, long crc32,
+            byte[] preload, int preloadSize, int chunkIndex, int offset, int size) {
+        decoded.add(type, dir, name, nameLength, crc32, preload, preloadSize,
+                chunkIndex, offset, size);
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public VPKLayout getLayout() {
+        return decoded.getLayout();
+    }
+
+    @Override
+    public synchronized List<VPKEntry> getEntries() {
+        decode(sections);
+        return snapshot(decoded.getEntries());
+    }
+
+    @Override
+    public synchronized List<VPKEntry> getEntriesForDir(String dir) {
+        decode(dirSections.get(dir));
+        return snapshot(decoded.getEntriesForDir(dir));
+    }
+
+    @Override
+    public synchronized List<VPKEntry> getEntriesForType(String type) {
+        decode(typeSections.get(type));
+        return snapshot(decoded.getEntriesForType(type));
+    }
+
+    @Override
+    public synchronized VPKEntry getEntry(String path) {
+        int typeIndex = path.lastIndexOf('.');
+        int dirIndex = path.lastIndexOf('/') + 1;
+
+        if (typeIndex < dirIndex) {
+            return null;
+        }
+
+        String dir = path.substring(0, dirIndex);
+        String type = path.substring(typeIndex + 1);
+        List<Section> dirList = dirSections.get(dir);
+
+        if (dirList != null) {
+            for (Section section : dirList) {
+                if (section.type.equals(type)) {
+                    decode(section);
+                }
+            }
+        }
+
+        return decoded.getEntry(path);
+    }
+
+    @Override
+    public synchronized VPKEntry findEntry(CharSequence path) {
+        if (numDecoded < sections.size()) {
+            for (Section section : sections) {
+                if (!section.decoded && VPKPathMatcher.matchesSection(path, section.dir, section.type)) {
+                    decode(section);
+                }
+            }
+        }
+
+        return decoded.findEntry(path);
+    }
+
+    @Override
+    public synchronized VPKEntry findEntry(ByteBuffer path) {
+        if (numDecoded < sections.size()) {
+            for (Section section : sections) {
+                if (!section.decoded && VPKPathMatcher.matchesSection(path, section.dir, section.type)) {
+                    decode(section);
+                }
+            }
+        }
+
+        return decoded.findEntry(path);
+    }
+
+    @Override
+    public synchronized void clear() {
+        decoded.clear();
+        sections.clear();
+        typeSections.clear();
+        dirSections.clear();
+        numDecoded = 0;
+    }
+
+    /**
+     * Returns a copy of a list of decoded entries while sections are still
+     * pending, since decoding further sections appends to the lists of the
+     * decoded index.
+     */
+    private List<VPKEntry> snapshot(List<VPKEntry> list) {
+        if (list == null || numDecoded == sections.size()) {
+            return list;
+        }
+        return Collections.unmodifiableList(new ArrayList<>(list));
+    }
+
+    private void decode(List<Section> list) {
+        if (list == null || numDecoded == sections.size()) {
+            return;
+        }
+
+        for (Section section : list) {
+            decode(section);
+        }
+    }
+
+    private void decode(Section section) {
+        if (section.decoded) {
+            return;
+        }
+
+        try {
+            decoder.decodeSection(section.offset, section.type, section.dir, decoded);
+        } catch (VPKException ex) {
+            // the skim pass already checked the structure of the section
+            throw new IllegalStateException(ex);
+        }
+
+        section.decoded = true;
+        numDecoded++;
+    }
+
+    private String readString() {
+        int start = tree.position();
+        int length = skipString();
+
+        if (length == 0) {
+            return "";
+        }
+
+        byte[] raw = new byte[length];
+        ByteBuffer bb = tree.duplicate();
+        bb.position(start);
+        bb.get(raw);
+
+        return new String(raw, CHARSET);
+    }
+
+    private int skipString() {
+        int start = tree.position();
+        while (tree.get() != 0) {
+            // find null terminator
+        }
+        return tree.position() - start - 1;
+    }
+
+    private static void addSection(Map<String, List<Section>> map, String key, Section section) {
+        List<Section> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(key, list);
+        }
+        list.add(section);
+    }
+
+    private static class Section {
+
+        private final String type;
+        private final String dir;
+        private final int offset;
+        private boolean decoded;
+
+        Section(String type, String dir, int offset) {
+            this.type = type;
+            this.dir = dir;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Entry index that keeps one {@link VPKEntry} per file in hash maps. The
+ * index isn't modified anymore once the archive has published it, so it can be
+ * read by multiple threads without locking.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKMapIndex implements VPKIndex {
+    
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private final VPKArchive archive;
+    private final VPKLayout layout;
+    private final List<VPKEntry> entries = new ArrayList<>();
+    private final Map<String, List<VPKEntry>> typeEntries = new HashMap<>();
+    private final Map<String, List<VPKEntry>> dirEntries = new HashMap<>();
+    private final Map<String, VPKEntry> pathEntries = new HashMap<>();
+    
+    // open addressing hash table for normalized path lookups, stores entry
+    // index + 1
+    private int[] table = new int[INITIAL_CAPACITY];
+
+    VPKMapIndex(VPKArchive archive, VPKLayout layout) {
+        this.archive = archive;
+        this.layout = layout;
+    }
+    
+    /**
+     * Creates a new index that starts with the entries of another index.
+     * 
+     * @param archive archive of the index
+     * @param layout layout of the directory file of the new entries
+     * @param other index to copy the entries from
+     */
+    VPKMapIndex(VPKArchive archive, VPKLayout layout, VPKMapIndex other) {
+        this.archive = archive;
+        this.layout = layout;
+        
+        for (VPKEntry entry : other.entries) {
+            add(entry);
+        }
+    }
+
+    @Override
+    public void add(String type, String dir, byte[] name, int nameLength, long crc32,
+            byte[] preload, int preloadSize, int chunkIndex, int offset, int size) {
+        int chunk = chunkIndex & ~VPKArchive.CHUNK_FLAG_COMPRESSED;
+        
+        VPKEntry entry = new VPKEntry(archive, layout.getChunkFile(chunk), true);
+        entry.setType(type);
+        entry.setName(new String(name, 0, nameLength, CHARSET));
+        entry.setDir(dir);
+        entry.setCRC32(crc32);
+        entry.setChunkIndex(chunk);
+        entry.setOffset(offset);
+        entry.setSize(size);
+        
+        if (chunk != chunkIndex) {
+            entry.setUncompressedSize(VPKCompression.getDataSize(preload, 0));
+        } else {
+            entry.setPreloadData(Arrays.copyOf(preload, preloadSize));
+        }
+        
+        add(entry);
+    }
+    
+    void add(VPKEntry entry) {
+        List<VPKEntry> typeList = typeEntries.get(entry.getType());
+        if (typeList == null) {
+            typeList = new ArrayList<>();
+            typeEntries.put(entry.getType(), typeList);
+        }
+        
+        List<VPKEntry> dirList = dirEntries.get(entry.getDir());
+        if (dirList == null) {
+            dirList = new ArrayList<>();
+            dirEntries.put(entry.getDir(), dirList);
+        }
+        
+        entries.add(entry);
+        typeList.add(entry);
+        dirList.add(entry);
+        pathEntries.put(entry.getPath(), entry);
+        
+        // keep the load factor at 0.5 or less
+        if (entries.size() * 2 > table.length) {
+            table = new int[table.length * 2];
+            for (int i = 0; i < entries.size(); i++) {
+                insert(i);
+            }
+        } else {
+            insert(entries.size() - 1);
+        }
+    }
+    
+    private void insert(int index) {
+        String path = entries.get(index).getPath();
+        int mask = table.length - 1;
+        int slot = spread(VPKPathMatcher.hash(0, path)) & mask;
+        
+        // later entries replace earlier ones with the same path, like in the
+        // path map
+        while (table[slot] != 0 && !entries.get(table[slot] - 1).getPath().equals(path)) {
+            slot = (slot + 1) & mask;
+        }
+        
+        table[slot] = index + 1;
+    }
+
+    @Override
+    public void complete() {
+    }
+
+    @Override
+    public VPKLayout getLayout() {
+        return layout;
+    }
+
+    @Override
+    public List<VPKEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    @Override
+    public List<VPKEntry> getEntriesForDir(String dir) {
+        List<VPKEntry> result = dirEntries.get(dir);
+        return result == null ? result : Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public List<VPKEntry> getEntriesForType(String type) {
+        List<VPKEntry> result = typeEntries.get(type);
+        return result == null ? result : Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public VPKEntry getEntry(String path) {
+        return pathEntries.get(path);
+    }
+
+    @Override
+    public VPKEntry findEntry(CharSequence path) {
+        int mask = table.length - 1;
+        
+        for (int slot = spread(VPKPathMatcher.hash(0, path)) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            VPKEntry entry = entries.get(table[slot] - 1);
+            if (VPKPathMatcher.matches(path, entry.getPath())) {
+                return entry;
+            }
+        }
+        
+        return null;
+    }
+
+    @Override
+    public VPKEntry findEntry(ByteBuffer path) {
+        int mask = table.length - 1;
+        
+        for (int slot = spread(VPKPathMatcher.hash(path)) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            VPKEntry entry = entries.get(table[slot] - 1);
+            if (VPKPathMatcher.matches(path, entry.getPath())) {
+                return entry;
+            }
+        }
+        
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        dirEntries.clear();
+        typeEntries.clear();
+        pathEntries.clear();
+        table = new int[INITIAL_CAPACITY];
+    }
+    
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+
+/**
+ * Receives measurements of the I/O and data accesses of an archive, see
+ * {@link VPKArchive#setMetrics}. The methods are called on the threads that
+ * access the archive, possibly concurrently, and should return quickly.
+ * Durations are measured with {@link System#nanoTime()}.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public interface VPKMetrics {
+    
+    /**
+     * Origin of the buffer returned by {@link VPKEntry#getData()}.
+     */
+    enum Source {
+        
+        /**
+         * The data is completely stored as preload data.
+         */
+        PRELOAD,
+        
+        /**
+         * The buffer is a slice of a chunk file mapping or a new mapping.
+         */
+        MAPPING,
+        
+        /**
+         * A previously created buffer was reused, either the buffer kept by
+         * the entry or one from the {@link VPKDataCache}.
+         */
+        CACHE,
+        
+        /**
+         * Preload and external data were copied into a new buffer.
+         */
+        COPY,
+        
+        /**
+         * Compressed data was decompressed into a new buffer.
+         */
+        DECOMPRESSION
+    }
+    
+    /**
+     * Called after the directory file of an archive has been loaded.
+     * 
+     * @param archive loaded archive
+     * @param file directory file
+     * @param nanos load time
+     */
+    void archiveLoaded(VPKArchive archive, File file, long nanos);
+    
+    /**
+     * Called after a chunk file has been mapped into memory.
+     * 
+     * @param file chunk file
+     * @param size mapped size in bytes
+     * @param nanos time to open and map the file
+     */
+    void chunkMapped(File file, long size, long nanos);
+    
+    /**
+     * Called after the data buffer of an entry has been created.
+     * 
+     * @param entry accessed entry
+     * @param source origin of the buffer
+     * @param nanos time to create the buffer
+     */
+    void dataAccessed(VPKEntry entry, Source source, long nanos);
+    
+    /**
+     * Called after a range of a chunk file has been read with a positional
+     * read, either for a batch of entries or a transfer to a channel.
+     * 
+     * @param file chunk file
+     * @param entries number of entries in the range
+     * @param bytes number of bytes read
+     * @param nanos read time
+     */
+    void chunkRead(File file, int entries, long bytes, long nanos);
+    
+    /**
+     * Called after the CRC32 checksum of an entry has been calculated.
+     * 
+     * @param entry checked entry
+     * @param nanos calculation time
+     */
+    void checksumCalculated(VPKEntry entry, long nanos);
+}
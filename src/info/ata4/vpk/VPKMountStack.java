@@ -0,0 +1,295 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Virtual file system over a stack of archives and loose directories. Like a
+ * search path, mounts that were added first take precedence: an entry hides
+ * all entries with the same path in mounts that were added after it.
+ * <p>
+ * All mounts are merged into one path index when the stack is first used
+ * after a change, so a lookup is a single hash lookup regardless of the
+ * number of mounts. The index also records which entries are shadowed. Call
+ * {@link #refresh()} after a mounted archive was reloaded or the contents of a
+ * loose directory have changed.
+ * <p>
+ * Loose files are represented by read-only entries without preload data and
+ * without a CRC32. Files without an extension are ignored, since they can't
+ * be stored in archives either.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKMountStack {
+
+    private final List<Mount> mounts = new ArrayList<>();
+    private volatile Index index;
+
+    /**
+     * Mounts an archive with a lower priority than all current mounts.
+     *
+     * @param archive loaded archive
+     */
+    public synchronized void mount(VPKArchive archive) {
+        if (archive == null) {
+            throw new NullPointerException();
+        }
+
+        mounts.add(new Mount(archive, null));
+        index = null;
+    }
+
+    /**
+     * Mounts a loose directory with a lower priority than all current mounts.
+     * Paths of the files inside are relative to the directory.
+     *
+     * @param dir directory
+     * @throws IOException if the directory doesn't exist
+     */
+    public synchronized void mount(File dir) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException("Not a directory: " + dir);
+        }
+
+        mounts.add(new Mount(null, dir));
+        index = null;
+    }
+
+    /**
+     * Removes an archive from the stack.
+     *
+     * @param archive mounted archive
+     * @return true if the archive was mounted
+     */
+    public synchronized boolean unmount(VPKArchive archive) {
+        return unmount(archive, null);
+    }
+
+    /**
+     * Removes a loose directory from the stack.
+     *
+     * @param dir mounted directory
+     * @return true if the directory was mounted
+     */
+    public synchronized boolean unmount(File dir) {
+        return unmount(null, dir);
+    }
+
+    private boolean unmount(VPKArchive archive, File dir) {
+        for (int i = 0; i < mounts.size(); i++) {
+            Mount mount = mounts.get(i);
+
+            if (mount.archive == archive && (dir == null || dir.equals(mount.dir))) {
+                mounts.remove(i);
+                index = null;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes all mounts.
+     */
+    public synchronized void clear() {
+        mounts.clear();
+        index = null;
+    }
+
+    /**
+     * Discards the merged index, so it is rebuilt from the current contents of
+     * all mounts on the next lookup.
+     */
+    public synchronized void refresh() {
+        index = null;
+    }
+
+    /**
+     * Returns the visible entry for the given path. If no mount contains the
+     * path, {@code null} will be returned.
+     *
+     * @param path full file path
+     * @return entry of the mount with the highest priority
+     * @throws IOException if a loose directory can't be read
+     */
+    public VPKEntry getEntry(String path) throws IOException {
+        return getIndex().visible.get(path);
+    }
+
+    /**
+     * Returns the entries for the given path that are hidden by the visible
+     * entry, in the order of their mount priority.
+     *
+     * @param path full file path
+     * @return list of shadowed entries, which is empty if there are none
+     * @throws IOException if a loose directory can't be read
+     */
+    public List<VPKEntry> getShadowedEntries(String path) throws IOException {
+        List<VPKEntry> list = getIndex().shadowed.get(path);
+        return list == null ? Collections.<VPKEntry>emptyList() : list;
+    }
+
+    /**
+     * Returns a list of all visible entries.
+     *
+     * @return entry list
+     * @throws IOException if a loose directory can't be read
+     */
+    public List<VPKEntry> getEntries() throws IOException {
+        return getIndex().entries;
+    }
+
+    /**
+     * Returns a list of all visible entries for the given directory. If the
+     * directory isn't used, {@code null} will be returned.
+     *
+     * @param dir directory path
+     * @return entry list inside the given directory
+     * @throws IOException if a loose directory can't be read
+     */
+    public List<VPKEntry> getEntriesForDir(String dir) throws IOException {
+        return getIndex().dirEntries.get(dir);
+    }
+
+    /**
+     * Returns a list of all visible entries for the given file type/extension.
+     * If the type isn't used, {@code null} will be returned.
+     *
+     * @param type file type
+     * @return entry list of the given type
+     * @throws IOException if a loose directory can't be read
+     */
+    public List<VPKEntry> getEntriesForType(String type) throws IOException {
+        return getIndex().typeEntries.get(type);
+    }
+
+    private Index getIndex() throws IOException {
+        Index current = index;
+
+        if (current == null) {
+            synchronized (this) {
+                current = index;
+                if (current == null) {
+                    current = new Index(mounts);
+                    index = current;
+                }
+            }
+        }
+
+        return current;
+    }
+
+    private static void addLooseEntries(File dir, String prefix, List<VPKEntry> entries)
+            throws IOException {
+        File[] files = dir.listFiles();
+
+        if (files == null) {
+            throw new IOException("Can't list directory " + dir);
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addLooseEntries(file, prefix + file.getName() + "/", entries);
+            } else if (file.getName().lastIndexOf('.') > 0) {
+                if (file.length() > Integer.MAX_VALUE) {
+                    throw new VPKException("File too large: " + file);
+                }
+
+                VPKEntry entry = new VPKEntry(file, true);
+                entry.setPath(prefix + file.getName());
+                entry.setOffset(0);
+                entry.setSize((int) file.length());
+                entries.add(entry);
+            }
+        }
+    }
+
+    private static class Mount {
+
+        private final VPKArchive archive;
+        private final File dir;
+
+        Mount(VPKArchive archive, File dir) {
+            this.archive = archive;
+            this.dir = dir;
+        }
+
+        List<VPKEntry> getEntries() throws IOException {
+            if (archive != null) {
+                return archive.getEntries();
+            }
+
+            List<VPKEntry> entries = new ArrayList<>();
+            addLooseEntries(dir, "", entries);
+            return entries;
+        }
+    }
+
+    /**
+     * Immutable merged index of all mounts.
+     */
+    private static class Index {
+
+        private final Map<String, VPKEntry> visible = new HashMap<>();
+        private final Map<String, List<VPKEntry>> shadowed = new HashMap<>();
+        private final Map<String, List<VPKEntry>> dirEntries = new HashMap<>();
+        private final Map<String, List<VPKEntry>> typeEntries = new HashMap<>();
+        private final List<VPKEntry> entries;
+
+        Index(List<Mount> mounts) throws IOException {
+            List<VPKEntry> list = new ArrayList<>();
+
+            for (Mount mount : mounts) {
+                for (VPKEntry entry : mount.getEntries()) {
+                    String path = entry.getPath();
+                    VPKEntry winner = visible.get(path);
+
+                    if (winner == null) {
+                        visible.put(path, entry);
+                        list.add(entry);
+                        addEntry(dirEntries, entry.getDir(), entry);
+                        addEntry(typeEntries, entry.getType(), entry);
+                    } else {
+                        addEntry(shadowed, path, entry);
+                    }
+                }
+            }
+
+            entries = Collections.unmodifiableList(list);
+
+            unmodifiable(shadowed);
+            unmodifiable(dirEntries);
+            unmodifiable(typeEntries);
+        }
+
+        private static void addEntry(Map<String, List<VPKEntry>> map, String key, VPKEntry entry) {
+            List<VPKEntry> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                map.put(key, list);
+            }
+            list.add(entry);
+        }
+
+        private static void unmodifiable(Map<String, List<VPKEntry>> map) {
+            for (Map.Entry<String, List<VPKEntry>> mapEntry : map.entrySet()) {
+                mapEntry.setValue(Collections.unmodifiableList(mapEntry.getValue()));
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hashing and matching of entry paths that ignores the case of ASCII letters
+ * and treats "\" like "/". Paths are compared by their UTF-8 encoding, which is
+ * produced on the fly for character sequences, so no normalized copies of the
+ * paths are created.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+final class VPKPathMatcher {
+
+    private VPKPathMatcher() {
+    }
+
+    /**
+     * Normalizes a single byte or character.
+     *
+     * @param c byte value or character
+     * @return normalized value
+     */
+    static int normalize(int c) {
+        if (c == '\\') {
+            return '/';
+        }
+        if (c >= 'A' && c <= 'Z') {
+            return c + ('a' - 'A');
+        }
+        return c;
+    }
+
+    /**
+     * Continues a hash with the UTF-8 encoding of a character sequence.
+     *
+     * @param h previous hash value
+     * @param str character sequence
+     * @return new hash value
+     */
+    static int hash(int h, CharSequence str) {
+        for (int i = 0; i < str.length();) {
+            char c = str.charAt(i);
+
+            if (c < 0x80) {
+                h = 31 * h + normalize(c);
+                i++;
+                continue;
+            }
+
+            int cp = Character.codePointAt(str, i);
+            int n = utf8Length(cp);
+
+            for (int k = 0; k < n; k++) {
+                h = 31 * h + utf8Byte(cp, n, k);
+            }
+
+            i += Character.charCount(cp);
+        }
+
+        return h;
+    }
+
+    /**
+     * Continues a hash with UTF-8 bytes.
+     *
+     * @param h previous hash value
+     * @param bytes byte array
+     * @param off start offset
+     * @param len number of bytes
+     * @return new hash value
+     */
+    static int hash(int h, byte[] bytes, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + normalize(bytes[i] & 0xff);
+        }
+        return h;
+    }
+
+    /**
+     * Calculates the hash of the remaining UTF-8 bytes of a buffer without
+     * changing its position.
+     *
+     * @param bb byte buffer
+     * @return hash value
+     */
+    static int hash(ByteBuffer bb) {
+        int h = 0;
+        for (int i = bb.position(); i < bb.limit(); i++) {
+            h = 31 * h + normalize(bb.get(i) & 0xff);
+        }
+        return h;
+    }
+
+    /**
+     * Matches a part of a path in a character sequence.
+     *
+     * @param path path to match
+     * @param pos start position in the path
+     * @param part expected part
+     * @return position after the part or -1 if it doesn't match
+     */
+    static int match(CharSequence path, int pos, CharSequence part) {
+        if (pos < 0 || pos + part.length() > path.length()) {
+            return -1;
+        }
+
+        for (int i = 0; i < part.length(); i++, pos++) {
+            if (normalize(path.charAt(pos)) != normalize(part.charAt(i))) {
+                return -1;
+            }
+        }
+
+        return pos;
+    }
+
+    /**
+     * Matches a part of a path in a character sequence with UTF-8 bytes.
+     *
+     * @param path path to match
+     * @param pos start position in the path
+     * @param part byte array with the expected part
+     * @param off start offset of the part
+     * @param len length of the part in bytes
+     * @return position after the part or -1 if it doesn't match
+     */
+    static int match(CharSequence path, int pos, byte[] part, int off, int len) {
+        if (pos < 0) {
+            return -1;
+        }
+
+        int end = off + len;
+
+        for (int i = off; i < end;) {
+            int b = part[i] & 0xff;
+
+            if (b < 0x80) {
+                if (pos >= path.length() || normalize(path.charAt(pos)) != normalize(b)) {
+                    return -1;
+                }
+                pos++;
+                i++;
+                continue;
+            }
+
+            // decode multi-byte sequence
+            int n = b >= 0xf0 ? 4 : b >= 0xe0 ? 3 : 2;
+
+            if (i + n > end || pos >= path.length()) {
+                return -1;
+            }
+
+            int cp = b & (0x3f >> (n - 1));
+            for (int k = 1; k < n; k++) {
+                cp = (cp << 6) | (part[i + k] & 0x3f);
+            }
+
+            if (Character.codePointAt(path, pos) != cp) {
+                return -1;
+            }
+
+            pos += Character.charCount(cp);
+            i += n;
+        }
+
+        return pos;
+    }
+
+    /**
+     * Matches a part of a path in UTF-8 bytes.
+     *
+     * @param path buffer with the path to match
+     * @param pos absolute start position in the buffer
+     * @param part expected part
+     * @return position after the part or -1 if it doesn't match
+     */
+    static int match(ByteBuffer path, int pos, CharSequence part) {
+        if (pos < 0) {
+            return -1;
+        }
+
+        int limit = path.limit();
+
+        for (int i = 0; i < part.length();) {
+            char c = part.charAt(i);
+
+            if (c < 0x80) {
+                if (pos >= limit || normalize(path.get(pos) & 0xff) != normalize(c)) {
+                    return -1;
+                }
+                pos++;
+                i++;
+                continue;
+            }
+
+            int cp = Character.codePointAt(part, i);
+            int n = utf8Length(cp);
+
+            if (pos + n > limit) {
+                return -1;
+            }
+
+            for (int k = 0; k < n; k++, pos++) {
+                if ((path.get(pos) & 0xff) != utf8Byte(cp, n, k)) {
+                    return -1;
+                }
+            }
+
+            i += Character.charCount(cp);
+        }
+
+        return pos;
+    }
+
+    /**
+     * Matches a part of a path in UTF-8 bytes with UTF-8 bytes.
+     *
+     * @param path buffer with the path to match
+     * @param pos absolute start position in the buffer
+     * @param part byte array with the expected part
+     * @param off start offset of the part
+     * @param len length of the part in bytes
+     * @return position after the part or -1 if it doesn't match
+     */
+    static int match(ByteBuffer path, int pos, byte[] part, int off, int len) {
+        if (pos < 0 || pos + len > path.limit()) {
+            return -1;
+        }
+
+        for (int i = off; i < off + len; i++, pos++) {
+            if (normalize(path.get(pos) & 0xff) != normalize(part[i] & 0xff)) {
+                return -1;
+            }
+        }
+
+        return pos;
+    }
+
+    /**
+     * Checks if a path in a character sequence matches a full entry path.
+     *
+     * @param path path to match
+     * @param entryPath entry path
+     * @return true if the paths match
+     */
+    static boolean matches(CharSequence path, String entryPath) {
+        return path.length() == entryPath.length() && match(path, 0, entryPath) >= 0;
+    }
+
+    /**
+     * Checks if the remaining UTF-8 bytes of a buffer match a full entry path.
+     *
+     * @param path buffer with the path to match
+     * @param entryPath entry path
+     * @return true if the paths match
+     */
+    static boolean matches(ByteBuffer path, String entryPath) {
+        return match(path, path.position(), entryPath) == path.limit();
+    }
+
+    /**
+     * Checks if a path in a character sequence may belong to an entry in the
+     * given directory with the given type.
+     *
+     * @param path path to match
+     * @param dir directory path with trailing slash
+     * @param type file type
+     * @return true if the path starts with the directory and ends with the type
+     */
+    static boolean matchesSection(CharSequence path, String dir, String type) {
+        int typeStart = path.length() - type.length();
+        int dirEnd = match(path, 0, dir);
+
+        return dirEnd >= 0 && typeStart > dirEnd && path.charAt(typeStart - 1) == '.'
+                && match(path, typeStart, type) >= 0;
+    }
+
+    /**
+     * Checks if the remaining UTF-8 bytes of a buffer may belong to an entry in
+     * the given directory with the given type.
+     *
+     * @param path buffer with the path to match
+     * @param dir directory path with trailing slash
+     * @param type file type
+     * @return true if the path starts with the directory and ends with the type
+     */
+    static boolean matchesSection(ByteBuffer path, String dir, String type) {
+        int typeStart = path.limit() - utf8Length(type);
+        int dirEnd = match(path, path.position(), dir);
+
+        return dirEnd >= 0 && typeStart > dirEnd && path.get(typeStart - 1) == '.'
+                && match(path, typeStart, type) >= 0;
+    }
+
+    private static int utf8Length(CharSequence str) {
+        int len = 0;
+        for (int i = 0; i < str.length();) {
+            int cp = Character.codePointAt(str, i);
+            len += utf8Length(cp);
+            i += Character.charCount(cp);
+        }
+        return len;
+    }
+
+    private static int utf8Length(int cp) {
+        if (cp < 0x80) {
+            return 1;
+        } else if (cp < 0x800) {
+            return 2;
+        } else if (cp < 0x10000) {
+            return 3;
+        } else {
+            return 4;
+        }
+    }
+
+    private static int utf8Byte(int cp, int n, int k) {
+        if (n == 1) {
+            return normalize(cp);
+        }
+
+        int shift = 6 * (n - 1 - k);
+
+        if (k == 0) {
+            return ((0xf00 >> n) & 0xff) | (cp >> shift);
+        }
+
+        return 0x80 | ((cp >> shift) & 0x3f);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Warms the page cache for the chunk file ranges of groups of entries before
+ * they are read. Java can't pass readahead hints to the operating system, so
+ * the ranges are warmed by touching every page of the shared chunk file
+ * mappings on a background thread.
+ * <p>
+ * In adaptive mode, the directories of accessed entries are recorded for each
+ * reading thread. The first access to a directory warms all entries of that
+ * directory and of the directories that were most often accessed right after
+ * it before. The entries are looked up on the background thread, so reading
+ * threads only pay for the bookkeeping.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKPrefetcher {
+
+    private static final int PAGE_SIZE = 4096;
+
+    // maximum size of a single warmed range
+    private static final int MAX_RANGE_SIZE = 16 << 20;
+
+    // number of recently warmed directories that aren't warmed again
+    private static final int MAX_WARM_DIRS = 256;
+
+    // number of directories with recorded transitions
+    private static final int MAX_TRANSITION_DIRS = 256;
+
+    // number of recorded successors per directory
+    private static final int MAX_TRANSITION_TARGETS = 16;
+
+    // number of successor directories that are warmed along with a directory
+    private static final int MAX_SUCCESSORS = 2;
+
+    private final VPKArchive archive;
+
+    // access counts of directory transitions, previous -> next -> count
+    private final Map<String, Map<String, Integer>> transitions = newLRUMap(MAX_TRANSITION_DIRS);
+    private final Map<String, Boolean> warmDirs = newLRUMap(MAX_WARM_DIRS);
+
+    // last accessed directory of each reading thread, replaced on clear()
+    private volatile ThreadLocal<String> lastDirs = new ThreadLocal<>();
+    private ExecutorService executor;
+
+    // receives the touched bytes, so the reads aren't optimized away
+    private volatile int sink;
+
+    VPKPrefetcher(VPKArchive archive) {
+        this.archive = archive;
+    }
+
+    private static <K, V> Map<K, V> newLRUMap(final int maxSize) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Records an access to an entry and warms its directory and the likely
+     * following directories if the directory wasn't warmed recently.
+     *
+     * @param entry accessed entry
+     */
+    void accessed(VPKEntry entry) {
+        String dir = entry.getDir();
+        ThreadLocal<String> lastDir = lastDirs;
+        String prevDir = lastDir.get();
+
+        // fast path for consecutive accesses in the same directory
+        if (dir.equals(prevDir)) {
+            return;
+        }
+
+        lastDir.set(dir);
+
+        final List<String> dirs;
+
+        synchronized (this) {
+            if (prevDir != null) {
+                Map<String, Integer> next = transitions.get(prevDir);
+                if (next == null) {
+                    next = newLRUMap(MAX_TRANSITION_TARGETS);
+                    transitions.put(prevDir, next);
+                }
+                Integer count = next.get(dir);
+                next.put(dir, count == null ? 1 : count + 1);
+            }
+
+            if (warmDirs.put(dir, Boolean.TRUE) != null) {
+                return;
+            }
+
+            dirs = new ArrayList<>();
+            dirs.add(dir);
+            dirs.addAll(getSuccessors(dir));
+        }
+
+        try {
+            getExecutor().submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    List<VPKEntry> entries = new ArrayList<>();
+
+                    for (String warmDir : dirs) {
+                        List<VPKEntry> dirEntries = archive.getEntriesForDir(warmDir);
+                        if (dirEntries != null) {
+                            entries.addAll(dirEntries);
+                        }
+                    }
+
+                    return warmSorted(sort(entries));
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // cleared concurrently, warming is only a hint
+        }
+    }
+
+    private List<String> getSuccessors(String dir) {
+        Map<String, Integer> next = transitions.get(dir);
+
+        if (next == null) {
+            return Collections.emptyList();
+        }
+
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>(next.entrySet());
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+
+        List<String> successors = new ArrayList<>();
+
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            if (successors.size() == MAX_SUCCESSORS) {
+                break;
+            }
+            if (!warmDirs.containsKey(candidate.getKey())) {
+                successors.add(candidate.getKey());
+            }
+        }
+
+        return successors;
+    }
+
+    /**
+     * Warms the chunk file ranges of the given entries on the background
+     * thread.
+     *
+     * @param entries entries to warm
+     * @return future for the number of warmed bytes
+     */
+    Future<Long> warm(Collection<VPKEntry> entries) {
+        final List<VPKEntry> copy = new ArrayList<>(entries);
+
+        return getExecutor().submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return warmSorted(sort(copy));
+            }
+        });
+    }
+
+    /**
+     * Returns the entries with external data in chunk order.
+     */
+    private static List<VPKEntry> sort(List<VPKEntry> entries) {
+        List<VPKEntry> sorted = new ArrayList<>(entries.size());
+
+        // preload data is already in memory
+        for (VPKEntry entry : entries) {
+            if (entry.getSize() > 0) {
+                sorted.add(entry);
+            }
+        }
+
+        Collections.sort(sorted, VPKEntry.CHUNK_ORDER);
+
+        return sorted;
+    }
+
+    private long warmSorted(List<VPKEntry> entries) throws IOException {
+        int maxGap = archive.getReadGap();
+        long warmed = 0;
+        File file = null;
+        long start = 0;
+        long end = 0;
+
+        // merge nearby entries into ranges, like batch reads
+        for (VPKEntry entry : entries) {
+            long entryStart = entry.getOffsetUnsigned();
+            long entryEnd = entryStart + entry.getSize();
+
+            if (file == null || !file.equals(entry.getFile()) || entryStart > end + maxGap
+                    || entryEnd - start > MAX_RANGE_SIZE) {
+                if (file != null) {
+                    warmed += touch(file, start, end);
+                }
+
+                if (Thread.currentThread().isInterrupted()) {
+                    return warmed;
+                }
+
+                file = entry.getFile();
+                start = entryStart;
+                end = entryEnd;
+            } else {
+                end = Math.max(end, entryEnd);
+            }
+        }
+
+        if (file != null) {
+            warmed += touch(file, start, end);
+        }
+
+        return warmed;
+    }
+
+    /**
+     * Reads one byte of every page of a chunk file range, which makes the
+     * operating system load the range into the page cache.
+     */
+    private long touch(File file, long start, long end) throws IOException {
+        ByteBuffer bb = archive.getChunkPool().slice(file, start, (int) (end - start));
+        int sum = 0;
+
+        for (int i = 0; i < bb.limit(); i += PAGE_SIZE) {
+            sum += bb.get(i);
+        }
+
+        if (bb.limit() > 0) {
+            sum += bb.get(bb.limit() - 1);
+        }
+
+        sink = sum;
+
+        return bb.limit();
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "VPK prefetch");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops pending warming and forgets the recorded accesses.
+     */
+    synchronized void clear() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        transitions.clear();
+        warmDirs.clear();
+        lastDirs = new ThreadLocal<>();
+    }
+}
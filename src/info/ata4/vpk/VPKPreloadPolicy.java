@@ -0,0 +1,39 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+/**
+ * Decides how many bytes of an entry are stored as preload data in the
+ * directory tree when writing an archive.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public interface VPKPreloadPolicy {
+    
+    /**
+     * Policy that doesn't preload any data.
+     */
+    VPKPreloadPolicy NONE = new VPKPreloadPolicy() {
+        @Override
+        public int getPreloadSize(String path, int size) {
+            return 0;
+        }
+    };
+    
+    /**
+     * Returns the number of bytes to preload for an entry. The result is
+     * clamped to the entry size and to {@link VPKWriter#MAX_PRELOAD_SIZE}.
+     * 
+     * @param path entry path
+     * @param size entry data size
+     * @return preload size in bytes
+     */
+    int getPreloadSize(String path, int size);
+}
@@ -0,0 +1,41 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.IOException;
+
+/**
+ * Listener for the progress of bulk operations on VPK entries. The methods may
+ * be called concurrently from worker threads.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public interface VPKProgressListener {
+    
+    /**
+     * Called after an entry has been processed successfully.
+     * 
+     * @param entry processed entry
+     * @param entriesDone number of entries processed so far
+     * @param entriesTotal total number of entries
+     * @param bytesDone number of bytes processed so far
+     * @param bytesTotal total number of bytes
+     */
+    void entryCompleted(VPKEntry entry, int entriesDone, int entriesTotal,
+            long bytesDone, long bytesTotal);
+    
+    /**
+     * Called if an entry couldn't be processed.
+     * 
+     * @param entry failed entry
+     * @param ex cause of the failure
+     */
+    void entryFailed(VPKEntry entry, IOException ex);
+}
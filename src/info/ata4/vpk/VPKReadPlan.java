@@ -0,0 +1,221 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Plan for reading the data of multiple entries at once. The entries are
+ * sorted by chunk file and offset and the data ranges of adjacent or nearby
+ * entries are merged into runs, so each run can be fetched with a single read.
+ * The bytes between the entries of a run are read as well and dropped. The
+ * entry buffers are slices of the run buffers.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKReadPlan {
+
+    // runs aren't extended beyond this size, larger entries get their own run
+    static final int MAX_RUN_SIZE = 16 << 20;
+
+    private final List<VPKEntry> entries;
+    private final ByteBuffer[] results;
+    private final List<Run> runs = new ArrayList<>();
+
+    /**
+     * Creates a read plan for a list of entries.
+     *
+     * @param entries entries to read
+     * @param maxGap maximum number of unused bytes between two entries that are
+     *               read together
+     * @throws IOException if the data of an entry without external data can't
+     *                     be created
+     */
+    VPKReadPlan(final List<VPKEntry> entries, int maxGap) throws IOException {
+        this.entries = entries;
+        this.results = new ByteBuffer[entries.size()];
+
+        Integer[] order = new Integer[entries.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return VPKEntry.CHUNK_ORDER.compare(entries.get(i1), entries.get(i2));
+            }
+        });
+
+        Run run = null;
+
+        for (int i : order) {
+            VPKEntry entry = entries.get(i);
+
+            // entries that are stored completely in the preload data don't
+            // require any reading
+            if (entry.getSize() == 0) {
+                results[i] = entry.getData();
+                continue;
+            }
+
+            long start = entry.getOffsetUnsigned();
+            long end = start + entry.getSize();
+
+            if (run == null || !run.file.equals(entry.getFile()) || start > run.end + maxGap
+                    || end - run.start > MAX_RUN_SIZE) {
+                run = new Run(entry.getFile(), start);
+                runs.add(run);
+            }
+
+            run.end = Math.max(run.end, end);
+            run.slots.add(i);
+        }
+    }
+
+    /**
+     * Returns the runs that need to be read.
+     *
+     * @return list of runs, sorted by chunk file and offset
+     */
+    List<Run> getRuns() {
+        return runs;
+    }
+
+    /**
+     * Reads all runs with blocking positional reads and creates the entry
+     * buffers.
+     *
+     * @param metrics metrics that receive the read times or {@code null}
+     * @return list of entry buffers in the order of the entry list
+     * @throws IOException if a chunk file can't be read
+     */
+    List<ByteBuffer> read(VPKMetrics metrics) throws IOException {
+        FileChannel fc = null;
+        File file = null;
+
+        try {
+            for (Run run : runs) {
+                // the runs are sorted by file, so each file is opened once
+                if (!run.file.equals(file)) {
+                    if (fc != null) {
+                        fc.close();
+                    }
+                    file = run.file;
+                    fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                }
+
+                ByteBuffer data = ByteBuffer.allocateDirect(run.getSize());
+                long start = System.nanoTime();
+
+                while (data.hasRemaining()) {
+                    if (fc.read(data, run.start + data.position()) < 0) {
+                        throw new EOFException("Unexpected end of " + run.file.getName());
+                    }
+                }
+
+                if (metrics != null) {
+                    metrics.chunkRead(run.file, run.slots.size(), run.getSize(),
+                            System.nanoTime() - start);
+                }
+
+                data.flip();
+                complete(run, data);
+            }
+        } finally {
+            if (fc != null) {
+                fc.close();
+            }
+        }
+
+        return getResults();
+    }
+
+    /**
+     * Creates the entry buffers for a run that has been read.
+     *
+     * @param run run
+     * @param data data of the complete run
+     * @throws IOException if the data of a compressed entry is corrupt
+     */
+    void complete(Run run, ByteBuffer data) throws IOException {
+        for (int slot : run.slots) {
+            VPKEntry entry = entries.get(slot);
+
+            ByteBuffer slice = data.duplicate();
+            slice.position((int) (entry.getOffsetUnsigned() - run.start));
+            slice.limit(slice.position() + entry.getSize());
+            slice = slice.slice();
+
+            byte[] preload = entry.getPreloadData();
+
+            if (entry.isCompressed()) {
+                slice = VPKCompression.inflate(slice, entry.getDataSize());
+            } else if (preload.length > 0) {
+                // concat preloaded and external data
+                ByteBuffer bb = ByteBuffer.allocateDirect(entry.getDataSize());
+                bb.put(preload);
+                bb.put(slice);
+                bb.rewind();
+                slice = bb;
+            }
+
+            slice.order(ByteOrder.LITTLE_ENDIAN);
+            results[slot] = slice;
+        }
+    }
+
+    /**
+     * Returns the entry buffers in the order of the entry list. All runs must
+     * be completed first.
+     *
+     * @return list of entry buffers
+     */
+    List<ByteBuffer> getResults() {
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    /**
+     * Data range in a chunk file that is read at once.
+     */
+    static class Run {
+
+        final File file;
+        final long start;
+        long end;
+        final List<Integer> slots = new ArrayList<>();
+
+        Run(File file, long start) {
+            this.file = file;
+            this.start = start;
+            this.end = start;
+        }
+
+        /**
+         * Returns the number of bytes of this run.
+         *
+         * @return run size
+         */
+        int getSize() {
+            return (int) (end - start);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics implementation that collects counters and latency histograms per
+ * chunk file and per entry type. It can be shared by multiple archives.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKStatistics implements VPKMetrics {
+    
+    private final ConcurrentMap<File, ChunkStatistics> chunks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TypeStatistics> types = new ConcurrentHashMap<>();
+    private final VPKLatencyHistogram loadLatency = new VPKLatencyHistogram();
+    private final VPKLatencyHistogram checksumLatency = new VPKLatencyHistogram();
+    private final AtomicLong checksumBytes = new AtomicLong();
+
+    @Override
+    public void archiveLoaded(VPKArchive archive, File file, long nanos) {
+        loadLatency.record(nanos);
+    }
+
+    @Override
+    public void chunkMapped(File file, long size, long nanos) {
+        ChunkStatistics stats = getChunk(file);
+        stats.mappings.incrementAndGet();
+        stats.mappedBytes.addAndGet(size);
+        stats.mapLatency.record(nanos);
+    }
+
+    @Override
+    public void dataAccessed(VPKEntry entry, Source source, long nanos) {
+        TypeStatistics stats = getType(entry.getType());
+        stats.accesses.get(source).incrementAndGet();
+        stats.bytes.addAndGet(entry.getDataSize());
+        stats.latency.record(nanos);
+        
+        if (entry.getSize() > 0) {
+            getChunk(entry.getFile()).bytesAccessed.addAndGet(entry.getSize());
+        }
+    }
+
+    @Override
+    public void chunkRead(File file, int entries, long bytes, long nanos) {
+        ChunkStatistics stats = getChunk(file);
+        stats.reads.incrementAndGet();
+        stats.bytesRead.addAndGet(bytes);
+        stats.readLatency.record(nanos);
+    }
+
+    @Override
+    public void checksumCalculated(VPKEntry entry, long nanos) {
+        checksumBytes.addAndGet(entry.getDataSize());
+        checksumLatency.record(nanos);
+    }
+    
+    private ChunkStatistics getChunk(File file) {
+        ChunkStatistics stats = chunks.get(file);
+        if (stats == null) {
+            ChunkStatistics newStats = new ChunkStatistics();
+            stats = chunks.putIfAbsent(file, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+    
+    private TypeStatistics getType(String type) {
+        TypeStatistics stats = types.get(type);
+        if (stats == null) {
+            TypeStatistics newStats = new TypeStatistics();
+            stats = types.putIfAbsent(type, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+    
+    /**
+     * Returns the statistics for each chunk file that has been accessed.
+     * 
+     * @return unmodifiable live view of the chunk statistics
+     */
+    public Map<File, ChunkStatistics> getChunkStatistics() {
+        return Collections.unmodifiableMap(chunks);
+    }
+    
+    /**
+     * Returns the statistics for each entry type that has been accessed.
+     * 
+     * @return unmodifiable live view of the type statistics
+     */
+    public Map<String, TypeStatistics> getTypeStatistics() {
+        return Collections.unmodifiableMap(types);
+    }
+    
+    /**
+     * Returns the histogram of the directory file load times.
+     * 
+     * @return load time histogram
+     */
+    public VPKLatencyHistogram getLoadLatency() {
+        return loadLatency;
+    }
+    
+    /**
+     * Returns the histogram of the CRC32 calculation times per entry.
+     * 
+     * @return checksum time histogram
+     */
+    public VPKLatencyHistogram getChecksumLatency() {
+        return checksumLatency;
+    }
+    
+    /**
+     * Returns the number of bytes that have been checksummed.
+     * 
+     * @return checksummed bytes
+     */
+    public long getChecksumBytes() {
+        return checksumBytes.get();
+    }
+    
+    /**
+     * Clears all collected statistics.
+     */
+    public void reset() {
+        chunks.clear();
+        types.clear();
+        loadLatency.reset();
+        checksumLatency.reset();
+        checksumBytes.set(0);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("load: ").append(loadLatency).append('\n');
+        sb.append("crc32: ").append(checksumBytes.get()).append(" bytes, ")
+                .append(checksumLatency).append('\n');
+        
+        for (Map.Entry<File, ChunkStatistics> entry : chunks.entrySet()) {
+            sb.append(entry.getKey().getName()).append(": ").append(entry.getValue()).append('\n');
+        }
+        
+        for (Map.Entry<String, TypeStatistics> entry : types.entrySet()) {
+            sb.append('.').append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Statistics for a single chunk file.
+     */
+    public static class ChunkStatistics {
+        
+        private final AtomicLong mappings = new AtomicLong();
+        private final AtomicLong mappedBytes = new AtomicLong();
+        private final AtomicLong bytesAccessed = new AtomicLong();
+        private final AtomicLong reads = new AtomicLong();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final VPKLatencyHistogram mapLatency = new VPKLatencyHistogram();
+        private final VPKLatencyHistogram readLatency = new VPKLatencyHistogram();
+        
+        /**
+         * Returns the number of memory mappings created for the file.
+         * 
+         * @return number of mappings
+         */
+        public long getMappings() {
+            return mappings.get();
+        }
+        
+        /**
+         * Returns the total size of all mappings created for the file.
+         * 
+         * @return mapped bytes
+         */
+        public long getMappedBytes() {
+            return mappedBytes.get();
+        }
+        
+        /**
+         * Returns the number of bytes of the file that were accessed through
+         * entry data buffers.
+         * 
+         * @return accessed bytes
+         */
+        public long getBytesAccessed() {
+            return bytesAccessed.get();
+        }
+        
+        /**
+         * Returns the number of positional reads of the file.
+         * 
+         * @return number of reads
+         */
+        public long getReads() {
+            return reads.get();
+        }
+        
+        /**
+         * Returns the number of bytes read with positional reads.
+         * 
+         * @return read bytes
+         */
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+        
+        /**
+         * Returns the histogram of the mapping times.
+         * 
+         * @return mapping time histogram
+         */
+        public VPKLatencyHistogram getMapLatency() {
+            return mapLatency;
+        }
+        
+        /**
+         * Returns the histogram of the positional read times.
+         * 
+         * @return read time histogram
+         */
+        public VPKLatencyHistogram getReadLatency() {
+            return readLatency;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d mappings (%d bytes), %d bytes accessed, %d reads (%d bytes), read %s",
+                    getMappings(), getMappedBytes(), getBytesAccessed(), getReads(),
+                    getBytesRead(), readLatency);
+        }
+    }
+    
+    /**
+     * Statistics for the entries of a single type.
+     */
+    public static class TypeStatistics {
+        
+        private final Map<Source, AtomicLong> accesses = new EnumMap<>(Source.class);
+        private final AtomicLong bytes = new AtomicLong();
+        private final VPKLatencyHistogram latency = new VPKLatencyHistogram();
+        
+        TypeStatistics() {
+            for (Source source : Source.values()) {
+                accesses.put(source, new AtomicLong());
+            }
+        }
+        
+        /**
+         * Returns the number of data accesses.
+         * 
+         * @return number of accesses
+         */
+        public long getAccesses() {
+            long sum = 0;
+            for (AtomicLong count : accesses.values()) {
+                sum += count.get();
+            }
+            return sum;
+        }
+        
+        /**
+         * Returns the number of data accesses with the given buffer origin.
+         * 
+         * @param source buffer origin
+         * @return number of accesses
+         */
+        public long getAccesses(Source source) {
+            return accesses.get(source).get();
+        }
+        
+        /**
+         * Returns the total data size of all accesses.
+         * 
+         * @return accessed bytes
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+        
+        /**
+         * Returns the histogram of the buffer creation times.
+         * 
+         * @return access time histogram
+         */
+        public VPKLatencyHistogram getLatency() {
+            return latency;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%d accesses (%d cached), %d bytes, %s",
+                    getAccesses(), getAccesses(Source.CACHE), getBytes(), latency);
+        }
+    }
+}
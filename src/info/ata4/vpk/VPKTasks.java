@@ -0,0 +1,84 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Helper for running a batch of tasks on an executor.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKTasks {
+    
+    private VPKTasks() {
+    }
+    
+    /**
+     * Runs all tasks and waits for their completion. If the first failed task
+     * threw an {@link IOException}, it is rethrown directly.
+     * 
+     * @param executor executor or {@code null} to use a temporary thread pool
+     * @param threads number of threads for the temporary thread pool
+     * @param tasks tasks to run
+     * @throws IOException if a task failed or the current thread was
+     *                     interrupted
+     */
+    static void runAll(ExecutorService executor, int threads,
+            List<? extends Callable<?>> tasks) throws IOException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        
+        ExecutorService exec = executor;
+        if (exec == null) {
+            exec = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        }
+        
+        List<Future<?>> futures = new ArrayList<>();
+        
+        try {
+            for (Callable<?> task : tasks) {
+                futures.add(exec.submit(task));
+            }
+            
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for tasks");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            
+            throw new IOException(cause);
+        } finally {
+            if (executor == null) {
+                exec.shutdownNow();
+            } else {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+}
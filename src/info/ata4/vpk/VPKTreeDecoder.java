@@ -0,0 +1,182 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decoder for the directory tree that works directly on the bytes of the
+ * mapped directory file. Type and directory strings are created once per
+ * section and entry names are passed to the index as raw bytes, so decoding
+ * entries doesn't allocate any objects unless the index requires them.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKTreeDecoder {
+
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    // maximum length of a string in the tree, including the terminator
+    static final int MAX_STRING_SIZE = 1024;
+
+    private final VPKLayout layout;
+    private final ByteBuffer tree;
+    private final byte[] str = new byte[MAX_STRING_SIZE + 1];
+    private final byte[] preload = new byte[0xffff];
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param layout layout of the directory file
+     * @param tree buffer of the directory file
+     */
+    VPKTreeDecoder(VPKLayout layout, ByteBuffer tree) {
+        this.layout = layout;
+        this.tree = tree.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Decodes the complete directory tree.
+     *
+     * @param pos start position of the directory tree
+     * @param target index to add the entries to
+     * @param dirTree directory tree to add the entries to
+     * @return end position of the directory tree
+     * @throws VPKException if the tree is malformed
+     */
+    int decode(int pos, VPKIndex target, VPKDirectory dirTree) throws VPKException {
+        try {
+            tree.position(pos);
+
+            for (int typeLen; (typeLen = readString()) > 0;) {
+                String type = new String(str, 0, typeLen, CHARSET);
+
+                for (int dirLen; (dirLen = readString()) > 0;) {
+                    String dir = normalizeDir(dirLen);
+                    VPKDirectory node = dirTree.getOrCreate(dir);
+                    decodeEntries(type, dir, target, node);
+                }
+            }
+        } catch (RuntimeException ex) {
+            throw new VPKException("Malformed directory tree", ex);
+        }
+
+        target.complete();
+        dirTree.complete();
+
+        return tree.position();
+    }
+
+    /**
+     * Decodes the entries of a single type/directory section.
+     *
+     * @param pos position of the first entry name of the section
+     * @param type file type of the section
+     * @param dir normalized directory path of the section
+     * @param target index to add the entries to
+     * @throws VPKException if the section is malformed
+     */
+    void decodeSection(int pos, String type, String dir, VPKIndex target) throws VPKException {
+        try {
+            tree.position(pos);
+            decodeEntries(type, dir, target, null);
+        } catch (RuntimeException ex) {
+            throw new VPKException("Malformed directory tree", ex);
+        }
+    }
+
+    private void decodeEntries(String type, String dir, VPKIndex target,
+            VPKDirectory node) throws VPKException {
+        for (int nameLen; (nameLen = readString()) > 0;) {
+            long crc32 = tree.getInt() & 0xffffffffL;
+            int preloadSize = tree.getShort() & 0xffff;
+            int chunkIndex = tree.getShort() & 0xffff;
+            int offset = tree.getInt();
+            int size = tree.getInt();
+
+            int term = tree.getShort() & 0xffff;
+
+            if (term != 0xffff) {
+                throw new VPKException("Unexpected terminator: " + term);
+            }
+
+            if (preloadSize > 0) {
+                tree.get(preload, 0, preloadSize);
+            }
+
+            int chunk = chunkIndex & ~VPKArchive.CHUNK_FLAG_COMPRESSED;
+            int dataSize = preloadSize + size;
+
+            if (chunk != chunkIndex) {
+                if (preloadSize != VPKCompression.HEADER_SIZE) {
+                    throw new VPKException("Invalid header of compressed entry");
+                }
+                dataSize = VPKCompression.getDataSize(preload, 0);
+            }
+
+            target.add(type, dir, str, nameLen, crc32, preload, preloadSize,
+                    chunkIndex, layout.getChunkOffset(chunk, offset), size);
+
+            if (node != null) {
+                node.addEntry(dataSize);
+            }
+        }
+    }
+
+    /**
+     * Reads a null-terminated string into the string buffer.
+     *
+     * @return string length in bytes, without the terminator
+     * @throws VPKException if the string is too long
+     */
+    private int readString() throws VPKException {
+        int len = 0;
+
+        for (byte b; (b = tree.get()) != 0;) {
+            if (len == MAX_STRING_SIZE) {
+                throw new VPKException("String in directory tree is too long");
+            }
+            str[len++] = b;
+        }
+
+        return len;
+    }
+
+    /**
+     * Creates the directory path from the string buffer, with the same result
+     * as {@link VPKArchive#normalizeDir(String)}.
+     *
+     * @param len string length in bytes
+     * @return normalized directory path
+     */
+    private String normalizeDir(int len) {
+        // fix root dir
+        if (len == 1 && str[0] == ' ') {
+            return "";
+        }
+
+        // separator should always be "/"
+        for (int i = 0; i < len; i++) {
+            if (str[i] == '\\') {
+                str[i] = '/';
+            }
+        }
+
+        // add missing slash, the buffer has room for one more byte
+        if (str[len - 1] != '/') {
+            str[len++] = '/';
+        }
+
+        return new String(str, 0, len, CHARSET);
+    }
+}
@@ -0,0 +1,714 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import info.ata4.vpk.VPKWriter.FileSource;
+import info.ata4.vpk.VPKWriter.Item;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Incremental updater for multi-chunk VPK archives. New and changed entries
+ * are appended to the last chunk file or to new chunk files and only the
+ * directory file is rewritten. Replaced and removed entries are no longer
+ * referenced by the directory tree, but their data stays in the chunk files
+ * as dead space until {@link #compact()} is called.
+ * <p>
+ * The archive is reloaded in place after each update. Threads that read
+ * from the archive during a commit keep seeing the previous entries until the
+ * new directory file has been loaded, since committed data is only appended.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKUpdater {
+
+    private static final Comparator<Item> ITEM_OFFSET_ORDER = new Comparator<Item>() {
+        @Override
+        public int compare(Item i1, Item i2) {
+            return Long.compare(i1.entry.getOffsetUnsigned(), i2.entry.getOffsetUnsigned());
+        }
+    };
+
+    private final VPKArchive archive;
+    private final VPKWriter writer = new VPKWriter();
+    private final Set<String> removed = new HashSet<>();
+
+    /**
+     * Creates a new updater.
+     *
+     * @param archive loaded multi-chunk archive to update
+     */
+    public VPKUpdater(VPKArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Adds or replaces an entry with the contents of a file.
+     *
+     * @param path entry path inside the archive
+     * @param file source file
+     * @throws VPKException if the path is invalid
+     */
+    public void addFile(String path, File file) throws VPKException {
+        writer.addFile(path, file);
+    }
+
+    /**
+     * Adds or replaces an entry with in-memory data. The remaining bytes of
+     * the buffer are used, the buffer must not be modified until the update
+     * is committed.
+     *
+     * @param path entry path inside the archive
+     * @param data entry data
+     * @throws VPKException if the path is invalid
+     */
+    public void addData(String path, ByteBuffer data) throws VPKException {
+        writer.addData(path, data);
+    }
+
+    /**
+     * Removes an entry from the archive. Pending additions for the same path
+     * are discarded as well.
+     *
+     * @param path entry path inside the archive
+     */
+    public void remove(String path) {
+        path = path.replace('\\', '/');
+        writer.remove(path);
+        removed.add(path);
+    }
+
+    /**
+     * Discards all pending changes.
+     */
+    public void clear() {
+        writer.clear();
+        removed.clear();
+    }
+
+    /**
+     * Writes all pending changes. The data of added entries is appended to
+     * the chunk files and the directory file is replaced with a new one that
+     * references the new data.
+     *
+     * @throws IOException if the archive can't be updated or an entry source
+     *                     can't be read
+     */
+    public void commit() throws IOException {
+        checkArchive();
+
+        List<Item> added = writer.getSortedItems();
+
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        writer.prepare(added);
+
+        Map<Item, Item> duplicates = writer.findDuplicates(added);
+
+        Set<String> replaced = new HashSet<>(removed);
+        for (Item item : added) {
+            replaced.add(item.entry.getPath());
+        }
+
+        List<Item> items = new ArrayList<>();
+        int lastChunk = -1;
+
+        for (VPKEntry entry : archive.getEntries()) {
+            if (replaced.contains(entry.getPath())) {
+                continue;
+            }
+
+            Item item = copyItem(entry);
+            items.add(item);
+
+            if (item.chunkIndex != VPKArchive.CHUNK_INDEX_DIR) {
+                lastChunk = Math.max(lastChunk, item.chunkIndex);
+            }
+        }
+
+        // append new data to the last chunk and continue with new chunks
+        Map<Integer, List<Item>> appends = new TreeMap<>();
+        Map<Integer, Long> appendStarts = new TreeMap<>();
+        int chunkIndex = Math.max(lastChunk, 0);
+        long chunkSize = lastChunk < 0 ? 0 : archive.getChunkFile(chunkIndex).length();
+
+        for (Item item : added) {
+            VPKEntry entry = item.entry;
+            items.add(item);
+
+            if (entry.getSize() == 0) {
+                item.chunkIndex = VPKArchive.CHUNK_INDEX_DIR;
+                entry.setOffset(0);
+                continue;
+            }
+
+            if (duplicates.containsKey(item)) {
+                continue;
+            }
+
+            if (chunkSize > 0 && chunkSize + entry.getSize() > writer.getMaxChunkSize()) {
+                chunkIndex++;
+                chunkSize = 0;
+            }
+
+            if (chunkIndex >= VPKArchive.CHUNK_INDEX_DIR) {
+                throw new VPKException("Too many chunk files");
+            }
+
+            List<Item> chunk = appends.get(chunkIndex);
+            if (chunk == null) {
+                chunk = new ArrayList<>();
+                appends.put(chunkIndex, chunk);
+                appendStarts.put(chunkIndex, chunkSize);
+            }
+
+            item.chunkIndex = chunkIndex;
+            entry.setOffset((int) chunkSize);
+            chunk.add(item);
+            chunkSize += entry.getSize();
+        }
+
+        VPKWriter.shareDuplicates(duplicates);
+
+        List<VPKArchiveMD5> archiveMD5s = getArchiveMD5s(appends.keySet());
+
+        for (Map.Entry<Integer, List<Item>> chunk : appends.entrySet()) {
+            int index = chunk.getKey();
+            long start = appendStarts.get(index);
+            File chunkFile = archive.getChunkFile(index);
+
+            try (FileChannel fc = FileChannel.open(chunkFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // new chunks may overwrite stale files that are no longer used
+                fc.truncate(start);
+                fc.position(start);
+                VPKWriter.writeData(fc, chunk.getValue());
+                fc.force(false);
+
+                if (archive.getVersion() == 2) {
+                    // only the ranges that contain appended data have changed
+                    long from = keepArchiveMD5s(index, start, archiveMD5s);
+                    VPKWriter.hashRanges(fc, 0, fc.size(), from, index, archiveMD5s);
+                }
+            }
+        }
+
+        Path dirTmp = writeDirFile(items, archiveMD5s);
+        replace(dirTmp, archive.getChunkFile(VPKArchive.CHUNK_INDEX_DIR).toPath());
+
+        clear();
+        archive.reload();
+    }
+
+    /**
+     * Returns the number of bytes in the chunk files that are no longer
+     * referenced by any entry. Unused data in the directory file isn't
+     * included.
+     *
+     * @return number of unreferenced bytes
+     * @throws IOException if the chunk files can't be listed
+     */
+    public long getDeadBytes() throws IOException {
+        checkArchive();
+
+        long deadBytes = 0;
+        Map<Integer, List<Item>> chunks = getChunkItems();
+
+        for (Map.Entry<Integer, List<Item>> chunk : chunks.entrySet()) {
+            if (chunk.getKey() == VPKArchive.CHUNK_INDEX_DIR) {
+                continue;
+            }
+
+            long liveBytes = 0;
+            for (long[] range : mergeRanges(chunk.getValue())) {
+                liveBytes += range[1] - range[0];
+            }
+            deadBytes += archive.getChunkFile(chunk.getKey()).length() - liveBytes;
+        }
+
+        for (File file : getUnusedChunkFiles(chunks.keySet())) {
+            deadBytes += file.length();
+        }
+
+        return deadBytes;
+    }
+
+    /**
+     * Removes all dead space from the chunk files. Chunk files with
+     * unreferenced data are rewritten with the live data only and chunk files
+     * without any live data are deleted. Entries that share the same data
+     * range continue to do so.
+     * <p>
+     * The new files are written completely before they replace the old ones,
+     * but replacing several files isn't atomic. The archive must not be used
+     * by other processes during compaction, and entries obtained before
+     * compaction must not be read afterwards, since their data has moved.
+     *
+     * @throws IOException if the archive can't be compacted
+     */
+    public void compact() throws IOException {
+        checkArchive();
+
+        Map<Integer, List<Item>> chunks = getChunkItems();
+        Map<Path, Path> replacements = new LinkedHashMap<>();
+        List<VPKArchiveMD5> archiveMD5s;
+
+        try {
+            Map<Integer, Path> compacted = new TreeMap<>();
+
+            for (Map.Entry<Integer, List<Item>> chunk : chunks.entrySet()) {
+                int index = chunk.getKey();
+
+                // the directory file isn't compacted
+                if (index == VPKArchive.CHUNK_INDEX_DIR) {
+                    continue;
+                }
+
+                File chunkFile = archive.getChunkFile(index);
+                List<long[]> ranges = mergeRanges(chunk.getValue());
+
+                long liveBytes = 0;
+                for (long[] range : ranges) {
+                    liveBytes += range[1] - range[0];
+                }
+
+                if (liveBytes == chunkFile.length()) {
+                    continue;
+                }
+
+                Path tmp = createTempFile(chunkFile);
+                replacements.put(tmp, chunkFile.toPath());
+                compacted.put(index, tmp);
+                compactChunk(chunkFile, tmp, chunk.getValue(), ranges);
+            }
+
+            archiveMD5s = getArchiveMD5s(compacted.keySet());
+
+            // chunk files without live data are deleted below
+            for (Iterator<VPKArchiveMD5> it = archiveMD5s.iterator(); it.hasNext();) {
+                if (!chunks.containsKey(it.next().getChunkIndex())) {
+                    it.remove();
+                }
+            }
+
+            if (archive.getVersion() == 2) {
+                for (Map.Entry<Integer, Path> chunk : compacted.entrySet()) {
+                    try (FileChannel fc = FileChannel.open(chunk.getValue(), StandardOpenOption.READ)) {
+                        VPKWriter.hashRanges(fc, 0, fc.size(), 0, chunk.getKey(), archiveMD5s);
+                    }
+                }
+            }
+
+            List<Item> items = new ArrayList<>();
+            for (List<Item> chunk : chunks.values()) {
+                items.addAll(chunk);
+            }
+
+            Path dirTmp = writeDirFile(items, archiveMD5s);
+            replacements.put(dirTmp, archive.getChunkFile(VPKArchive.CHUNK_INDEX_DIR).toPath());
+        } catch (IOException | RuntimeException ex) {
+            for (Path tmp : replacements.keySet()) {
+                Files.deleteIfExists(tmp);
+            }
+            throw ex;
+        }
+
+        List<File> unused = getUnusedChunkFiles(chunks.keySet());
+
+        for (Map.Entry<Path, Path> replacement : replacements.entrySet()) {
+            replace(replacement.getKey(), replacement.getValue());
+        }
+
+        for (File file : unused) {
+            Files.delete(file.toPath());
+        }
+
+        archive.reload();
+    }
+
+    /**
+     * Copies the live ranges of a chunk to a new file and updates the offsets
+     * of the entries.
+     */
+    private void compactChunk(File chunkFile, Path target, List<Item> chunk,
+            List<long[]> ranges) throws IOException {
+        List<Item> copies = new ArrayList<>();
+        long pos = 0;
+        int rangeIndex = 0;
+
+        for (long[] range : ranges) {
+            long length = range[1] - range[0];
+
+            VPKEntry copy = new VPKEntry(null, false);
+            copy.setSize((int) length);
+            copies.add(new Item(copy, new FileSource(chunkFile, range[0], length)));
+
+            // chunk items are sorted by offset, so they are visited range by range
+            for (; rangeIndex < chunk.size(); rangeIndex++) {
+                VPKEntry entry = chunk.get(rangeIndex).entry;
+                long offset = entry.getOffsetUnsigned();
+
+                if (offset >= range[1]) {
+                    break;
+                }
+
+                entry.setOffset((int) (pos + offset - range[0]));
+            }
+
+            pos += length;
+        }
+
+        try (FileChannel fc = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            VPKWriter.writeData(fc, copies);
+            fc.force(false);
+        }
+    }
+
+    /**
+     * Writes a new directory file for the given items to a temporary file.
+     * The data embedded in the current directory file is copied unchanged.
+     */
+    private Path writeDirFile(List<Item> items, List<VPKArchiveMD5> archiveMD5s) throws IOException {
+        File dirFile = archive.getChunkFile(VPKArchive.CHUNK_INDEX_DIR);
+
+        Collections.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item i1, Item i2) {
+                return VPKWriter.TREE_ORDER.compare(i1.entry, i2.entry);
+            }
+        });
+
+        List<VPKEntry> entries = new ArrayList<>();
+        List<Integer> chunkIndices = new ArrayList<>();
+        for (Item item : items) {
+            entries.add(item.entry);
+            chunkIndices.add(item.chunkIndex);
+        }
+
+        List<Item> embedded = new ArrayList<>();
+        VPKLayout layout = archive.getLayout();
+        int dataSize = layout.getFileDataSize();
+
+        if (dataSize > 0) {
+            VPKEntry data = new VPKEntry(null, false);
+            data.setSize(dataSize);
+            long dataStart = (long) layout.getHeaderSize() + layout.getTreeSize();
+            embedded.add(new Item(data, new FileSource(dirFile, dataStart, dataSize)));
+        }
+
+        Path tmp = createTempFile(dirFile);
+
+        try {
+            VPKWriter.writeDirFile(tmp.toFile(), archive.getVersion(),
+                    VPKWriter.buildTree(entries, chunkIndices), embedded, archiveMD5s);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+
+        return tmp;
+    }
+
+    /**
+     * Returns the archive MD5 checksums of the current footer, except the
+     * ones for the directory file and the given chunks.
+     */
+    private List<VPKArchiveMD5> getArchiveMD5s(Set<Integer> changedChunks) {
+        List<VPKArchiveMD5> archiveMD5s = new ArrayList<>();
+        VPKFooter footer = archive.getFooter();
+
+        if (archive.getVersion() != 2 || footer == null) {
+            return archiveMD5s;
+        }
+
+        for (VPKArchiveMD5 archiveMD5 : footer.getArchiveMD5s()) {
+            int chunkIndex = archiveMD5.getChunkIndex();
+
+            if (chunkIndex != VPKArchive.CHUNK_INDEX_DIR && !changedChunks.contains(chunkIndex)) {
+                archiveMD5s.add(archiveMD5);
+            }
+        }
+
+        return archiveMD5s;
+    }
+
+    /**
+     * Adds the archive MD5 checksums of the current footer for the complete
+     * ranges of a chunk that end before the given position.
+     *
+     * @return offset from which the chunk must be hashed again, 0 if the
+     *         current checksums don't cover all ranges before the position
+     */
+    private long keepArchiveMD5s(int chunkIndex, long start, List<VPKArchiveMD5> archiveMD5s) {
+        VPKFooter footer = archive.getFooter();
+        long end = start - start % VPKWriter.ARCHIVE_MD5_RANGE;
+
+        if (footer == null || end == 0) {
+            return 0;
+        }
+
+        List<VPKArchiveMD5> kept = new ArrayList<>();
+
+        for (VPKArchiveMD5 archiveMD5 : footer.getArchiveMD5s()) {
+            if (archiveMD5.getChunkIndex() == chunkIndex
+                    && (archiveMD5.getOffset() & 0xffffffffL) < end) {
+                kept.add(archiveMD5);
+            }
+        }
+
+        Collections.sort(kept, new Comparator<VPKArchiveMD5>() {
+            @Override
+            public int compare(VPKArchiveMD5 m1, VPKArchiveMD5 m2) {
+                return Long.compare(m1.getOffset() & 0xffffffffL, m2.getOffset() & 0xffffffffL);
+            }
+        });
+
+        // archives from other tools may use other ranges
+        long pos = 0;
+
+        for (VPKArchiveMD5 archiveMD5 : kept) {
+            if (archiveMD5.getOffset() != pos || archiveMD5.getSize() != VPKWriter.ARCHIVE_MD5_RANGE) {
+                return 0;
+            }
+            pos += VPKWriter.ARCHIVE_MD5_RANGE;
+        }
+
+        if (pos != end) {
+            return 0;
+        }
+
+        archiveMD5s.addAll(kept);
+
+        return end;
+    }
+
+    /**
+     * Returns copies of all entries, grouped by chunk index and sorted by
+     * offset. Entries without data in a chunk file are grouped under
+     * {@link VPKArchive#CHUNK_INDEX_DIR}.
+     */
+    private Map<Integer, List<Item>> getChunkItems() {
+        Map<Integer, List<Item>> chunks = new TreeMap<>();
+
+        for (VPKEntry entry : archive.getEntries()) {
+            Item item = copyItem(entry);
+
+            int key = item.chunkIndex;
+            if (entry.getSize() == 0) {
+                key = VPKArchive.CHUNK_INDEX_DIR;
+            }
+
+            List<Item> chunk = chunks.get(key);
+            if (chunk == null) {
+                chunk = new ArrayList<>();
+                chunks.put(key, chunk);
+            }
+            chunk.add(item);
+        }
+
+        for (List<Item> chunk : chunks.values()) {
+            Collections.sort(chunk, ITEM_OFFSET_ORDER);
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Merges the data ranges of offset-sorted items into non-overlapping
+     * ranges.
+     *
+     * @return list of start and end offsets
+     */
+    private static List<long[]> mergeRanges(List<Item> chunk) {
+        List<long[]> ranges = new ArrayList<>();
+        long[] range = null;
+
+        for (Item item : chunk) {
+            VPKEntry entry = item.entry;
+
+            if (entry.getSize() == 0) {
+                continue;
+            }
+
+            long start = entry.getOffsetUnsigned();
+            long end = start + (entry.getSize() & 0xffffffffL);
+
+            if (range != null && start <= range[1]) {
+                range[1] = Math.max(range[1], end);
+            } else {
+                range = new long[] {start, end};
+                ranges.add(range);
+            }
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Returns all chunk files of the archive that don't contain any entry
+     * data.
+     */
+    private List<File> getUnusedChunkFiles(Set<Integer> usedChunks) throws IOException {
+        File dirFile = archive.getChunkFile(VPKArchive.CHUNK_INDEX_DIR).getAbsoluteFile();
+        String dirName = dirFile.getName();
+        String vpkName = dirName.substring(0, dirName.lastIndexOf("_dir"));
+
+        return VPKWriter.getUnusedChunkFiles(dirFile, vpkName, usedChunks);
+    }
+
+    /**
+     * Creates a detached copy of an entry for the directory tree. Offsets of
+     * data in the directory file are converted back to offsets relative to
+     * the end of the tree.
+     */
+    private Item copyItem(VPKEntry entry) {
+        VPKEntry copy = new VPKEntry(null, false);
+        copy.setType(entry.getType());
+        copy.setDir(entry.getDir());
+        copy.setName(entry.getName());
+        copy.setCRC32(entry.getCRC32());
+        copy.setPreloadData(entry.getPreloadData());
+        copy.setSize(entry.getSize());
+
+        if (entry.isCompressed()) {
+            copy.setUncompressedSize(entry.getDataSize());
+        }
+
+        int chunkIndex = entry.getChunkIndex();
+        int offset = entry.getOffset();
+
+        if (chunkIndex == VPKArchive.CHUNK_INDEX_DIR) {
+            VPKLayout layout = archive.getLayout();
+            offset -= layout.getHeaderSize() + layout.getTreeSize();
+        }
+
+        copy.setOffset(offset);
+
+        Item item = new Item(copy, null);
+        item.chunkIndex = chunkIndex;
+        return item;
+    }
+
+    private void checkArchive() throws VPKException {
+        if (!archive.isMultiChunk()) {
+            throw new VPKException("Incremental updates require a multi-chunk archive");
+        }
+    }
+
+    private static Path createTempFile(File file) throws IOException {
+        Path path = file.getAbsoluteFile().toPath();
+        return Files.createTempFile(path.getParent(), file.getName(), ".tmp");
+    }
+
+    private static void replace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Returns the maximum size of a chunk file for appended data.
+     *
+     * @return maximum chunk size in bytes
+     */
+    public long getMaxChunkSize() {
+        return writer.getMaxChunkSize();
+    }
+
+    /**
+     * Sets the maximum size of a chunk file for appended data. Data is added
+     * to a new chunk file if the last one would exceed this size.
+     *
+     * @param maxChunkSize maximum chunk size in bytes
+     */
+    public void setMaxChunkSize(long maxChunkSize) {
+        writer.setMaxChunkSize(maxChunkSize);
+    }
+
+    /**
+     * Returns the preload policy for added entries.
+     *
+     * @return preload policy
+     */
+    public VPKPreloadPolicy getPreloadPolicy() {
+        return writer.getPreloadPolicy();
+    }
+
+    /**
+     * Sets the policy that decides how much data of each added entry is
+     * stored in the directory tree.
+     *
+     * @param preloadPolicy preload policy
+     */
+    public void setPreloadPolicy(VPKPreloadPolicy preloadPolicy) {
+        writer.setPreloadPolicy(preloadPolicy);
+    }
+
+    /**
+     * Returns the compression policy for added entries.
+     *
+     * @return compression policy
+     */
+    public VPKCompressionPolicy getCompressionPolicy() {
+        return writer.getCompressionPolicy();
+    }
+
+    /**
+     * Sets the policy that decides which added entries are stored compressed.
+     *
+     * @param compressionPolicy compression policy
+     */
+    public void setCompressionPolicy(VPKCompressionPolicy compressionPolicy) {
+        writer.setCompressionPolicy(compressionPolicy);
+    }
+
+    /**
+     * Sets whether added entries with identical contents share their data.
+     *
+     * @param deduplicate true to store duplicate data only once
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        writer.setDeduplicate(deduplicate);
+    }
+
+    /**
+     * Sets the executor for the checksum tasks of added entries.
+     *
+     * @param executor executor service or {@code null} to use a temporary
+     *                 thread pool
+     */
+    public void setExecutor(ExecutorService executor) {
+        writer.setExecutor(executor);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Result of a {@link VPKValidator} run.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKValidationReport {
+    
+    private final Map<VPKEntry, IOException> failures;
+    private final Map<VPKArchiveMD5, IOException> chunkFailures;
+    private final int entriesVerified;
+    private final long bytesVerified;
+    private final long elapsedNanos;
+
+    VPKValidationReport(Map<VPKEntry, IOException> failures,
+            Map<VPKArchiveMD5, IOException> chunkFailures, int entriesVerified,
+            long bytesVerified, long elapsedNanos) {
+        this.failures = Collections.unmodifiableMap(failures);
+        this.chunkFailures = Collections.unmodifiableMap(chunkFailures);
+        this.entriesVerified = entriesVerified;
+        this.bytesVerified = bytesVerified;
+        this.elapsedNanos = elapsedNanos;
+    }
+    
+    /**
+     * Returns true if all entries or data ranges were validated successfully.
+     * 
+     * @return true if there were no failures
+     */
+    public boolean isValid() {
+        return failures.isEmpty() && chunkFailures.isEmpty();
+    }
+
+    /**
+     * Returns the entries that failed validation together with the reason,
+     * which is either a checksum mismatch or an I/O error.
+     * 
+     * @return map of failed entries and errors
+     */
+    public Map<VPKEntry, IOException> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Returns the archive MD5 data ranges that failed validation together with
+     * the reason. Only used by {@link VPKValidator#validateChunks}.
+     * 
+     * @return map of failed data ranges and errors
+     */
+    public Map<VPKArchiveMD5, IOException> getChunkFailures() {
+        return chunkFailures;
+    }
+
+    /**
+     * Returns the number of entries or archive MD5 data ranges that were
+     * checked, including failed ones.
+     * 
+     * @return number of checked entries or data ranges
+     */
+    public int getEntriesVerified() {
+        return entriesVerified;
+    }
+
+    /**
+     * Returns the total data size of all checked entries or data ranges.
+     * 
+     * @return number of checked bytes
+     */
+    public long getBytesVerified() {
+        return bytesVerified;
+    }
+
+    /**
+     * Returns the duration of the validation.
+     * 
+     * @return elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+    
+    /**
+     * Returns the average validation throughput.
+     * 
+     * @return checked bytes per second
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : bytesVerified * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d checked, %d bytes, %d failed, %.1f MB/s",
+                entriesVerified, bytesVerified, failures.size() + chunkFailures.size(),
+                getThroughput() / (1 << 20));
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded CRC32 validator for VPK entries. Entries are grouped by chunk
+ * file and split into ranges of limited size, each range is checked
+ * sequentially in offset order by one worker, so large chunk files are spread
+ * across all workers.
+ * 
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKValidator {
+    
+    // maximum data size checked by one task
+    private static final long MAX_TASK_SIZE = 16 << 20;
+    
+    private ExecutorService executor;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private VPKProgressListener listener;
+    
+    /**
+     * Validates the CRC32 checksums of the given entries.
+     * 
+     * @param entries entries to validate
+     * @return validation report
+     * @throws IOException if the validation was interrupted
+     */
+    public VPKValidationReport validate(Collection<VPKEntry> entries) throws IOException {
+        long startTime = System.nanoTime();
+        
+        List<VPKEntry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, VPKEntry.CHUNK_ORDER);
+        
+        long bytesTotal = 0;
+        for (VPKEntry entry : sorted) {
+            bytesTotal += entry.getDataSize();
+        }
+        
+        final int entriesTotal = sorted.size();
+        final long bytesTotalFinal = bytesTotal;
+        final AtomicInteger entriesDone = new AtomicInteger();
+        final AtomicLong bytesDone = new AtomicLong();
+        final Map<VPKEntry, IOException> failures = Collections.synchronizedMap(
+                new LinkedHashMap<VPKEntry, IOException>());
+        
+        List<Callable<Void>> tasks = new ArrayList<>();
+        
+        // one task per range of a chunk file
+        for (int start = 0, end; start < sorted.size(); start = end) {
+            File chunkFile = sorted.get(start).getFile();
+            long taskSize = sorted.get(start).getDataSize();
+            for (end = start + 1; end < sorted.size() && sorted.get(end).getFile().equals(chunkFile)
+                    && taskSize < MAX_TASK_SIZE; end++) {
+                // find end of range
+                taskSize += sorted.get(end).getDataSize();
+            }
+
+            final List<VPKEntry> chunkEntries = sorted.subList(start, end);
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    byte[] buf = new byte[VPKEntry.CRC_BUFFER_SIZE];
+
+                    for (VPKEntry entry : chunkEntries) {
+                        try {
+                            long actualCrc = entry.calcCRC32(buf);
+                            long targetCrc = entry.getCRC32();
+
+                            if (actualCrc != targetCrc) {
+                                throw new VPKException(String.format("CRC32 checksum mismatch: got 0x%06x, expected 0x%06x", actualCrc, targetCrc));
+                            }
+
+                            int done = entriesDone.incrementAndGet();
+                            long bytes = bytesDone.addAndGet(entry.getDataSize());
+
+                            if (listener != null) {
+                                listener.entryCompleted(entry, done, entriesTotal, bytes, bytesTotalFinal);
+                            }
+                        } catch (IOException ex) {
+                            entriesDone.incrementAndGet();
+                            bytesDone.addAndGet(entry.getDataSize());
+                            failures.put(entry, ex);
+
+                            if (listener != null) {
+                                listener.entryFailed(entry, ex);
+                            }
+                        }
+                    }
+                    
+                    return null;
+                }
+            });
+        }
+        
+        VPKTasks.runAll(executor, threads, tasks);
+        
+        Map<VPKArchiveMD5, IOException> chunkFailures = Collections.emptyMap();
+        
+        return new VPKValidationReport(failures, chunkFailures, entriesDone.get(),
+                bytesDone.get(), System.nanoTime() - startTime);
+    }
+    
+    /**
+     * Validates a version 2 archive by comparing the MD5 checksums of the
+     * archive MD5 section with the actual chunk file data. Each chunk file is
+     * split into ranges of limited size, which are read sequentially by one
+     * worker each. This is much cheaper than checking the CRC32 of every
+     * entry, but doesn't cover the preload data, which is protected by the
+     * directory tree checksum instead.
+     * 
+     * @param archive loaded version 2 archive
+     * @return validation report with the failed data ranges
+     * @throws VPKException if the archive has no MD5 sections or if the
+     *                      checksum of the directory tree or of the archive
+     *                      MD5 section doesn't match
+     * @throws IOException if the validation was interrupted
+     */
+    public VPKValidationReport validateChunks(final VPKArchive archive) throws IOException {
+        long startTime = System.nanoTime();
+        
+        // use the same layout for all ranges, even if the archive is reloaded
+        final VPKLayout layout = archive.getLayout();
+        
+        VPKFooter footer = layout.getFooter();
+        if (footer == null) {
+            throw new VPKException("Archive has no MD5 sections");
+        }
+        
+        File dirFile = layout.getChunkFile(VPKArchive.CHUNK_INDEX_DIR);
+        final VPKChunkPool chunkPool = archive.getChunkPool();
+        
+        if (footer.getTreeMD5() != null) {
+            ByteBuffer tree = chunkPool.slice(dirFile, layout.getHeaderSize(), layout.getTreeSize());
+            if (!MessageDigest.isEqual(md5(tree), footer.getTreeMD5())) {
+                throw new VPKException("Directory tree MD5 checksum mismatch");
+            }
+            
+            ByteBuffer section = chunkPool.slice(dirFile, footer.getArchiveMD5Offset(), footer.getArchiveMD5Size());
+            if (!MessageDigest.isEqual(md5(section), footer.getArchiveMD5SectionMD5())) {
+                throw new VPKException("Archive MD5 section checksum mismatch");
+            }
+        }
+        
+        // group ranges by chunk
+        Map<Integer, List<VPKArchiveMD5>> chunks = new TreeMap<>();
+        long bytesTotal = 0;
+        
+        for (VPKArchiveMD5 archiveMD5 : footer.getArchiveMD5s()) {
+            List<VPKArchiveMD5> chunkList = chunks.get(archiveMD5.getChunkIndex());
+            if (chunkList == null) {
+                chunkList = new ArrayList<>();
+                chunks.put(archiveMD5.getChunkIndex(), chunkList);
+            }
+            chunkList.add(archiveMD5);
+            bytesTotal += archiveMD5.getSize();
+        }
+        
+        final AtomicInteger rangesDone = new AtomicInteger();
+        final AtomicLong bytesDone = new AtomicLong();
+        final Map<VPKArchiveMD5, IOException> failures = Collections.synchronizedMap(
+                new LinkedHashMap<VPKArchiveMD5, IOException>());
+        
+        List<Callable<Void>> tasks = new ArrayList<>();
+        
+        for (List<VPKArchiveMD5> chunkList : chunks.values()) {
+            for (int start = 0, end; start < chunkList.size(); start = end) {
+                long taskSize = chunkList.get(start).getSize();
+                for (end = start + 1; end < chunkList.size() && taskSize < MAX_TASK_SIZE; end++) {
+                    // find end of range
+                    taskSize += chunkList.get(end).getSize();
+                }
+                
+                final List<VPKArchiveMD5> rangeList = chunkList.subList(start, end);
+                
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (VPKArchiveMD5 archiveMD5 : rangeList) {
+                            try {
+                                int chunkIndex = archiveMD5.getChunkIndex();
+                                long offset = layout.getChunkOffset(chunkIndex, archiveMD5.getOffset()) & 0xffffffffL;
+                                ByteBuffer bb = chunkPool.slice(layout.getChunkFile(chunkIndex), offset, archiveMD5.getSize());
+                                
+                                if (!MessageDigest.isEqual(md5(bb), archiveMD5.getMD5Internal())) {
+                                    throw new VPKException("MD5 checksum mismatch for " + archiveMD5);
+                                }
+                            } catch (IOException ex) {
+                                failures.put(archiveMD5, ex);
+                            }
+                            
+                            rangesDone.incrementAndGet();
+                            bytesDone.addAndGet(archiveMD5.getSize());
+                        }
+                        
+                        return null;
+                    }
+                });
+            }
+        }
+        
+        VPKTasks.runAll(executor, threads, tasks);
+        
+        Map<VPKEntry, IOException> entryFailures = Collections.emptyMap();
+        
+        return new VPKValidationReport(entryFailures, failures, rangesDone.get(),
+                bytesDone.get(), System.nanoTime() - startTime);
+    }
+    
+    static byte[] md5(ByteBuffer bb) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(bb.duplicate());
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            // MD5 is required on every Java platform
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns the executor for the validation tasks.
+     * 
+     * @return executor service or {@code null} if a temporary thread pool is
+     *         used
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor for the validation tasks. The executor isn't shut down
+     * after the validation.
+     * 
+     * @param executor executor service or {@code null} to use a temporary
+     *                 thread pool with {@link #getThreads()} threads
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the number of threads of the temporary thread pool.
+     * 
+     * @return number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads of the temporary thread pool. It isn't used
+     * if an executor is set.
+     * 
+     * @param threads number of threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+        
+        this.threads = threads;
+    }
+
+    /**
+     * Returns the progress listener.
+     * 
+     * @return progress listener or {@code null} if not set
+     */
+    public VPKProgressListener getProgressListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the progress listener.
+     * 
+     * @param listener progress listener or {@code null} to remove it
+     */
+    public void setProgressListener(VPKProgressListener listener) {
+        this.listener = listener;
+    }
+}
@@ -0,0 +1,1103 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Writer for VPK archives. Entries are added from files or from memory and
+ * written as single-file archive or split up into chunk files of limited
+ * size. Like {@link VPKArchive#load}, the name of the output file decides if a
+ * multi-chunk archive is written: it must end with "_dir" for that.
+ * <p>
+ * Entries with identical contents share the same data range by default, so
+ * their data is only stored once. Entries can optionally be stored with
+ * deflate compression, which is decided by the {@link VPKCompressionPolicy}.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKWriter {
+
+    public static final int MAX_PRELOAD_SIZE = 0xffff;
+    public static final long DEFAULT_MAX_CHUNK_SIZE = 200 << 20;
+
+    // size of the data ranges in the archive MD5 section
+    static final int ARCHIVE_MD5_RANGE = 1 << 20;
+
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /**
+     * Orders entries by type and directory, as required for the directory
+     * tree, and by name.
+     */
+    static final Comparator<VPKEntry> TREE_ORDER = new Comparator<VPKEntry>() {
+        @Override
+        public int compare(VPKEntry e1, VPKEntry e2) {
+            int result = e1.getType().compareTo(e2.getType());
+            if (result == 0) {
+                result = e1.getDir().compareTo(e2.getDir());
+            }
+            if (result == 0) {
+                result = e1.getName().compareTo(e2.getName());
+            }
+            return result;
+        }
+    };
+
+    private final Map<String, Item> items = new LinkedHashMap<>();
+    private int version = VPKArchive.VERS_MAX;
+    private long maxChunkSize = DEFAULT_MAX_CHUNK_SIZE;
+    private VPKPreloadPolicy preloadPolicy = VPKPreloadPolicy.NONE;
+    private VPKCompressionPolicy compressionPolicy = VPKCompressionPolicy.NONE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private ExecutorService executor;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean deduplicate = true;
+
+    /**
+     * Adds a file to the archive. The file is read when the archive is written.
+     * An existing entry with the same path is replaced.
+     *
+     * @param path entry path inside the archive
+     * @param file source file
+     * @throws VPKException if the path is invalid
+     */
+    public void addFile(String path, File file) throws VPKException {
+        add(path, new FileSource(file));
+    }
+
+    /**
+     * Adds in-memory data to the archive. The remaining bytes of the buffer are
+     * used, the buffer must not be modified until the archive is written. An
+     * existing entry with the same path is replaced.
+     *
+     * @param path entry path inside the archive
+     * @param data entry data
+     * @throws VPKException if the path is invalid
+     */
+    public void addData(String path, ByteBuffer data) throws VPKException {
+        add(path, new BufferSource(data.slice()));
+    }
+
+    /**
+     * Adds all files inside a directory and its sub-directories to the archive,
+     * using their paths relative to the directory.
+     *
+     * @param dir source directory
+     * @throws IOException if the directory can't be read or a path is invalid
+     */
+    public void addDirectory(File dir) throws IOException {
+        addDirectory(dir, "");
+    }
+
+    private void addDirectory(File dir, String prefix) throws IOException {
+        File[] files = dir.listFiles();
+
+        if (files == null) {
+            throw new IOException("Can't list directory " + dir);
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addDirectory(file, prefix + file.getName() + "/");
+            } else {
+                addFile(prefix + file.getName(), file);
+            }
+        }
+    }
+
+    private void add(String path, Source source) throws VPKException {
+        VPKEntry entry = new VPKEntry(null, false);
+        entry.setPath(path.replace('\\', '/'));
+
+        if (entry.getType().isEmpty()) {
+            throw new VPKException("Entry path without extension: " + path);
+        }
+
+        if (entry.getName().isEmpty()) {
+            throw new VPKException("Entry path without name: " + path);
+        }
+
+        items.put(entry.getPath(), new Item(entry, source));
+    }
+
+    /**
+     * Removes a previously added entry.
+     *
+     * @param path entry path inside the archive
+     * @return true if an entry was removed
+     */
+    public boolean remove(String path) {
+        return items.remove(path.replace('\\', '/')) != null;
+    }
+
+    /**
+     * Removes all added entries.
+     */
+    public void clear() {
+        items.clear();
+    }
+
+    /**
+     * Writes the archive. For multi-chunk archives, the chunk files are
+     * written to the same directory as the directory file.
+     *
+     * @param file output file. For multi-chunk archives, the name must end
+     *             with "_dir", like "pak01_dir.vpk".
+     * @throws IOException if the archive can't be written or an entry source
+     *                     can't be read
+     */
+    public void write(File file) throws IOException {
+        String vpkName = FilenameUtils.getBaseName(file.getName());
+        boolean multiChunk = vpkName.endsWith("_dir");
+
+        if (multiChunk) {
+            vpkName = vpkName.substring(0, vpkName.length() - 4);
+        }
+
+        List<Item> sorted = getSortedItems();
+        prepare(sorted);
+
+        Map<Item, Item> duplicates = findDuplicates(sorted);
+
+        // assign data ranges in tree order
+        List<List<Item>> chunks = new ArrayList<>();
+        List<Item> chunk = new ArrayList<>();
+        long chunkSize = 0;
+
+        for (Item item : sorted) {
+            VPKEntry entry = item.entry;
+
+            if (entry.getSize() == 0) {
+                item.chunkIndex = VPKArchive.CHUNK_INDEX_DIR;
+                entry.setOffset(0);
+                continue;
+            }
+
+            if (duplicates.containsKey(item)) {
+                continue;
+            }
+
+            if (multiChunk && chunkSize > 0 && chunkSize + entry.getSize() > maxChunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkSize = 0;
+            }
+
+            // the reader maps the directory file as a single buffer
+            if (!multiChunk && chunkSize + entry.getSize() > Integer.MAX_VALUE) {
+                throw new VPKException("Archive data too large for a single-file archive");
+            }
+
+            item.chunkIndex = multiChunk ? chunks.size() : VPKArchive.CHUNK_INDEX_DIR;
+            entry.setOffset((int) chunkSize);
+            chunk.add(item);
+            chunkSize += entry.getSize();
+        }
+
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+
+        shareDuplicates(duplicates);
+
+        List<VPKEntry> entries = new ArrayList<>();
+        List<Integer> chunkIndices = new ArrayList<>();
+        for (Item item : sorted) {
+            entries.add(item.entry);
+            chunkIndices.add(item.chunkIndex);
+        }
+
+        ByteBuffer tree = buildTree(entries, chunkIndices);
+
+        List<VPKArchiveMD5> archiveMD5s = Collections.synchronizedList(new ArrayList<VPKArchiveMD5>());
+
+        if (multiChunk) {
+            writeChunks(file, vpkName, chunks, archiveMD5s);
+        }
+
+        List<Item> embedded = multiChunk || chunks.isEmpty()
+                ? Collections.<Item>emptyList() : chunks.get(0);
+
+        writeDirFile(file, version, tree, embedded, archiveMD5s);
+
+        if (multiChunk) {
+            // remove the chunk files of a previous archive with more chunks
+            Set<Integer> usedChunks = new HashSet<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                usedChunks.add(i);
+            }
+
+            for (File chunkFile : getUnusedChunkFiles(file.getAbsoluteFile(), vpkName, usedChunks)) {
+                Files.delete(chunkFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Returns the added items in tree order.
+     */
+    List<Item> getSortedItems() {
+        List<Item> sorted = new ArrayList<>(items.values());
+        Collections.sort(sorted, new Comparator<Item>() {
+            @Override
+            public int compare(Item i1, Item i2) {
+                return TREE_ORDER.compare(i1.entry, i2.entry);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Determines size, preload data and CRC32 of all entries and compresses
+     * their data in parallel.
+     */
+    void prepare(List<Item> sorted) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (final Item item : sorted) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    VPKEntry entry = item.entry;
+                    ByteBuffer data = item.source.getData();
+
+                    int size = data.remaining();
+                    int preloadSize = preloadPolicy.getPreloadSize(entry.getPath(), size);
+                    preloadSize = Math.max(0, Math.min(preloadSize, Math.min(size, MAX_PRELOAD_SIZE)));
+
+                    CRC32 crc = new CRC32();
+                    VPKEntry.updateCRC32(crc, data, null);
+
+                    entry.setCRC32(crc.getValue());
+                    entry.setUncompressedSize(-1);
+                    item.compressed = null;
+
+                    if (size > 0 && compressionPolicy.isCompressed(entry.getPath(), size)) {
+                        ByteBuffer compressed = VPKCompression.deflate(data, compressionLevel);
+
+                        // store incompressible data as it is
+                        if (compressed.remaining() < size) {
+                            entry.setPreloadData(new byte[0]);
+                            entry.setSize(compressed.remaining());
+                            entry.setUncompressedSize(size);
+                            item.compressed = compressed;
+                            return null;
+                        }
+                    }
+
+                    byte[] preload = new byte[preloadSize];
+                    data.get(preload);
+
+                    entry.setPreloadData(preload);
+                    entry.setSize(size - preloadSize);
+
+                    return null;
+                }
+            });
+        }
+
+        VPKTasks.runAll(executor, threads, tasks);
+    }
+
+    /**
+     * Finds entries with identical contents. Entries are compared by CRC32,
+     * size and preload size first, only the data of the remaining candidates
+     * is hashed with SHA-256 to confirm the match. Entries with the same
+     * preload size can share the data range after the preload data.
+     *
+     * @param sorted prepared items in tree order
+     * @return map of duplicate items to the first item with the same contents
+     */
+    Map<Item, Item> findDuplicates(List<Item> sorted) throws IOException {
+        Map<Item, Item> duplicates = new IdentityHashMap<>();
+
+        if (!deduplicate) {
+            return duplicates;
+        }
+
+        Map<ContentKey, List<Item>> candidates = new LinkedHashMap<>();
+
+        for (Item item : sorted) {
+            if (item.entry.getSize() == 0) {
+                continue;
+            }
+
+            ContentKey key = new ContentKey(item.entry, null);
+            List<Item> group = candidates.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                candidates.put(key, group);
+            }
+            group.add(item);
+        }
+
+        final Map<Item, byte[]> digests = Collections.synchronizedMap(new IdentityHashMap<Item, byte[]>());
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (List<Item> group : candidates.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+
+            for (final Item item : group) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        digests.put(item, sha256(item.source.getData()));
+                        return null;
+                    }
+                });
+            }
+        }
+
+        if (tasks.isEmpty()) {
+            return duplicates;
+        }
+
+        VPKTasks.runAll(executor, threads, tasks);
+
+        Map<ContentKey, Item> originals = new HashMap<>();
+
+        for (Item item : sorted) {
+            byte[] digest = digests.get(item);
+
+            if (digest == null) {
+                continue;
+            }
+
+            ContentKey key = new ContentKey(item.entry, digest);
+            Item original = originals.get(key);
+
+            if (original == null) {
+                originals.put(key, item);
+            } else {
+                duplicates.put(item, original);
+            }
+        }
+
+        return duplicates;
+    }
+
+    /**
+     * Assigns the data range of the original items to their duplicates.
+     *
+     * @param duplicates map of duplicate items to original items with an
+     *                   assigned data range
+     */
+    static void shareDuplicates(Map<Item, Item> duplicates) {
+        for (Map.Entry<Item, Item> duplicate : duplicates.entrySet()) {
+            Item item = duplicate.getKey();
+            Item original = duplicate.getValue();
+
+            item.chunkIndex = original.chunkIndex;
+            item.entry.setOffset(original.entry.getOffset());
+        }
+    }
+
+    private static byte[] sha256(ByteBuffer bb) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(bb);
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            // SHA-256 is required on every Java platform
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void writeChunks(File file, final String vpkName, List<List<Item>> chunks,
+            final List<VPKArchiveMD5> archiveMD5s) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (int i = 0; i < chunks.size(); i++) {
+            final int chunkIndex = i;
+            final List<Item> chunk = chunks.get(i);
+            final File chunkFile = VPKArchive.getChunkFile(file, vpkName, chunkIndex);
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try (FileChannel fc = FileChannel.open(chunkFile.toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        writeData(fc, chunk);
+
+                        if (version == 2) {
+                            hashRanges(fc, 0, fc.size(), 0, chunkIndex, archiveMD5s);
+                        }
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        VPKTasks.runAll(executor, threads, tasks);
+    }
+
+    /**
+     * Writes a directory file with the given tree, embedded data and archive
+     * MD5 checksums of the chunk files. The checksums of the embedded data are
+     * added to the list.
+     */
+    static void writeDirFile(File file, int version, ByteBuffer tree, List<Item> embedded,
+            List<VPKArchiveMD5> archiveMD5s) throws IOException {
+        int headerSize = version == 2 ? 28 : 12;
+
+        // the reader maps the directory file as a single buffer and addresses
+        // the embedded data with int offsets
+        long fileSize = (long) headerSize + tree.remaining();
+        long embeddedSize = 0;
+
+        for (Item item : embedded) {
+            embeddedSize += item.entry.getSize();
+        }
+
+        fileSize += embeddedSize;
+
+        if (version == 2) {
+            long ranges = archiveMD5s.size() + (embeddedSize + ARCHIVE_MD5_RANGE - 1) / ARCHIVE_MD5_RANGE;
+            fileSize += ranges * VPKFooter.ARCHIVE_MD5_SIZE + VPKFooter.OTHER_MD5_SIZE;
+        }
+
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new VPKException(String.format("Directory file too large: %d bytes (maximum %d)",
+                    fileSize, Integer.MAX_VALUE));
+        }
+
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            fc.position(headerSize);
+            writeFully(fc, tree.duplicate());
+
+            long dataStart = fc.position();
+            writeData(fc, embedded);
+            long dataSize = fc.position() - dataStart;
+
+            ByteBuffer footer = ByteBuffer.allocate(0);
+
+            if (version == 2) {
+                hashRanges(fc, dataStart, dataSize, 0, VPKArchive.CHUNK_INDEX_DIR, archiveMD5s);
+                footer = buildArchiveMD5Section(archiveMD5s);
+                writeFully(fc, footer.duplicate());
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(VPKArchive.SIGNATURE);
+            header.putInt(version);
+            header.putInt(tree.remaining());
+
+            if (version == 2) {
+                header.putInt((int) dataSize);
+                header.putInt(footer.remaining());
+                header.putInt(VPKFooter.OTHER_MD5_SIZE);
+                header.putInt(0);
+            }
+
+            header.flip();
+            writeFully(fc, header, 0);
+
+            if (version == 2) {
+                ByteBuffer otherMD5 = ByteBuffer.allocate(VPKFooter.OTHER_MD5_SIZE);
+                otherMD5.put(VPKValidator.md5(tree));
+                otherMD5.put(VPKValidator.md5(footer));
+
+                // the last checksum covers everything before it
+                long end = fc.position();
+                fc.write(ByteBuffer.wrap(otherMD5.array(), 0, 32), end);
+                otherMD5.put(md5(fc, 0, end + 32));
+                otherMD5.flip();
+                writeFully(fc, otherMD5, end);
+            }
+        }
+    }
+
+    /**
+     * Returns the chunk files next to a directory file whose index isn't in
+     * the given set.
+     */
+    static List<File> getUnusedChunkFiles(File dirFile, String vpkName,
+            Set<Integer> usedChunks) throws IOException {
+        Pattern chunkPattern = Pattern.compile(Pattern.quote(vpkName) + "_(\\d{3,})\\.vpk");
+
+        File[] files = dirFile.getParentFile().listFiles();
+        if (files == null) {
+            throw new IOException("Can't list directory " + dirFile.getParentFile());
+        }
+
+        List<File> unused = new ArrayList<>();
+
+        for (File file : files) {
+            Matcher m = chunkPattern.matcher(file.getName());
+
+            if (!m.matches() || m.group(1).length() > 5) {
+                continue;
+            }
+
+            int chunkIndex = Integer.parseInt(m.group(1));
+
+            if (chunkIndex < VPKArchive.CHUNK_INDEX_DIR && !usedChunks.contains(chunkIndex)) {
+                unused.add(file);
+            }
+        }
+
+        return unused;
+    }
+
+    /**
+     * Writes the data of the given items in order to the current position of
+     * the channel. Files are transferred by the channel directly, consecutive
+     * in-memory sources and compressed data are written with one gathering
+     * write.
+     */
+    static void writeData(FileChannel fc, List<Item> chunk) throws IOException {
+        List<ByteBuffer> batch = new ArrayList<>();
+
+        for (Item item : chunk) {
+            VPKEntry entry = item.entry;
+
+            if (entry.getSize() == 0) {
+                continue;
+            }
+
+            if (item.compressed != null) {
+                batch.add(item.compressed.duplicate());
+            } else if (item.source instanceof FileSource) {
+                writeBatch(fc, batch);
+                ((FileSource) item.source).transferTo(entry.getPreloadSize(), entry.getSize(), fc);
+            } else {
+                ByteBuffer bb = item.source.getData();
+                bb.position(bb.position() + entry.getPreloadSize());
+                batch.add(bb);
+            }
+        }
+
+        writeBatch(fc, batch);
+    }
+
+    private static void writeBatch(FileChannel fc, List<ByteBuffer> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer[] srcs = batch.toArray(new ByteBuffer[batch.size()]);
+        ByteBuffer last = srcs[srcs.length - 1];
+
+        while (last.hasRemaining()) {
+            fc.write(srcs);
+        }
+
+        batch.clear();
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            fc.write(bb);
+        }
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            position += fc.write(bb, position);
+        }
+    }
+
+    /**
+     * Calculates the archive MD5 checksums for a data range of a file,
+     * beginning with the MD5 range that contains the given relative offset.
+     * The offsets of the checksums are relative to the start of the data.
+     */
+    static void hashRanges(FileChannel fc, long start, long size, long from, int chunkIndex,
+            List<VPKArchiveMD5> archiveMD5s) throws IOException {
+        for (long pos = from - from % ARCHIVE_MD5_RANGE; pos < size; pos += ARCHIVE_MD5_RANGE) {
+            int rangeSize = (int) Math.min(ARCHIVE_MD5_RANGE, size - pos);
+            byte[] md5 = md5(fc, start + pos, rangeSize);
+            archiveMD5s.add(new VPKArchiveMD5(chunkIndex, (int) pos, rangeSize, md5));
+        }
+    }
+
+    private static byte[] md5(FileChannel fc, long start, long size) throws IOException {
+        if (size == 0) {
+            return VPKValidator.md5(ByteBuffer.allocate(0));
+        }
+
+        return VPKValidator.md5(fc.map(FileChannel.MapMode.READ_ONLY, start, size));
+    }
+
+    /**
+     * Serializes the archive MD5 section, sorted by chunk index and offset.
+     */
+    static ByteBuffer buildArchiveMD5Section(List<VPKArchiveMD5> archiveMD5s) {
+        List<VPKArchiveMD5> sorted = new ArrayList<>(archiveMD5s);
+        Collections.sort(sorted, new Comparator<VPKArchiveMD5>() {
+            @Override
+            public int compare(VPKArchiveMD5 m1, VPKArchiveMD5 m2) {
+                int result = Integer.compare(m1.getChunkIndex(), m2.getChunkIndex());
+                if (result == 0) {
+                    result = Long.compare(m1.getOffset() & 0xffffffffL, m2.getOffset() & 0xffffffffL);
+                }
+                return result;
+            }
+        });
+
+        ByteBuffer bb = ByteBuffer.allocate(sorted.size() * VPKFooter.ARCHIVE_MD5_SIZE);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+        for (VPKArchiveMD5 archiveMD5 : sorted) {
+            bb.putInt(archiveMD5.getChunkIndex());
+            bb.putInt(archiveMD5.getOffset());
+            bb.putInt(archiveMD5.getSize());
+            bb.put(archiveMD5.getMD5Internal());
+        }
+
+        bb.flip();
+
+        return bb;
+    }
+
+    /**
+     * Serializes the directory tree.
+     *
+     * @param entries entries in tree order
+     * @param chunkIndices chunk index for each entry
+     * @return directory tree buffer
+     */
+    static ByteBuffer buildTree(List<VPKEntry> entries, List<Integer> chunkIndices) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer fields = ByteBuffer.allocate(18);
+        fields.order(ByteOrder.LITTLE_ENDIAN);
+
+        String type = null;
+        String dir = null;
+
+        for (int i = 0; i < entries.size(); i++) {
+            VPKEntry entry = entries.get(i);
+
+            if (!entry.getType().equals(type)) {
+                if (type != null) {
+                    // end of dir and type
+                    out.write(0);
+                    out.write(0);
+                }
+
+                type = entry.getType();
+                dir = null;
+                writeString(out, type);
+            }
+
+            if (!entry.getDir().equals(dir)) {
+                if (dir != null) {
+                    // end of dir
+                    out.write(0);
+                }
+
+                dir = entry.getDir();
+
+                // root dir is stored as space, other dirs without trailing slash
+                if (dir.isEmpty()) {
+                    writeString(out, " ");
+                } else {
+                    writeString(out, dir.substring(0, dir.length() - 1));
+                }
+            }
+
+            writeString(out, entry.getName());
+
+            byte[] preload = entry.getPreloadData();
+            int chunkIndex = chunkIndices.get(i);
+
+            // compressed entries store their uncompressed size as preload data
+            if (entry.isCompressed()) {
+                preload = VPKCompression.createHeader(entry.getDataSize());
+                chunkIndex |= VPKArchive.CHUNK_FLAG_COMPRESSED;
+            }
+
+            fields.clear();
+            fields.putInt((int) entry.getCRC32());
+            fields.putShort((short) preload.length);
+            fields.putShort((short) chunkIndex);
+            fields.putInt(entry.getOffset());
+            fields.putInt(entry.getSize());
+            fields.putShort((short) 0xffff);
+            out.write(fields.array(), 0, fields.position());
+
+            out.write(preload, 0, preload.length);
+        }
+
+        if (type != null) {
+            out.write(0);
+            out.write(0);
+        }
+
+        // end of tree
+        out.write(0);
+
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String str) {
+        byte[] raw = str.getBytes(CHARSET);
+        out.write(raw, 0, raw.length);
+        out.write(0);
+    }
+
+    /**
+     * Returns the version of the archives to write.
+     *
+     * @return VPK version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the archives to write. Version 2 archives include
+     * MD5 checksums of the tree and the chunk data.
+     *
+     * @param version VPK version
+     * @throws IllegalArgumentException if the version number is outside the
+     *                                  allowed range
+     */
+    public void setVersion(int version) {
+        if (version > VPKArchive.VERS_MAX || version < VPKArchive.VERS_MIN) {
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        }
+
+        this.version = version;
+    }
+
+    /**
+     * Returns the maximum size of a chunk file.
+     *
+     * @return maximum chunk size in bytes
+     */
+    public long getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * Sets the maximum size of a chunk file. Entries larger than this size
+     * are stored in a chunk of their own.
+     *
+     * @param maxChunkSize maximum chunk size in bytes
+     */
+    public void setMaxChunkSize(long maxChunkSize) {
+        if (maxChunkSize < 1 || maxChunkSize > 0xffffffffL) {
+            throw new IllegalArgumentException("Invalid chunk size: " + maxChunkSize);
+        }
+
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * Returns the preload policy.
+     *
+     * @return preload policy
+     */
+    public VPKPreloadPolicy getPreloadPolicy() {
+        return preloadPolicy;
+    }
+
+    /**
+     * Sets the policy that decides how much data of each entry is stored in
+     * the directory tree.
+     *
+     * @param preloadPolicy preload policy
+     */
+    public void setPreloadPolicy(VPKPreloadPolicy preloadPolicy) {
+        if (preloadPolicy == null) {
+            throw new NullPointerException();
+        }
+
+        this.preloadPolicy = preloadPolicy;
+    }
+
+    /**
+     * Returns the compression policy.
+     *
+     * @return compression policy
+     */
+    public VPKCompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * Sets the policy that decides which entries are stored compressed.
+     * Compressed entries have no preload data and their compressed data is
+     * kept in memory until the archive is written. Archives with compressed
+     * entries can only be read by this library.
+     *
+     * @param compressionPolicy compression policy
+     */
+    public void setCompressionPolicy(VPKCompressionPolicy compressionPolicy) {
+        if (compressionPolicy == null) {
+            throw new NullPointerException();
+        }
+
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Returns the deflate compression level.
+     *
+     * @return compression level
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Sets the deflate compression level for compressed entries.
+     *
+     * @param compressionLevel compression level from 0 to 9 or
+     *                         {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION
+                && (compressionLevel < Deflater.NO_COMPRESSION
+                || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Returns the executor for the checksum and chunk writing tasks.
+     *
+     * @return executor service or {@code null} if a temporary thread pool is
+     *         used
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor for the checksum and chunk writing tasks. The executor
+     * isn't shut down after writing.
+     *
+     * @param executor executor service or {@code null} to use a temporary
+     *                 thread pool with {@link #getThreads()} threads
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the number of threads of the temporary thread pool.
+     *
+     * @return number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads of the temporary thread pool. It isn't used
+     * if an executor is set.
+     *
+     * @param threads number of threads
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        }
+
+        this.threads = threads;
+    }
+
+    /**
+     * Returns whether entries with identical contents share their data.
+     *
+     * @return true if duplicate data is stored only once
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * Sets whether entries with identical contents share their data.
+     *
+     * @param deduplicate true to store duplicate data only once
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    static class Item {
+
+        final VPKEntry entry;
+        final Source source;
+        int chunkIndex;
+
+        // compressed data, if the entry is stored compressed
+        ByteBuffer compressed;
+
+        Item(VPKEntry entry, Source source) {
+            this.entry = entry;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Key for the contents of a prepared entry.
+     */
+    private static class ContentKey {
+
+        private final long crc32;
+        private final int size;
+        private final int preloadSize;
+        private final boolean compressed;
+        private final byte[] digest;
+
+        ContentKey(VPKEntry entry, byte[] digest) {
+            this.crc32 = entry.getCRC32();
+            this.size = entry.getSize();
+            this.preloadSize = entry.getPreloadSize();
+            this.compressed = entry.isCompressed();
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ContentKey)) {
+                return false;
+            }
+
+            ContentKey other = (ContentKey) obj;
+
+            return crc32 == other.crc32 && size == other.size
+                    && preloadSize == other.preloadSize
+                    && compressed == other.compressed
+                    && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 31 * hash + (int) (crc32 ^ (crc32 >>> 32));
+            hash = 31 * hash + size;
+            hash = 31 * hash + preloadSize;
+            hash = 31 * hash + (compressed ? 1 : 0);
+            hash = 31 * hash + Arrays.hashCode(digest);
+            return hash;
+        }
+    }
+
+    /**
+     * Data source of an entry.
+     */
+    abstract static class Source {
+
+        /**
+         * Returns the full data of the source.
+         *
+         * @return new buffer for the data
+         * @throws IOException if the source can't be read
+         */
+        abstract ByteBuffer getData() throws IOException;
+    }
+
+    /**
+     * Source for a whole file or a range of it.
+     */
+    static class FileSource extends Source {
+
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        FileSource(File file) {
+            this(file, 0, -1);
+        }
+
+        FileSource(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        ByteBuffer getData() throws IOException {
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = length < 0 ? fc.size() - offset : length;
+
+                if (size > Integer.MAX_VALUE) {
+                    throw new VPKException("File too large: " + file);
+                }
+
+                return fc.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            }
+        }
+
+        void transferTo(long position, long count, FileChannel dst) throws IOException {
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                position += offset;
+                long end = position + count;
+
+                while (position < end) {
+                    long n = fc.transferTo(position, end - position, dst);
+
+                    if (n <= 0) {
+                        throw new VPKException("File changed while writing: " + file);
+                    }
+
+                    position += n;
+                }
+            }
+        }
+    }
+
+    static class BufferSource extends Source {
+
+        private final ByteBuffer data;
+
+        BufferSource(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        ByteBuffer getData() {
+            return data.duplicate();
+        }
+    }
+}
@@ -11,10 +11,10 @@ package info.ata4.vpk.examples;
 
 import info.ata4.vpk.VPKArchive;
 import info.ata4.vpk.VPKEntry;
+import info.ata4.vpk.VPKExtractor;
+import info.ata4.vpk.VPKProgressListener;
 import java.io.File;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import org.apache.commons.io.FileUtils;
 
 /**
  * Example: extract all entries in a VPK archive.
@@ -40,24 +40,26 @@ public class Extract {
                 return;
             }
             
-            File destDir = file.getParentFile();
-
-            for (VPKEntry entry : vpk.getEntries()) {
-                System.out.println(entry.getPath());
-                
-                File entryFile = new File(destDir, entry.getPath());
-                File entryDir = entryFile.getParentFile();
-                if (entryDir != null && !entryDir.exists()) {
-                    entryDir.mkdirs();
+            File destDir = file.getAbsoluteFile().getParentFile();
+            
+            VPKExtractor extractor = new VPKExtractor();
+            extractor.setProgressListener(new VPKProgressListener() {
+                @Override
+                public void entryCompleted(VPKEntry entry, int entriesDone,
+                        int entriesTotal, long bytesDone, long bytesTotal) {
+                    System.out.printf("[%d/%d] %s\n", entriesDone, entriesTotal, entry.getPath());
                 }
-                
-                try (
-                    FileChannel fc = FileUtils.openOutputStream(entryFile).getChannel()
-                ) { 
-                    fc.write(entry.getData());
-                } catch (IOException ex) {
-                    System.err.println("Can't write " + entry.getPath() + ": " + ex.getMessage());
+
+                @Override
+                public void entryFailed(VPKEntry entry, IOException ex) {
+                    System.err.println("Can't write " + entry.getPath() + ": " + ex.getCause().getMessage());
                 }
+            });
+            
+            try {
+                extractor.extract(vpk.getEntries(), destDir);
+            } catch (IOException ex) {
+                System.err.println(ex.getMessage());
             }
         }
     }
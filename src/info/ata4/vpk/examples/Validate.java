@@ -11,8 +11,10 @@ package info.ata4.vpk.examples;
 
 import info.ata4.vpk.VPKArchive;
 import info.ata4.vpk.VPKEntry;
+import info.ata4.vpk.VPKValidationReport;
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * Example: validate the CRC32 checksums of all entries in a VPK archive.
@@ -38,22 +40,26 @@ public class Validate {
                 return;
             }
 
-            int failed = 0;
-
-            for (VPKEntry entry : vpk.getEntries()) {
-                try {
-                    entry.checkData();
-                } catch (IOException ex) {
-                    System.err.println(entry.getPath() + " failed! " + ex.getMessage());
-                    failed++;
-                }
+            VPKValidationReport report;
+            
+            try {
+                report = vpk.validate();
+            } catch (IOException ex) {
+                System.err.println("Can't validate archive: " + ex.getMessage());
+                return;
+            }
+            
+            for (Map.Entry<VPKEntry, IOException> failure : report.getFailures().entrySet()) {
+                System.err.println(failure.getKey().getPath() + " failed! " + failure.getValue().getMessage());
             }
 
-            if (failed == 0) {
+            if (report.isValid()) {
                 System.out.println("All files validated successfully");
             } else {
-                System.out.println(failed + " files failed validation");
+                System.out.println(report.getFailures().size() + " files failed validation");
             }
+            
+            System.out.println(report);
         }
     }
 }
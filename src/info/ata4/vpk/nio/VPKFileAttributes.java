@@ -0,0 +1,118 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.nio;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Basic attributes of an entry or directory. Entries have no time stamps of
+ * their own, so all times are the modification time of the archive.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKFileAttributes implements BasicFileAttributes {
+
+    private final boolean directory;
+    private final long size;
+    private final FileTime time;
+
+    VPKFileAttributes(boolean directory, long size, FileTime time) {
+        this.directory = directory;
+        this.size = size;
+        this.time = time;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return time;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return time;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return time;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !directory;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return null;
+    }
+
+    /**
+     * Returns the attributes as map for
+     * {@link java.nio.file.Files#readAttributes(java.nio.file.Path, String, java.nio.file.LinkOption...)}.
+     *
+     * @param names comma-separated attribute names or "*" for all attributes
+     * @return attribute map
+     * @throws IllegalArgumentException if an attribute name is unknown
+     */
+    Map<String, Object> toMap(String names) {
+        Map<String, Object> all = new LinkedHashMap<>();
+        all.put("lastModifiedTime", lastModifiedTime());
+        all.put("lastAccessTime", lastAccessTime());
+        all.put("creationTime", creationTime());
+        all.put("size", size());
+        all.put("isRegularFile", isRegularFile());
+        all.put("isDirectory", isDirectory());
+        all.put("isSymbolicLink", isSymbolicLink());
+        all.put("isOther", isOther());
+        all.put("fileKey", fileKey());
+
+        if (names.equals("*")) {
+            return all;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        for (String name : names.split(",")) {
+            if (name.equals("*")) {
+                result.putAll(all);
+            } else if (all.containsKey(name)) {
+                result.put(name, all.get(name));
+            } else {
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            }
+        }
+
+        return result;
+    }
+}
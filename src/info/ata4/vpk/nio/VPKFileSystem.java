@@ -0,0 +1,234 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.nio;
+
+import info.ata4.vpk.VPKArchive;
+import info.ata4.vpk.VPKDirectory;
+import info.ata4.vpk.VPKEntry;
+import info.ata4.vpk.VPKGlob;
+import java.io.IOException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only file system for the entries of a VPK archive.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKFileSystem extends FileSystem {
+
+    private final VPKFileSystemProvider provider;
+    private final Path archivePath;
+    private final VPKArchive archive;
+    private final FileTime time;
+    private volatile boolean open = true;
+
+    VPKFileSystem(VPKFileSystemProvider provider, Path archivePath, VPKArchive archive)
+            throws IOException {
+        this.provider = provider;
+        this.archivePath = archivePath;
+        this.archive = archive;
+        this.time = Files.getLastModifiedTime(archivePath);
+    }
+
+    Path getArchivePath() {
+        return archivePath;
+    }
+
+    VPKArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Returns the entry for a path.
+     *
+     * @param path path inside this file system
+     * @return entry or {@code null} if there's no entry for the path
+     */
+    VPKEntry getEntry(VPKPath path) {
+        checkOpen();
+        return archive.getEntry(path.getEntryPath());
+    }
+
+    /**
+     * Returns the names of the files and directories inside a directory.
+     *
+     * @param path path inside this file system
+     * @return sorted names or {@code null} if the path is no directory
+     */
+    Set<String> getChildren(VPKPath path) {
+        checkOpen();
+
+        VPKDirectory dir = archive.getDirectory(path.getEntryPath());
+
+        if (dir == null) {
+            return null;
+        }
+
+        Set<String> children = new TreeSet<>();
+
+        for (VPKDirectory child : dir.getChildren()) {
+            children.add(child.getName());
+        }
+
+        for (VPKEntry entry : dir.getEntries()) {
+            children.add(entry.getName() + "." + entry.getType());
+        }
+
+        return children;
+    }
+
+    /**
+     * Returns the attributes for a path.
+     *
+     * @param path path inside this file system
+     * @return attributes or {@code null} if the path doesn't exist
+     */
+    VPKFileAttributes getAttributes(VPKPath path) {
+        VPKEntry entry = getEntry(path);
+
+        if (entry != null) {
+            return new VPKFileAttributes(false, entry.getDataSize(), time);
+        }
+
+        if (archive.getDirectory(path.getEntryPath()) != null) {
+            return new VPKFileAttributes(true, 0, time);
+        }
+
+        return null;
+    }
+
+    long getTotalSize() throws IOException {
+        return Files.size(archivePath);
+    }
+
+    void checkOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    @Override
+    public VPKFileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+
+        open = false;
+        provider.removeFileSystem(archivePath);
+        archive.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.<Path>singletonList(new VPKPath(this, "/"));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.<FileStore>singletonList(new VPKFileStore(this));
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public VPKPath getPath(String first, String... more) {
+        StringBuilder sb = new StringBuilder(first);
+
+        for (String name : more) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(name);
+        }
+
+        return new VPKPath(this, sb.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int pos = syntaxAndPattern.indexOf(':');
+
+        if (pos <= 0) {
+            throw new IllegalArgumentException("Missing syntax: " + syntaxAndPattern);
+        }
+
+        String syntax = syntaxAndPattern.substring(0, pos);
+        String input = syntaxAndPattern.substring(pos + 1);
+        final Pattern pattern;
+
+        switch (syntax) {
+            case "glob":
+                pattern = VPKGlob.compile(input);
+                break;
+
+            case "regex":
+                pattern = Pattern.compile(input);
+                break;
+
+            default:
+                throw new UnsupportedOperationException("Unsupported syntax: " + syntax);
+        }
+
+        return new PathMatcher() {
+            @Override
+            public boolean matches(Path path) {
+                return pattern.matcher(path.toString()).matches();
+            }
+        };
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException();
+    }
+}
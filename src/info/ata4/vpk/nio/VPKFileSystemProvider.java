@@ -0,0 +1,399 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.nio;
+
+import info.ata4.vpk.VPKArchive;
+import info.ata4.vpk.VPKEntry;
+import info.ata4.vpk.VPKIndexMode;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only file system provider for VPK archives with the URI scheme "vpk".
+ * A file system is opened with
+ * {@link java.nio.file.FileSystems#newFileSystem(Path, ClassLoader)} for the
+ * archive file, or with a URI of the form
+ * {@code vpk:file:///path/to/pak01_dir.vpk}. Paths in URIs are appended after
+ * "!", like {@code vpk:file:///path/to/pak01_dir.vpk!/materials/a.vmt}.
+ * <p>
+ * Supported environment properties:
+ * <ul>
+ * <li>{@code indexMode}: {@link VPKIndexMode} or its name, the index mode of
+ * the archive</li>
+ * </ul>
+ * Entry data is read from zero-copy slices of {@link VPKEntry#getData()}.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKFileSystemProvider extends FileSystemProvider {
+
+    public static final String SCHEME = "vpk";
+
+    private final Map<Path, VPKFileSystem> fileSystems = new HashMap<>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        return newFileSystem(getArchivePath(uri), env);
+    }
+
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        if (!path.getFileName().toString().toLowerCase().endsWith(".vpk")) {
+            throw new UnsupportedOperationException();
+        }
+
+        Path archivePath = path.toRealPath();
+
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(archivePath)) {
+                throw new FileSystemAlreadyExistsException(archivePath.toString());
+            }
+
+            VPKArchive archive = new VPKArchive();
+            archive.setIndexMode(getIndexMode(env));
+            archive.load(archivePath.toFile());
+
+            VPKFileSystem fs = new VPKFileSystem(this, archivePath, archive);
+            fileSystems.put(archivePath, fs);
+
+            return fs;
+        }
+    }
+
+    private static VPKIndexMode getIndexMode(Map<String, ?> env) {
+        Object value = env == null ? null : env.get("indexMode");
+
+        if (value == null) {
+            return VPKIndexMode.DEFAULT;
+        }
+
+        if (value instanceof VPKIndexMode) {
+            return (VPKIndexMode) value;
+        }
+
+        return VPKIndexMode.valueOf(value.toString().toUpperCase());
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        try {
+            return getOpenFileSystem(getArchivePath(uri).toRealPath());
+        } catch (IOException ex) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String spec = uri.getSchemeSpecificPart();
+        int sep = spec.indexOf("!/");
+
+        if (sep < 0) {
+            throw new IllegalArgumentException("URI without entry path: " + uri);
+        }
+
+        return getFileSystem(uri).getPath(spec.substring(sep + 1));
+    }
+
+    private VPKFileSystem getOpenFileSystem(Path archivePath) {
+        synchronized (fileSystems) {
+            VPKFileSystem fs = fileSystems.get(archivePath);
+
+            if (fs == null) {
+                throw new FileSystemNotFoundException(archivePath.toString());
+            }
+
+            return fs;
+        }
+    }
+
+    void removeFileSystem(Path archivePath) {
+        synchronized (fileSystems) {
+            fileSystems.remove(archivePath);
+        }
+    }
+
+    private static Path getArchivePath(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme is not " + SCHEME + ": " + uri);
+        }
+
+        String spec = uri.getSchemeSpecificPart();
+        int sep = spec.indexOf("!/");
+
+        if (sep >= 0) {
+            spec = spec.substring(0, sep);
+        }
+
+        try {
+            int colon = spec.indexOf(':');
+            return Paths.get(new URI(spec.substring(0, colon), spec.substring(colon + 1), null));
+        } catch (URISyntaxException | IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Invalid archive URI: " + uri, ex);
+        }
+    }
+
+    URI toUri(VPKFileSystem fs, String path) {
+        URI archiveUri = fs.getArchivePath().toUri();
+
+        try {
+            return new URI(SCHEME, archiveUri.getScheme() + ":"
+                    + archiveUri.getSchemeSpecificPart() + "!" + path, null);
+        } catch (URISyntaxException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static VPKPath toVPKPath(Path path) {
+        if (!(path instanceof VPKPath)) {
+            throw new ProviderMismatchException();
+        }
+
+        return (VPKPath) path;
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+            FileAttribute<?>... attrs) throws IOException {
+        VPKPath vpkPath = toVPKPath(path);
+
+        for (OpenOption option : options) {
+            if (option != StandardOpenOption.READ && option != LinkOption.NOFOLLOW_LINKS) {
+                throw new ReadOnlyFileSystemException();
+            }
+        }
+
+        VPKEntry entry = vpkPath.getFileSystem().getEntry(vpkPath);
+
+        if (entry == null) {
+            if (vpkPath.getFileSystem().getChildren(vpkPath) != null) {
+                throw new FileSystemException(path.toString(), null, "Is a directory");
+            }
+
+            throw new NoSuchFileException(path.toString());
+        }
+
+        return new VPKByteChannel(entry.getData());
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(final Path dir,
+            final DirectoryStream.Filter<? super Path> filter) throws IOException {
+        VPKPath vpkDir = toVPKPath(dir);
+        Set<String> children = vpkDir.getFileSystem().getChildren(vpkDir);
+
+        if (children == null) {
+            if (vpkDir.getFileSystem().getEntry(vpkDir) != null) {
+                throw new NotDirectoryException(dir.toString());
+            }
+
+            throw new NoSuchFileException(dir.toString());
+        }
+
+        final List<Path> paths = new ArrayList<>(children.size());
+
+        for (String name : children) {
+            Path child = dir.resolve(name);
+            if (filter == null || filter.accept(child)) {
+                paths.add(child);
+            }
+        }
+
+        return new DirectoryStream<Path>() {
+
+            private boolean iterated;
+
+            @Override
+            public Iterator<Path> iterator() {
+                if (iterated) {
+                    throw new IllegalStateException("Iterator already obtained");
+                }
+
+                iterated = true;
+                return paths.iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        if (path.equals(path2)) {
+            return true;
+        }
+
+        if (!(path2 instanceof VPKPath) || path.getFileSystem() != path2.getFileSystem()) {
+            return false;
+        }
+
+        return toVPKPath(path).toRealPath().equals(toVPKPath(path2).toRealPath());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        return new VPKFileStore(toVPKPath(path).getFileSystem());
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        VPKPath vpkPath = toVPKPath(path);
+
+        if (vpkPath.getFileSystem().getAttributes(vpkPath) == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+
+        for (AccessMode mode : modes) {
+            if (mode != AccessMode.READ) {
+                throw new AccessDeniedException(path.toString());
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type,
+            LinkOption... options) {
+        final VPKPath vpkPath = toVPKPath(path);
+
+        if (type != BasicFileAttributeView.class) {
+            return null;
+        }
+
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return VPKFileSystemProvider.this.readAttributes(vpkPath, BasicFileAttributes.class);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime,
+                    FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type,
+            LinkOption... options) throws IOException {
+        VPKPath vpkPath = toVPKPath(path);
+
+        if (type != BasicFileAttributes.class) {
+            throw new UnsupportedOperationException("Unsupported attributes: " + type.getName());
+        }
+
+        VPKFileAttributes attrs = vpkPath.getFileSystem().getAttributes(vpkPath);
+
+        if (attrs == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+
+        return (A) attrs;
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes,
+            LinkOption... options) throws IOException {
+        String names = attributes;
+        int pos = attributes.indexOf(':');
+
+        if (pos >= 0) {
+            String view = attributes.substring(0, pos);
+
+            if (!view.equals("basic")) {
+                throw new UnsupportedOperationException("Unsupported attribute view: " + view);
+            }
+
+            names = attributes.substring(pos + 1);
+        }
+
+        VPKFileAttributes attrs = (VPKFileAttributes) readAttributes(path,
+                BasicFileAttributes.class, options);
+
+        return attrs.toMap(names);
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value,
+            LinkOption... options) throws IOException {
+        throw new ReadOnlyFileSystemException();
+    }
+}
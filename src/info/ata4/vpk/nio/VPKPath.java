@@ -0,0 +1,436 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Path inside a VPK file system. Names are separated by "/", absolute paths
+ * start with "/" and are relative to the root of the archive.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKPath implements Path {
+
+    private final VPKFileSystem fs;
+    private final String path;
+    private int[] offsets;
+
+    VPKPath(VPKFileSystem fs, String path) {
+        this.fs = fs;
+        this.path = normalizeString(path);
+    }
+
+    /**
+     * Removes redundant and trailing slashes.
+     */
+    private static String normalizeString(String path) {
+        StringBuilder sb = new StringBuilder(path.length());
+        char prev = 0;
+
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c != '/' || prev != '/') {
+                sb.append(c);
+            }
+            prev = c;
+        }
+
+        if (sb.length() > 1 && prev == '/') {
+            sb.setLength(sb.length() - 1);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the start position of each name.
+     */
+    private int[] getOffsets() {
+        if (offsets == null) {
+            List<Integer> list = new ArrayList<>();
+
+            if (path.isEmpty()) {
+                list.add(0);
+            } else {
+                int pos = isAbsolute() ? 1 : 0;
+                while (pos < path.length()) {
+                    list.add(pos);
+                    int next = path.indexOf('/', pos);
+                    pos = next < 0 ? path.length() : next + 1;
+                }
+            }
+
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = list.get(i);
+            }
+
+            offsets = result;
+        }
+
+        return offsets;
+    }
+
+    private int getEnd(int index) {
+        int[] starts = getOffsets();
+        return index + 1 < starts.length ? starts[index + 1] - 1 : path.length();
+    }
+
+    private static VPKPath toVPKPath(Path path) {
+        if (path == null) {
+            throw new NullPointerException();
+        }
+
+        if (!(path instanceof VPKPath)) {
+            throw new ProviderMismatchException();
+        }
+
+        return (VPKPath) path;
+    }
+
+    /**
+     * Returns the path of the corresponding archive entry or directory,
+     * without leading slash.
+     *
+     * @return entry path
+     */
+    String getEntryPath() {
+        return toAbsolutePath().normalize().toString().substring(1);
+    }
+
+    @Override
+    public VPKFileSystem getFileSystem() {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public VPKPath getRoot() {
+        return isAbsolute() ? new VPKPath(fs, "/") : null;
+    }
+
+    @Override
+    public VPKPath getFileName() {
+        int count = getNameCount();
+
+        if (count == 0) {
+            return null;
+        }
+
+        if (count == 1 && !isAbsolute()) {
+            return this;
+        }
+
+        return new VPKPath(fs, path.substring(getOffsets()[count - 1]));
+    }
+
+    @Override
+    public VPKPath getParent() {
+        int count = getNameCount();
+
+        if (count == 0) {
+            return null;
+        }
+
+        if (count == 1) {
+            return getRoot();
+        }
+
+        return new VPKPath(fs, path.substring(0, getOffsets()[count - 1] - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return getOffsets().length;
+    }
+
+    @Override
+    public VPKPath getName(int index) {
+        if (index < 0 || index >= getNameCount()) {
+            throw new IllegalArgumentException("Invalid name index: " + index);
+        }
+
+        return new VPKPath(fs, path.substring(getOffsets()[index], getEnd(index)));
+    }
+
+    @Override
+    public VPKPath subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > getNameCount() || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("Invalid name range: " + beginIndex + "-" + endIndex);
+        }
+
+        return new VPKPath(fs, path.substring(getOffsets()[beginIndex], getEnd(endIndex - 1)));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        VPKPath that = toVPKPath(other);
+
+        if (that.fs != fs || that.isAbsolute() != isAbsolute()) {
+            return false;
+        }
+
+        int count = that.getNameCount();
+
+        if (that.path.equals("/")) {
+            return true;
+        }
+
+        if (count > getNameCount()) {
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (!that.getName(i).path.equals(getName(i).path)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(fs.getPath(other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        VPKPath that = toVPKPath(other);
+
+        if (that.fs != fs) {
+            return false;
+        }
+
+        if (that.isAbsolute()) {
+            return equals(that);
+        }
+
+        int count = that.getNameCount();
+        int offset = getNameCount() - count;
+
+        if (offset < 0) {
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (!that.getName(i).path.equals(getName(offset + i).path)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(fs.getPath(other));
+    }
+
+    @Override
+    public VPKPath normalize() {
+        LinkedList<String> names = new LinkedList<>();
+
+        for (int i = 0; i < getNameCount(); i++) {
+            String name = getName(i).path;
+
+            if (name.equals(".") || name.isEmpty()) {
+                continue;
+            }
+
+            if (name.equals("..")) {
+                if (!names.isEmpty() && !names.getLast().equals("..")) {
+                    names.removeLast();
+                    continue;
+                }
+
+                // can't go above the root
+                if (isAbsolute()) {
+                    continue;
+                }
+            }
+
+            names.add(name);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        if (isAbsolute()) {
+            sb.append('/');
+        }
+
+        for (String name : names) {
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '/') {
+                sb.append('/');
+            }
+            sb.append(name);
+        }
+
+        return new VPKPath(fs, sb.toString());
+    }
+
+    @Override
+    public VPKPath resolve(Path other) {
+        VPKPath that = toVPKPath(other);
+
+        if (that.isAbsolute()) {
+            return that;
+        }
+
+        if (that.path.isEmpty()) {
+            return this;
+        }
+
+        if (path.isEmpty()) {
+            return that;
+        }
+
+        return new VPKPath(fs, path + "/" + that.path);
+    }
+
+    @Override
+    public VPKPath resolve(String other) {
+        return resolve(fs.getPath(other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        VPKPath parent = getParent();
+        return parent == null ? other : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(fs.getPath(other));
+    }
+
+    @Override
+    public VPKPath relativize(Path other) {
+        VPKPath that = toVPKPath(other);
+
+        if (that.isAbsolute() != isAbsolute()) {
+            throw new IllegalArgumentException("Can't relativize " + other + " against " + this);
+        }
+
+        if (path.isEmpty() || path.equals("/")) {
+            return new VPKPath(fs, isAbsolute() ? that.path.substring(1) : that.path);
+        }
+
+        int count = getNameCount();
+        int thatCount = that.path.equals("/") ? 0 : that.getNameCount();
+        int common = 0;
+
+        while (common < count && common < thatCount
+                && getName(common).path.equals(that.getName(common).path)) {
+            common++;
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = common; i < count; i++) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append("..");
+        }
+
+        for (int i = common; i < thatCount; i++) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(that.getName(i).path);
+        }
+
+        return new VPKPath(fs, sb.toString());
+    }
+
+    @Override
+    public URI toUri() {
+        return fs.provider().toUri(fs, toAbsolutePath().normalize().path);
+    }
+
+    @Override
+    public VPKPath toAbsolutePath() {
+        return isAbsolute() ? this : new VPKPath(fs, "/" + path);
+    }
+
+    @Override
+    public VPKPath toRealPath(LinkOption... options) throws IOException {
+        VPKPath realPath = toAbsolutePath().normalize();
+        fs.provider().checkAccess(realPath);
+        return realPath;
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events,
+            WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        List<Path> names = new ArrayList<>();
+        for (int i = 0; i < getNameCount(); i++) {
+            names.add(getName(i));
+        }
+        return names.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return path.compareTo(toVPKPath(other).path);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof VPKPath)) {
+            return false;
+        }
+
+        VPKPath other = (VPKPath) obj;
+        return fs == other.fs && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static info.ata4.vpk.VPKTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that an archive can be read by many threads while it is reloaded.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKArchiveTest {
+
+    private static final int READERS = 4;
+    private static final int LOADS = 40;
+
+    private File dir;
+    private Map<String, byte[]> data1;
+    private Map<String, byte[]> data2;
+    private File file1;
+    private File file2;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = createTempDir();
+
+        // same paths with different data, one single-file and one multi-chunk
+        // archive, so entries resolved against the wrong layout read garbage
+        data1 = createData(300, 5);
+        data2 = createData(300, 6);
+        file1 = new File(dir, "one.vpk");
+        file2 = new File(dir, "two_dir.vpk");
+
+        VPKWriter writer = new VPKWriter();
+        addData(writer, data1);
+        writer.write(file1);
+
+        writer = new VPKWriter();
+        writer.setMaxChunkSize(16 << 10);
+        addData(writer, data2);
+        writer.write(file2);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testReadWhileLoading() throws Exception {
+        for (VPKIndexMode mode : VPKIndexMode.values()) {
+            final VPKArchive archive = load(file1, mode);
+            final List<String> paths = new ArrayList<>(data1.keySet());
+            final AtomicBoolean done = new AtomicBoolean();
+            final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+            List<Thread> readers = new ArrayList<>();
+
+            for (int i = 0; i < READERS; i++) {
+                final Random random = new Random(i);
+
+                Thread reader = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (!done.get()) {
+                                read(archive, paths.get(random.nextInt(paths.size())));
+                            }
+                        } catch (Throwable ex) {
+                            failures.add(ex);
+                        }
+                    }
+                };
+
+                reader.start();
+                readers.add(reader);
+            }
+
+            try {
+                for (int i = 0; i < LOADS && failures.isEmpty(); i++) {
+                    archive.load(i % 2 == 0 ? file2 : file1);
+                }
+            } finally {
+                done.set(true);
+
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+            }
+
+            if (!failures.isEmpty()) {
+                throw new AssertionError(mode + ": " + failures.peek(), failures.peek());
+            }
+        }
+    }
+
+    private void read(VPKArchive archive, String path) throws IOException {
+        VPKEntry entry = archive.getEntry(path);
+        assertNotNull(path, entry);
+        assertData(entry);
+
+        entry = archive.findEntry(path.toUpperCase().replace('/', '\\'));
+        if (entry != null) {
+            assertData(entry);
+        }
+
+        List<VPKEntry> entries = archive.getEntriesForDir(entry == null ? "" : entry.getDir());
+        assertNotNull(path, entries);
+
+        for (int i = 0; i < entries.size(); i += 7) {
+            assertData(entries.get(i));
+        }
+    }
+
+    private void assertData(VPKEntry entry) throws IOException {
+        byte[] actual = toArray(entry.getData());
+        byte[] expected1 = data1.get(entry.getPath());
+        byte[] expected2 = data2.get(entry.getPath());
+
+        assertTrue(entry.getPath(), Arrays.equals(expected1, actual)
+                || Arrays.equals(expected2, actual));
+
+        entry.checkData();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static info.ata4.vpk.VPKTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip tests for archives with compressed entries.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKCompressionTest {
+
+    // compress text files only, the others contain random data
+    private static final VPKCompressionPolicy TEXT_POLICY = new VPKCompressionPolicy() {
+        @Override
+        public boolean isCompressed(String path, int size) {
+            return !path.endsWith(".vtf");
+        }
+    };
+
+    private File dir;
+    private Map<String, byte[]> data;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = createTempDir();
+        data = createData(200, 4);
+        file = new File(dir, "test_dir.vpk");
+
+        VPKWriter writer = new VPKWriter();
+        writer.setVersion(2);
+        writer.setMaxChunkSize(16 << 10);
+        writer.setCompressionPolicy(TEXT_POLICY);
+        addData(writer, data);
+        writer.write(file);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testGetData() throws IOException {
+        for (VPKIndexMode mode : VPKIndexMode.values()) {
+            VPKArchive archive = load(file, mode);
+            assertContents(archive, data);
+            assertTrue(archive.validate().isValid());
+            assertTrue(new VPKValidator().validateChunks(archive).isValid());
+
+            for (VPKEntry entry : archive.getEntries()) {
+                // incompressible data is stored as it is
+                if (entry.isCompressed()) {
+                    assertTrue(entry.getPath(), TEXT_POLICY.isCompressed(entry.getPath(),
+                            entry.getDataSize()));
+                    assertTrue(entry.getPath(), entry.getSize() < entry.getDataSize());
+                    assertEquals(entry.getPath(), 0, entry.getPreloadSize());
+                } else {
+                    assertEquals(entry.getPath(), entry.getSize(), entry.getDataSize());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        long size = 0;
+        long dataSize = 0;
+
+        for (VPKEntry entry : archive.getEntriesForType("txt")) {
+            size += entry.getSize();
+            dataSize += entry.getDataSize();
+        }
+
+        assertTrue(size < dataSize / 2);
+    }
+
+    @Test
+    public void testStreams() throws IOException {
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+
+        for (Map.Entry<String, byte[]> expected : data.entrySet()) {
+            VPKEntry entry = archive.getEntry(expected.getKey());
+
+            try (InputStream is = entry.openInputStream()) {
+                assertArrayEquals(expected.getKey(), expected.getValue(), readFully(is));
+            }
+
+            try (ReadableByteChannel channel = entry.openChannel()) {
+                assertArrayEquals(expected.getKey(), expected.getValue(),
+                        readFully(Channels.newInputStream(channel)));
+            }
+        }
+    }
+
+    @Test
+    public void testDirectorySizes() throws IOException {
+        long dataSize = 0;
+        for (byte[] bytes : data.values()) {
+            dataSize += bytes.length;
+        }
+
+        // directory sizes count the uncompressed data
+        for (VPKIndexMode mode : VPKIndexMode.values()) {
+            VPKDirectory root = load(file, mode).getRootDirectory();
+            assertEquals(mode.name(), data.size(), root.getTotalEntryCount());
+            assertEquals(mode.name(), dataSize, root.getTotalDataSize());
+        }
+    }
+
+    @Test
+    public void testTransferTo() throws IOException {
+        // fresh archive, so the data isn't served from the data cache
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+
+        for (Map.Entry<String, byte[]> expected : data.entrySet()) {
+            VPKEntry entry = archive.getEntry(expected.getKey());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            assertEquals(expected.getKey(), expected.getValue().length,
+                    entry.transferTo(Channels.newChannel(out)));
+            assertArrayEquals(expected.getKey(), expected.getValue(), out.toByteArray());
+        }
+
+        assertEquals(0, archive.getDataCache().getCount());
+    }
+
+    @Test
+    public void testValidateBypassesCache() throws IOException {
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        assertTrue(archive.validate().isValid());
+
+        for (VPKEntry entry : archive.getEntries()) {
+            entry.checkData();
+        }
+
+        // checksums are calculated without decompressing into the cache
+        VPKDataCache cache = archive.getDataCache();
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testReadAll() throws IOException, InterruptedException, ExecutionException {
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        List<String> paths = new ArrayList<>(data.keySet());
+
+        List<ByteBuffer> result = archive.readAll(paths);
+        List<ByteBuffer> resultAsync = archive.readAllAsync(paths).get();
+
+        for (int i = 0; i < paths.size(); i++) {
+            byte[] expected = data.get(paths.get(i));
+            assertArrayEquals(paths.get(i), expected, toArray(result.get(i)));
+            assertArrayEquals(paths.get(i), expected, toArray(resultAsync.get(i)));
+        }
+    }
+
+    @Test
+    public void testUpdater() throws IOException {
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        VPKUpdater updater = new VPKUpdater(archive);
+        updater.setCompressionPolicy(VPKCompressionPolicy.ALL);
+
+        byte[] added = "added added added added".getBytes(StandardCharsets.UTF_8);
+        String replacedPath = "materials/dir1/file1.txt";
+
+        updater.addData("scripts/added.txt", ByteBuffer.wrap(added));
+        updater.addData(replacedPath, ByteBuffer.wrap(added));
+        updater.commit();
+
+        data.put("scripts/added.txt", added);
+        data.put(replacedPath, added);
+
+        assertTrue(archive.getEntry("scripts/added.txt").isCompressed());
+        assertContents(archive, data);
+
+        updater.compact();
+        assertContents(archive, data);
+        assertTrue(new VPKValidator().validateChunks(archive).isValid());
+    }
+
+    @Test(expected = VPKException.class)
+    public void testCorruptData() throws IOException {
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        VPKEntry entry = null;
+
+        for (VPKEntry e : archive.getEntriesForType("txt")) {
+            if (e.isCompressed() && (entry == null || e.getSize() > entry.getSize())) {
+                entry = e;
+            }
+        }
+
+        assertNotNull(entry);
+
+        // overwrite the middle of the zlib stream
+        try (RandomAccessFile raf = new RandomAccessFile(entry.getFile(), "rw")) {
+            raf.seek(entry.getOffsetUnsigned() + entry.getSize() / 2);
+            for (int i = 0; i < 8; i++) {
+                raf.write(0xff);
+            }
+        }
+
+        load(file, VPKIndexMode.DEFAULT).getEntry(entry.getPath()).getData();
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+
+        for (int n; (n = is.read(buf)) != -1;) {
+            out.write(buf, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the eviction rules and counters of {@link VPKDataCache}.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKDataCacheTest {
+
+    private static final int BUFFER_SIZE = 100;
+
+    private VPKDataCache cache;
+    private int nextOffset;
+
+    @Before
+    public void setUp() {
+        cache = new VPKDataCache();
+        cache.setMaxSize(3 * BUFFER_SIZE);
+    }
+
+    @Test
+    public void testEvictionOrder() {
+        VPKEntry a = put("vmt");
+        VPKEntry b = put("vmt");
+        VPKEntry c = put("vmt");
+
+        // a is now used more recently than b
+        assertNotNull(cache.get(a));
+
+        VPKEntry d = put("vmt");
+
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(c));
+        assertNotNull(cache.get(d));
+        assertEquals(3, cache.getCount());
+        assertEquals(3 * BUFFER_SIZE, cache.getSize());
+    }
+
+    @Test
+    public void testOversizedBuffer() {
+        VPKEntry entry = entry("vmt");
+        ByteBuffer data = ByteBuffer.allocate(4 * BUFFER_SIZE);
+
+        assertEquals(data.capacity(), cache.put(entry, data).remaining());
+        assertNull(cache.get(entry));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testPinnedTypes() {
+        cache.pinType("vtf");
+
+        VPKEntry pinned1 = put("vtf");
+        VPKEntry pinned2 = put("vtf");
+        VPKEntry unpinned1 = put("vmt");
+        VPKEntry unpinned2 = put("vmt");
+
+        // only unpinned buffers are evicted, even if they are newer
+        assertNull(cache.get(unpinned1));
+        assertNotNull(cache.get(unpinned2));
+        assertNotNull(cache.get(pinned1));
+        assertNotNull(cache.get(pinned2));
+
+        // pinned buffers may fill the whole cache
+        VPKEntry pinned3 = put("vtf");
+        assertNull(cache.get(unpinned2));
+        assertNotNull(cache.get(pinned3));
+        assertEquals(3 * BUFFER_SIZE, cache.getSize());
+
+        // but not more
+        VPKEntry pinned4 = put("vtf");
+        assertNull(cache.get(pinned4));
+        assertNotNull(cache.get(pinned1));
+        assertEquals(3, cache.getCount());
+    }
+
+    @Test
+    public void testPinAndUnpinCachedBuffers() {
+        VPKEntry vtf = put("vtf");
+        VPKEntry vmt = put("vmt");
+
+        // buffers that are already cached are moved out of the LRU order
+        cache.pinType("vtf");
+        put("vmt");
+        put("vmt");
+
+        assertNotNull(cache.get(vtf));
+        assertNull(cache.get(vmt));
+
+        cache.unpinType("vtf");
+        assertTrue(cache.getPinnedTypes().isEmpty());
+
+        // the unpinned buffer is evicted like any other
+        put("vmt");
+        put("vmt");
+        put("vmt");
+        assertNull(cache.get(vtf));
+    }
+
+    @Test
+    public void testShrink() {
+        cache.setMaxSize(5 * BUFFER_SIZE);
+        cache.pinType("vtf");
+
+        VPKEntry pinned1 = put("vtf");
+        VPKEntry pinned2 = put("vtf");
+        put("vmt");
+        put("vmt");
+        put("vmt");
+
+        // unpinned buffers go first
+        cache.setMaxSize(2 * BUFFER_SIZE + BUFFER_SIZE / 2);
+        assertEquals(2, cache.getCount());
+        assertEquals(2 * BUFFER_SIZE, cache.getSize());
+        assertEquals(3, cache.getEvictions());
+
+        // pinned buffers only if they alone exceed the limit
+        cache.setMaxSize(BUFFER_SIZE + BUFFER_SIZE / 2);
+        assertNull(cache.get(pinned1));
+        assertNotNull(cache.get(pinned2));
+
+        cache.setMaxSize(0);
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+
+        // nothing is cached anymore
+        VPKEntry entry = put("vmt");
+        assertNull(cache.get(entry));
+    }
+
+    @Test
+    public void testCounters() {
+        VPKEntry a = entry("vmt");
+
+        assertNull(cache.get(a));
+        put(a);
+        assertNotNull(cache.get(a));
+        assertNotNull(cache.get(a));
+
+        put("vmt");
+        put("vmt");
+        put("vmt");
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(BUFFER_SIZE, cache.getEvictedBytes());
+
+        // clearing the cache keeps the counters
+        cache.clear();
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+        assertEquals(2, cache.getHits());
+
+        cache.resetStatistics();
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+        assertEquals(0, cache.getEvictedBytes());
+    }
+
+    private VPKEntry entry(String type) {
+        VPKEntry entry = new VPKEntry(null, new File("test.vpk"), true);
+        entry.setPath("materials/entry" + nextOffset + "." + type);
+        entry.setOffset(nextOffset);
+        entry.setSize(BUFFER_SIZE);
+        nextOffset += BUFFER_SIZE;
+        return entry;
+    }
+
+    private VPKEntry put(String type) {
+        return put(entry(type));
+    }
+
+    private VPKEntry put(VPKEntry entry) {
+        cache.put(entry, ByteBuffer.allocate(BUFFER_SIZE));
+        return entry;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static info.ata4.vpk.VPKTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link VPKExtractor}.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKExtractorTest {
+
+    private File dir;
+    private Map<String, byte[]> data;
+    private VPKArchive archive;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = createTempDir();
+        data = createData(100, 8);
+
+        // non-ASCII file names depend on the encoding of the file system
+        data.remove("materials/\u00fcml/\u00c4\u20ac.vmt");
+
+        File file = new File(dir, "test_dir.vpk");
+        VPKWriter writer = new VPKWriter();
+        writer.setMaxChunkSize(16 << 10);
+        addData(writer, data);
+        writer.write(file);
+
+        archive = load(file, VPKIndexMode.DEFAULT);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testExtract() throws IOException {
+        File destDir = new File(dir, "out");
+        new VPKExtractor().extract(archive.getEntries(), destDir);
+
+        for (Map.Entry<String, byte[]> expected : data.entrySet()) {
+            File file = new File(destDir, expected.getKey());
+            assertArrayEquals(expected.getKey(), expected.getValue(),
+                    Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void testUncheckedFailure() throws IOException {
+        VPKEntry broken = new VPKEntry(null, new File(dir, "missing.vpk"), true) {
+            @Override
+            public long transferTo(WritableByteChannel target) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        broken.setPath("broken/entry.txt");
+
+        List<VPKEntry> entries = new ArrayList<>(archive.getEntries());
+        entries.add(broken);
+
+        final AtomicInteger failed = new AtomicInteger();
+
+        VPKExtractor extractor = new VPKExtractor();
+        extractor.setProgressListener(new VPKProgressListener() {
+            @Override
+            public void entryCompleted(VPKEntry entry, int entriesDone, int entriesTotal,
+                    long bytesDone, long bytesTotal) {
+            }
+
+            @Override
+            public void entryFailed(VPKEntry entry, IOException ex) {
+                failed.incrementAndGet();
+            }
+        });
+
+        try {
+            extractor.extract(entries, new File(dir, "out"));
+            fail("Unchecked exception wasn't reported");
+        } catch (IOException ex) {
+            assertEquals(1, ex.getSuppressed().length);
+            assertTrue(ex.getSuppressed()[0].getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(1, failed.get());
+    }
+
+    @Test
+    public void testTransferAfterReload() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            // the second pass runs on channels that were reopened by the pool
+            for (VPKEntry entry : archive.getEntries()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                entry.transferTo(Channels.newChannel(out));
+                assertArrayEquals(entry.getPath(), data.get(entry.getPath()), out.toByteArray());
+            }
+
+            archive.reload();
+        }
+    }
+
+    @Test
+    public void testTransferMissingChunk() throws IOException {
+        File file = new File(dir, "preload_dir.vpk");
+
+        VPKWriter writer = new VPKWriter();
+        writer.setPreloadPolicy(new VPKPreloadPolicy() {
+            @Override
+            public int getPreloadSize(String path, int size) {
+                return 16;
+            }
+        });
+        addData(writer, data);
+        writer.write(file);
+
+        VPKArchive preloaded = load(file, VPKIndexMode.DEFAULT);
+        assertTrue(new File(dir, "preload_000.vpk").delete());
+
+        int missing = 0;
+
+        for (VPKEntry entry : preloaded.getEntries()) {
+            if (entry.getSize() == 0) {
+                continue;
+            }
+
+            // the preload data must not be written if the rest is missing
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            try {
+                entry.transferTo(Channels.newChannel(out));
+                fail("Missing chunk file wasn't reported");
+            } catch (FileNotFoundException ex) {
+                missing++;
+            }
+
+            assertEquals(entry.getPath(), 0, out.size());
+        }
+
+        assertTrue(missing > 0);
+    }
+}
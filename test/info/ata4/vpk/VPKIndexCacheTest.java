@@ -0,0 +1,172 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static info.ata4.vpk.VPKTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the index cache is only used while it matches the directory
+ * file.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKIndexCacheTest {
+
+    private File dir;
+    private Map<String, byte[]> data;
+    private File file;
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = createTempDir();
+        data = createData(100, 2);
+        file = new File(dir, "test_dir.vpk");
+        cacheFile = new File(dir, "test.idx");
+
+        VPKWriter writer = new VPKWriter();
+        writer.setMaxChunkSize(16 << 10);
+        addData(writer, data);
+        writer.write(file);
+
+        // creates the cache
+        loadCached();
+        assertTrue(cacheFile.isFile());
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testValid() throws IOException {
+        assertTrue(readCache());
+
+        VPKArchive archive = loadCached();
+        assertContents(archive, data);
+
+        // normalized lookups use the cached table
+        for (String path : data.keySet()) {
+            String folded = path.replace('/', '\\').replace("materials", "MATERIALS");
+            VPKEntry entry = archive.findEntry(folded);
+            assertNotNull(folded, entry);
+            assertEquals(path, entry.getPath());
+        }
+    }
+
+    @Test
+    public void testModified() throws IOException {
+        assertTrue(file.setLastModified(file.lastModified() + 10000));
+        assertFalse(readCache());
+
+        // the cache is rebuilt on the next load
+        assertContents(loadCached(), data);
+        assertTrue(readCache());
+    }
+
+    @Test
+    public void testResized() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length());
+            raf.write(0);
+        }
+
+        assertFalse(readCache());
+    }
+
+    @Test
+    public void testTreeChanged() throws IOException {
+        long lastModified = file.lastModified();
+
+        // rename an entry without changing the size of the directory file
+        byte[] dirData = Files.readAllBytes(file.toPath());
+        int pos = indexOf(dirData, "root\0".getBytes(StandardCharsets.US_ASCII));
+        assertTrue(pos >= 0);
+        dirData[pos] = 'b';
+        Files.write(file.toPath(), dirData);
+        assertTrue(file.setLastModified(lastModified));
+
+        assertFalse(readCache());
+
+        VPKArchive archive = loadCached();
+        assertNull(archive.getEntry("root.txt"));
+        assertNotNull(archive.getEntry("boot.txt"));
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        assertFalse(readCache());
+
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            raf.setLength(8);
+        }
+
+        assertFalse(readCache());
+        assertContents(loadCached(), data);
+    }
+
+    @Test
+    public void testCorrupt() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0xff);
+        }
+
+        assertFalse(readCache());
+        assertContents(loadCached(), data);
+        assertTrue(readCache());
+    }
+
+    private VPKArchive loadCached() throws IOException {
+        VPKArchive archive = new VPKArchive();
+        archive.setIndexMode(VPKIndexMode.COMPACT);
+        archive.setIndexCacheFile(cacheFile);
+        archive.load(file);
+        return archive;
+    }
+
+    private boolean readCache() throws IOException {
+        ByteBuffer dirBuffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        VPKCompactIndex index = new VPKCompactIndex(null, VPKLayout.EMPTY);
+        return new VPKIndexCache(cacheFile).read(index, file, dirBuffer);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static info.ata4.vpk.VPKTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that all index modes return the same entries.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKIndexModeTest {
+
+    private static final VPKIndexMode[] MODES = {
+        VPKIndexMode.DEFAULT, VPKIndexMode.COMPACT, VPKIndexMode.LAZY
+    };
+
+    private File dir;
+    private Map<String, byte[]> data;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = createTempDir();
+        data = createData(200, 1);
+        file = new File(dir, "test_dir.vpk");
+
+        VPKWriter writer = new VPKWriter();
+        writer.setMaxChunkSize(16 << 10);
+        writer.setPreloadPolicy(new VPKPreloadPolicy() {
+            @Override
+            public int getPreloadSize(String path, int size) {
+                return path.endsWith(".txt") ? 16 : 0;
+            }
+        });
+        addData(writer, data);
+        writer.write(file);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testContents() throws IOException {
+        for (VPKIndexMode mode : MODES) {
+            assertContents(load(file, mode), data);
+        }
+    }
+
+    @Test
+    public void testEntriesAgree() throws IOException {
+        VPKArchive expected = load(file, VPKIndexMode.DEFAULT);
+
+        for (VPKIndexMode mode : MODES) {
+            VPKArchive archive = load(file, mode);
+
+            for (String path : data.keySet()) {
+                VPKEntry e1 = expected.getEntry(path);
+                VPKEntry e2 = archive.getEntry(path);
+
+                assertEquals(path, e1.getPath(), e2.getPath());
+                assertEquals(path, e1.getCRC32(), e2.getCRC32());
+                assertEquals(path, e1.getChunkIndex(), e2.getChunkIndex());
+                assertEquals(path, e1.getOffset(), e2.getOffset());
+                assertEquals(path, e1.getSize(), e2.getSize());
+                assertEquals(path, e1.getPreloadSize(), e2.getPreloadSize());
+                assertEquals(path, e1.getFile(), e2.getFile());
+            }
+
+            assertEquals(mode.name(), getPaths(expected.getEntries()), getPaths(archive.getEntries()));
+
+            for (String dirName : Arrays.asList("", "materials/dir3/", "materials/\u00fcml/")) {
+                assertEquals(mode + " " + dirName, getPaths(expected.getEntriesForDir(dirName)),
+                        getPaths(archive.getEntriesForDir(dirName)));
+            }
+
+            for (String type : Arrays.asList("vmt", "txt", "vtf")) {
+                assertEquals(mode + " " + type, getPaths(expected.getEntriesForType(type)),
+                        getPaths(archive.getEntriesForType(type)));
+            }
+
+            assertNull(archive.getEntriesForDir("missing/"));
+            assertNull(archive.getEntry("materials/dir3/missing.vmt"));
+        }
+    }
+
+    @Test
+    public void testFindEntry() throws IOException {
+        for (VPKIndexMode mode : MODES) {
+            VPKArchive archive = load(file, mode);
+
+            for (String path : data.keySet()) {
+                String variant = toUpperASCII(path).replace('/', '\\');
+
+                assertEquals(mode + " " + path, path, archive.findEntry(variant).getPath());
+                assertEquals(mode + " " + path, path, archive.findEntry(
+                        ByteBuffer.wrap(variant.getBytes(StandardCharsets.UTF_8))).getPath());
+            }
+
+            assertNull(archive.findEntry("materials/dir3/missing.vmt"));
+        }
+    }
+
+    @Test
+    public void testLazyPartialDecode() throws IOException {
+        VPKArchive expected = load(file, VPKIndexMode.DEFAULT);
+        VPKArchive archive = load(file, VPKIndexMode.LAZY);
+
+        // lists returned while other sections are still pending
+        List<VPKEntry> dirEntries = archive.getEntriesForDir("materials/dir3/");
+        List<VPKEntry> typeEntries = archive.getEntriesForType("vmt");
+        List<String> dirPaths = getPaths(dirEntries);
+        List<String> typePaths = getPaths(typeEntries);
+
+        assertEquals(getPaths(expected.getEntriesForDir("materials/dir3/")), dirPaths);
+        assertEquals(getPaths(expected.getEntriesForType("vmt")), typePaths);
+
+        // decode everything else
+        assertEquals(getPaths(expected.getEntries()), getPaths(archive.getEntries()));
+
+        assertEquals(dirPaths, getPaths(dirEntries));
+        assertEquals(typePaths, getPaths(typeEntries));
+        assertEquals(dirPaths, getPaths(archive.getEntriesForDir("materials/dir3/")));
+        assertEquals(typePaths, getPaths(archive.getEntriesForType("vmt")));
+    }
+
+    @Test
+    public void testDirectoryTree() throws IOException {
+        VPKDirectory expected = load(file, VPKIndexMode.DEFAULT).getRootDirectory();
+
+        for (VPKIndexMode mode : MODES) {
+            assertDirectoryEquals(mode.name(), expected, load(file, mode).getRootDirectory());
+        }
+    }
+
+    @Test
+    public void testDuplicatePath() throws IOException {
+        // the writer never creates duplicate paths, so build the tree directly
+        List<VPKEntry> entries = new ArrayList<>();
+        List<Integer> chunkIndices = new ArrayList<>();
+
+        for (String content : Arrays.asList("first", "second")) {
+            VPKEntry entry = new VPKEntry(null, false);
+            entry.setPath("scripts/dup.txt");
+            entry.setPreloadData(content.getBytes(StandardCharsets.UTF_8));
+            entry.updateCRC32();
+            entries.add(entry);
+            chunkIndices.add(VPKArchive.CHUNK_INDEX_DIR);
+        }
+
+        File dupFile = new File(dir, "dup.vpk");
+        VPKWriter.writeDirFile(dupFile, 1, VPKWriter.buildTree(entries, chunkIndices),
+                Collections.<VPKWriter.Item>emptyList(), new ArrayList<VPKArchiveMD5>());
+
+        for (VPKIndexMode mode : MODES) {
+            VPKArchive archive = load(dupFile, mode);
+
+            // later entries replace earlier ones
+            assertEquals(mode.name(), "second", new String(toArray(
+                    archive.getEntry("scripts/dup.txt").getData()), StandardCharsets.UTF_8));
+            assertEquals(mode.name(), "second", new String(toArray(
+                    archive.findEntry("SCRIPTS/DUP.TXT").getData()), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testInvalidCompressedHeader() throws IOException {
+        // the writer always stores a valid header, so build the tree directly
+        VPKEntry entry = new VPKEntry(null, false);
+        entry.setPath("scripts/broken.txt");
+        entry.setPreloadData(new byte[VPKCompression.HEADER_SIZE - 1]);
+
+        File brokenFile = new File(dir, "broken.vpk");
+        VPKWriter.writeDirFile(brokenFile, 1, VPKWriter.buildTree(Collections.singletonList(entry),
+                Collections.singletonList(VPKArchive.CHUNK_FLAG_COMPRESSED)),
+                Collections.<VPKWriter.Item>emptyList(), new ArrayList<VPKArchiveMD5>());
+
+        for (VPKIndexMode mode : MODES) {
+            // the lazy index must reject it on load, not on the first lookup
+            try {
+                load(brokenFile, mode);
+                fail(mode.name());
+            } catch (VPKException ex) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertDirectoryEquals(String message, VPKDirectory expected,
+            VPKDirectory actual) {
+        message += " " + expected.getPath();
+
+        assertEquals(message, expected.getPath(), actual.getPath());
+        assertEquals(message, expected.getEntryCount(), actual.getEntryCount());
+        assertEquals(message, expected.getDataSize(), actual.getDataSize());
+        assertEquals(message, expected.getTotalEntryCount(), actual.getTotalEntryCount());
+        assertEquals(message, expected.getTotalDataSize(), actual.getTotalDataSize());
+        assertEquals(message, expected.getChildren().size(), actual.getChildren().size());
+
+        Iterator<VPKDirectory> children = actual.getChildren().iterator();
+        for (VPKDirectory child : expected.getChildren()) {
+            assertDirectoryEquals(message, child, children.next());
+        }
+    }
+
+    private static String toUpperASCII(String str) {
+        StringBuilder sb = new StringBuilder(str);
+        for (int i = 0; i < sb.length(); i++) {
+            char c = sb.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                sb.setCharAt(i, (char) (c - 'a' + 'A'));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static List<String> getPaths(List<VPKEntry> entries) {
+        List<String> paths = new ArrayList<>();
+        for (VPKEntry entry : entries) {
+            paths.add(entry.getPath());
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+}
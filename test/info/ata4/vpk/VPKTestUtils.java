@@ -0,0 +1,133 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Helpers for creating test archives and checking their contents.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+class VPKTestUtils {
+
+    private static final String[] TYPES = {"vmt", "txt", "vtf"};
+
+    private VPKTestUtils() {
+    }
+
+    /**
+     * Creates reproducible entry data. Text types get compressible data,
+     * other types random bytes.
+     *
+     * @param entries number of entries
+     * @param seed random seed
+     * @return map of entry paths to data
+     */
+    static Map<String, byte[]> createData(int entries, long seed) {
+        Random random = new Random(seed);
+        Map<String, byte[]> data = new LinkedHashMap<>();
+
+        for (int i = 0; i < entries; i++) {
+            String type = TYPES[i % TYPES.length];
+            String path = String.format("materials/dir%d/file%d.%s", i % 7, i, type);
+            byte[] bytes;
+
+            if (type.equals("vtf")) {
+                bytes = new byte[1 + random.nextInt(2000)];
+                random.nextBytes(bytes);
+            } else {
+                StringBuilder sb = new StringBuilder();
+                int lines = 1 + random.nextInt(40);
+                for (int j = 0; j < lines; j++) {
+                    sb.append("\"$basetexture\" \"brick/wall").append(random.nextInt(10)).append("\"\n");
+                }
+                bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+            }
+
+            data.put(path, bytes);
+        }
+
+        // entries in the root directory and with non-ASCII names
+        data.put("root.txt", "root".getBytes(StandardCharsets.UTF_8));
+        data.put("materials/\u00fcml/\u00c4\u20ac.vmt", "umlaut".getBytes(StandardCharsets.UTF_8));
+
+        return data;
+    }
+
+    /**
+     * Adds entry data to a writer.
+     */
+    static void addData(VPKWriter writer, Map<String, byte[]> data) throws VPKException {
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            writer.addData(entry.getKey(), ByteBuffer.wrap(entry.getValue()));
+        }
+    }
+
+    /**
+     * Loads an archive with the given index mode.
+     */
+    static VPKArchive load(File file, VPKIndexMode mode) throws IOException {
+        VPKArchive archive = new VPKArchive();
+        archive.setIndexMode(mode);
+        archive.load(file);
+        return archive;
+    }
+
+    /**
+     * Checks that an archive contains exactly the given entries with valid
+     * checksums.
+     */
+    static void assertContents(VPKArchive archive, Map<String, byte[]> data) throws IOException {
+        assertEquals(data.size(), archive.getEntries().size());
+
+        for (Map.Entry<String, byte[]> expected : data.entrySet()) {
+            VPKEntry entry = archive.getEntry(expected.getKey());
+            assertNotNull(expected.getKey(), entry);
+            assertEquals(expected.getKey(), expected.getValue().length, entry.getDataSize());
+            assertArrayEquals(expected.getKey(), expected.getValue(), toArray(entry.getData()));
+            entry.checkData();
+        }
+    }
+
+    /**
+     * Returns the remaining bytes of a buffer without changing its position.
+     */
+    static byte[] toArray(ByteBuffer bb) {
+        byte[] bytes = new byte[bb.remaining()];
+        bb.duplicate().get(bytes);
+        return bytes;
+    }
+
+    static File createTempDir() throws IOException {
+        return Files.createTempDirectory("vpktest").toFile();
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static info.ata4.vpk.VPKTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip tests for incremental updates with {@link VPKUpdater}.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKUpdaterTest {
+
+    private File dir;
+    private Map<String, byte[]> data;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = createTempDir();
+        data = createData(300, 3);
+        file = new File(dir, "test_dir.vpk");
+
+        VPKWriter writer = new VPKWriter();
+        writer.setVersion(2);
+        writer.setMaxChunkSize(16 << 10);
+        addData(writer, data);
+        writer.write(file);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testCommit() throws IOException {
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        VPKUpdater updater = new VPKUpdater(archive);
+
+        byte[] added = "added".getBytes(StandardCharsets.UTF_8);
+        byte[] replaced = "replaced".getBytes(StandardCharsets.UTF_8);
+        String replacedPath = "materials/dir1/file1.txt";
+        String removedPath = "materials/dir2/file2.vtf";
+
+        updater.addData("scripts/added.txt", ByteBuffer.wrap(added));
+        updater.addData(replacedPath, ByteBuffer.wrap(replaced));
+        updater.remove(removedPath);
+        updater.commit();
+
+        data.put("scripts/added.txt", added);
+        data.put(replacedPath, replaced);
+        data.remove(removedPath);
+
+        assertContents(archive, data);
+        assertTrue(updater.getDeadBytes() > 0);
+        assertTrue(new VPKValidator().validateChunks(archive).isValid());
+
+        archive = load(file, VPKIndexMode.DEFAULT);
+        assertContents(archive, data);
+        assertTrue(new VPKValidator().validateChunks(archive).isValid());
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        VPKUpdater updater = new VPKUpdater(archive);
+
+        // remove all entries of the first chunk file so it is deleted, and
+        // every third entry of the others so they are rewritten
+        List<String> removed = new ArrayList<>();
+        int i = 0;
+
+        for (VPKEntry entry : archive.getEntries()) {
+            if (entry.getChunkIndex() == 0 || i++ % 3 == 0) {
+                removed.add(entry.getPath());
+            }
+        }
+
+        File firstChunk = archive.getChunkFile(0);
+
+        for (String path : removed) {
+            updater.remove(path);
+            data.remove(path);
+        }
+
+        updater.commit();
+        assertTrue(updater.getDeadBytes() > 0);
+
+        updater.compact();
+        assertEquals(0, updater.getDeadBytes());
+        assertFalse(firstChunk.exists());
+
+        assertContents(archive, data);
+        assertTrue(new VPKValidator().validateChunks(archive).isValid());
+
+        // the footer must not reference the deleted chunk file
+        archive = load(file, VPKIndexMode.DEFAULT);
+
+        for (VPKArchiveMD5 md5 : archive.getFooter().getArchiveMD5s()) {
+            assertTrue(md5.toString(), archive.getChunkFile(md5.getChunkIndex()).isFile());
+        }
+
+        assertContents(archive, data);
+        assertTrue(new VPKValidator().validateChunks(archive).isValid());
+    }
+
+    @Test
+    public void testCommitHashesAppendedRanges() throws IOException {
+        // one chunk with several archive MD5 ranges
+        File bigFile = new File(dir, "big_dir.vpk");
+        Random random = new Random(7);
+        VPKWriter writer = new VPKWriter();
+        writer.setVersion(2);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] bytes = new byte[700 << 10];
+            random.nextBytes(bytes);
+            writer.addData("models/big" + i + ".mdl", ByteBuffer.wrap(bytes));
+        }
+
+        writer.write(bigFile);
+
+        VPKArchive archive = load(bigFile, VPKIndexMode.DEFAULT);
+        File chunkFile = archive.getChunkFile(0);
+        long chunkSize = chunkFile.length();
+
+        // change a byte of the first range behind the back of the updater,
+        // it must keep the checksum of that range instead of hashing it again
+        try (RandomAccessFile raf = new RandomAccessFile(chunkFile, "rw")) {
+            raf.seek(10);
+            int b = raf.read();
+            raf.seek(10);
+            raf.write(b ^ 0xff);
+        }
+
+        VPKUpdater updater = new VPKUpdater(archive);
+        updater.addData("scripts/added.txt", ByteBuffer.wrap(new byte[100 << 10]));
+        updater.commit();
+
+        assertTrue(chunkFile.length() > chunkSize);
+
+        long covered = 0;
+        for (VPKArchiveMD5 md5 : archive.getFooter().getArchiveMD5s()) {
+            if (md5.getChunkIndex() == 0) {
+                covered += md5.getSize();
+            }
+        }
+
+        assertEquals(chunkFile.length(), covered);
+
+        Map<VPKArchiveMD5, IOException> failures = new VPKValidator()
+                .validateChunks(archive).getChunkFailures();
+
+        assertEquals(1, failures.size());
+        assertEquals(0, failures.keySet().iterator().next().getOffset());
+    }
+
+    @Test
+    public void testReadDuringCommit() throws Exception {
+        final VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        final List<String> paths = new ArrayList<>(data.keySet());
+        final Map<String, byte[]> oldData = new HashMap<>(data);
+        final Map<String, byte[]> newData = new ConcurrentHashMap<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(0);
+
+                try {
+                    while (!done.get()) {
+                        List<String> batch = new ArrayList<>();
+                        for (int i = 0; i < 4; i++) {
+                            batch.add(paths.get(random.nextInt(paths.size())));
+                        }
+
+                        List<ByteBuffer> async = archive.readAllAsync(batch).get();
+
+                        for (int i = 0; i < batch.size(); i++) {
+                            String path = batch.get(i);
+                            VPKEntry entry = archive.getEntry(path);
+                            assertNotNull(path, entry);
+                            assertCurrent(path, toArray(entry.getData()));
+                            assertCurrent(path, toArray(async.get(i)));
+                        }
+                    }
+                } catch (Throwable ex) {
+                    failures.add(ex);
+                }
+            }
+
+            private void assertCurrent(String path, byte[] actual) {
+                byte[] replaced = newData.get(path);
+                assertTrue(path, Arrays.equals(oldData.get(path), actual)
+                        || (replaced != null && Arrays.equals(replaced, actual)));
+            }
+        };
+
+        reader.start();
+
+        try {
+            VPKUpdater updater = new VPKUpdater(archive);
+
+            for (int i = 0; i < 20 && failures.isEmpty(); i++) {
+                String path = paths.get(i * 7);
+                byte[] replaced = ("commit " + i).getBytes(StandardCharsets.UTF_8);
+
+                // the reader must accept the new data before it is committed
+                newData.put(path, replaced);
+                updater.addData(path, ByteBuffer.wrap(replaced));
+                updater.addData("scripts/added" + i + ".txt", ByteBuffer.wrap(replaced));
+                updater.commit();
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek().toString(), failures.peek());
+        }
+    }
+
+    @Test(expected = VPKException.class)
+    public void testSingleFile() throws IOException {
+        File singleFile = new File(dir, "single.vpk");
+        VPKWriter writer = new VPKWriter();
+        addData(writer, data);
+        writer.write(singleFile);
+
+        new VPKUpdater(load(singleFile, VPKIndexMode.DEFAULT)).commit();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static info.ata4.vpk.VPKTestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip tests for archives written by {@link VPKWriter}.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKWriterTest {
+
+    private File dir;
+    private Map<String, byte[]> data;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = createTempDir();
+        data = createData(300, 2);
+        data.put("empty.txt", new byte[0]);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void testSingleFileV1() throws IOException {
+        roundTrip(new File(dir, "test.vpk"), 1, false);
+    }
+
+    @Test
+    public void testSingleFileV2() throws IOException {
+        roundTrip(new File(dir, "test.vpk"), 2, false);
+    }
+
+    @Test
+    public void testMultiChunkV1() throws IOException {
+        roundTrip(new File(dir, "test_dir.vpk"), 1, true);
+    }
+
+    @Test
+    public void testMultiChunkV2() throws IOException {
+        roundTrip(new File(dir, "test_dir.vpk"), 2, true);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        File file = new File(dir, "empty.vpk");
+        new VPKWriter().write(file);
+
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        assertTrue(archive.getEntries().isEmpty());
+    }
+
+    @Test
+    public void testPreloadClamped() throws IOException {
+        File file = new File(dir, "test.vpk");
+
+        // preload sizes beyond the entry size are limited to the entry
+        VPKWriter writer = new VPKWriter();
+        writer.setPreloadPolicy(new VPKPreloadPolicy() {
+            @Override
+            public int getPreloadSize(String path, int size) {
+                return VPKWriter.MAX_PRELOAD_SIZE + 1;
+            }
+        });
+        addData(writer, data);
+        writer.write(file);
+
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        assertContents(archive, data);
+
+        for (VPKEntry entry : archive.getEntries()) {
+            assertEquals(entry.getPath(), 0, entry.getSize());
+        }
+    }
+
+    @Test
+    public void testDeduplicate() throws IOException {
+        Map<String, byte[]> copies = new LinkedHashMap<>();
+        long copiedBytes = 0;
+
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            if (entry.getValue().length > 0 && copies.size() < 50) {
+                copies.put("copies/" + entry.getKey(), entry.getValue().clone());
+                copiedBytes += entry.getValue().length;
+            }
+        }
+
+        data.putAll(copies);
+
+        File dedupFile = new File(dir, "dedup_dir.vpk");
+        File plainFile = new File(dir, "plain_dir.vpk");
+
+        for (File file : Arrays.asList(dedupFile, plainFile)) {
+            VPKWriter writer = new VPKWriter();
+            writer.setVersion(2);
+            writer.setDeduplicate(file == dedupFile);
+            addData(writer, data);
+            writer.write(file);
+        }
+
+        VPKArchive dedup = load(dedupFile, VPKIndexMode.DEFAULT);
+        VPKArchive plain = load(plainFile, VPKIndexMode.DEFAULT);
+
+        assertContents(dedup, data);
+        assertContents(plain, data);
+        assertTrue(new VPKValidator().validateChunks(dedup).isValid());
+
+        // copies share the data range of the original entry
+        for (String path : copies.keySet()) {
+            VPKEntry copy = dedup.getEntry(path);
+            VPKEntry original = dedup.getEntry(path.substring("copies/".length()));
+
+            assertEquals(path, original.getChunkIndex(), copy.getChunkIndex());
+            assertEquals(path, original.getOffset(), copy.getOffset());
+        }
+
+        // the copies add no data, identical original entries may save even
+        // more
+        long dedupSize = getDataSize(dedup);
+        long plainSize = getDataSize(plain);
+
+        assertTrue(dedupSize + copiedBytes <= plainSize);
+    }
+
+    @Test
+    public void testRewriteRemovesStaleChunks() throws IOException {
+        File file = new File(dir, "test_dir.vpk");
+        File other = new File(dir, "other_001.vpk");
+        assertTrue(other.createNewFile());
+
+        VPKWriter writer = new VPKWriter();
+        writer.setMaxChunkSize(16 << 10);
+        addData(writer, data);
+        writer.write(file);
+
+        int oldChunks = getChunkFiles().length;
+        assertTrue(oldChunks > 2);
+
+        // rewrite the archive with much less data
+        Map<String, byte[]> small = createData(5, 3);
+        writer = new VPKWriter();
+        writer.setMaxChunkSize(16 << 10);
+        addData(writer, small);
+        writer.write(file);
+
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+        assertContents(archive, small);
+
+        int maxChunkIndex = -1;
+        for (VPKEntry entry : archive.getEntries()) {
+            if (entry.getChunkIndex() != VPKArchive.CHUNK_INDEX_DIR) {
+                maxChunkIndex = Math.max(maxChunkIndex, entry.getChunkIndex());
+            }
+        }
+
+        assertTrue(maxChunkIndex + 1 < oldChunks);
+        assertEquals(maxChunkIndex + 1, getChunkFiles().length);
+
+        // chunk files of other archives are left alone
+        assertTrue(other.isFile());
+    }
+
+    @Test
+    public void testDirFileTooLarge() throws IOException {
+        // the reader can't map directory files beyond 2 GiB, so this is
+        // rejected before anything is written
+        VPKEntry entry = new VPKEntry(null, false);
+        entry.setPath("large.bin");
+        entry.setSize(Integer.MAX_VALUE - 64);
+
+        File file = new File(dir, "large.vpk");
+
+        try {
+            VPKWriter.writeDirFile(file, 2, VPKWriter.buildTree(Collections.singletonList(entry),
+                    Collections.singletonList(VPKArchive.CHUNK_INDEX_DIR)),
+                    Collections.singletonList(new VPKWriter.Item(entry, null)),
+                    new ArrayList<VPKArchiveMD5>());
+            fail("Oversized directory file wasn't rejected");
+        } catch (VPKException ex) {
+            // expected
+        }
+
+        assertFalse(file.exists());
+    }
+
+    private File[] getChunkFiles() {
+        return dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File parent, String name) {
+                return name.matches("test_\\d{3}\\.vpk");
+            }
+        });
+    }
+
+    private static long getDataSize(VPKArchive archive) {
+        long size = 0;
+        for (int i = 0; archive.getChunkFile(i).isFile(); i++) {
+            size += archive.getChunkFile(i).length();
+        }
+        return size;
+    }
+
+    private void roundTrip(File file, int version, boolean multiChunk) throws IOException {
+        VPKWriter writer = new VPKWriter();
+        writer.setVersion(version);
+        writer.setMaxChunkSize(32 << 10);
+        writer.setPreloadPolicy(new VPKPreloadPolicy() {
+            @Override
+            public int getPreloadSize(String path, int size) {
+                // full preload for small text files, partial for the others
+                if (path.endsWith(".txt")) {
+                    return size <= 64 ? size : 32;
+                }
+                return 0;
+            }
+        });
+        addData(writer, data);
+        writer.write(file);
+
+        VPKArchive archive = load(file, VPKIndexMode.DEFAULT);
+
+        assertEquals(version, archive.getVersion());
+        assertEquals(multiChunk, archive.isMultiChunk());
+        assertContents(archive, data);
+        assertTrue(archive.validate().isValid());
+
+        int maxChunkIndex = -1;
+        for (VPKEntry entry : archive.getEntries()) {
+            if (entry.getChunkIndex() != VPKArchive.CHUNK_INDEX_DIR) {
+                maxChunkIndex = Math.max(maxChunkIndex, entry.getChunkIndex());
+            }
+        }
+
+        if (multiChunk) {
+            assertTrue(maxChunkIndex > 0);
+
+            for (int i = 0; i <= maxChunkIndex; i++) {
+                File chunkFile = archive.getChunkFile(i);
+                assertTrue(chunkFile.getName(), chunkFile.isFile());
+                assertTrue(chunkFile.getName(), chunkFile.length() <= writer.getMaxChunkSize());
+            }
+        } else {
+            assertEquals(-1, maxChunkIndex);
+        }
+
+        if (version == 2) {
+            if (multiChunk) {
+                assertFalse(archive.getFooter().getArchiveMD5s().isEmpty());
+            }
+            assertTrue(new VPKValidator().validateChunks(archive).isValid());
+        }
+    }
+}
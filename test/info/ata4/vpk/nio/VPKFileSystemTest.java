@@ -0,0 +1,302 @@
+/*
+ ** 2013 April 20
+ **
+ ** The author disclaims copyright to this source code.  In place of
+ ** a legal notice, here is a blessing:
+ **    May you do good and not evil.
+ **    May you find forgiveness for yourself and forgive others.
+ **    May you share freely, never taking more than you give.
+ */
+package info.ata4.vpk.nio;
+
+import info.ata4.vpk.VPKWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the VPK file system provider.
+ *
+ * @author Nico Bergemann <barracuda415 at yahoo.de>
+ */
+public class VPKFileSystemTest {
+
+    private File dir;
+    private File file;
+    private Map<String, byte[]> data;
+    private FileSystem fs;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("vpktest").toFile();
+        file = new File(dir, "test_dir.vpk");
+
+        data = new LinkedHashMap<>();
+        data.put("root.txt", bytes("root"));
+        data.put("materials/brick/wall.vmt", bytes("\"LightmappedGeneric\" {}"));
+        data.put("materials/brick/wall2.vmt", bytes("\"UnlitGeneric\" {}"));
+        data.put("materials/wood/floor.vtf", new byte[] {1, 2, 3, 4, 5});
+        data.put("scripts/game.txt", bytes("game"));
+
+        VPKWriter writer = new VPKWriter();
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            writer.addData(entry.getKey(), ByteBuffer.wrap(entry.getValue()));
+        }
+        writer.write(file);
+
+        fs = FileSystems.newFileSystem(URI.create("vpk:" + file.toURI()),
+                Collections.<String, Object>emptyMap());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.close();
+        delete(dir);
+    }
+
+    @Test
+    public void testProviderInstalled() {
+        FileSystemProvider installed = null;
+
+        for (FileSystemProvider provider : FileSystemProvider.installedProviders()) {
+            if (provider.getScheme().equals(VPKFileSystemProvider.SCHEME)) {
+                installed = provider;
+            }
+        }
+
+        // the file system above was created through the service registration
+        assertTrue(installed instanceof VPKFileSystemProvider);
+        assertSame(installed, fs.provider());
+    }
+
+    @Test
+    public void testUri() throws IOException {
+        Path path = fs.getPath("/materials/brick/wall.vmt");
+        URI uri = path.toUri();
+
+        assertEquals(VPKFileSystemProvider.SCHEME, uri.getScheme());
+        assertSame(fs, fs.provider().getFileSystem(uri));
+        assertEquals(path, Paths.get(uri));
+        assertArrayEquals(data.get("materials/brick/wall.vmt"), Files.readAllBytes(Paths.get(uri)));
+
+        // relative and unnormalized paths have the same URI
+        assertEquals(uri, fs.getPath("materials/wood/../brick/wall.vmt").toUri());
+
+        fs.close();
+
+        try {
+            Paths.get(uri);
+            fail("Closed file system is still registered");
+        } catch (FileSystemNotFoundException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadAllBytes() throws IOException {
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            Path path = fs.getPath(entry.getKey());
+            assertArrayEquals(entry.getKey(), entry.getValue(), Files.readAllBytes(path));
+            assertEquals(entry.getKey(), entry.getValue().length, Files.size(path));
+        }
+
+        try {
+            Files.readAllBytes(fs.getPath("/materials/brick/missing.vmt"));
+            fail("Missing file was read");
+        } catch (NoSuchFileException ex) {
+            // expected
+        }
+
+        try {
+            Files.readAllBytes(fs.getPath("/materials/brick"));
+            fail("Directory was read");
+        } catch (FileSystemException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDirectoryStream() throws IOException {
+        assertEquals(Arrays.asList("brick", "wood"), list(fs.getPath("/materials"), "*"));
+        assertEquals(Arrays.asList("materials", "root.txt", "scripts"), list(fs.getPath("/"), "*"));
+        assertEquals(Arrays.asList("wall.vmt", "wall2.vmt"),
+                list(fs.getPath("/materials/brick"), "*.vmt"));
+        assertEquals(Collections.<String>emptyList(), list(fs.getPath("/materials/brick"), "*.vtf"));
+
+        try {
+            list(fs.getPath("/root.txt"), "*");
+            fail("File was listed");
+        } catch (NotDirectoryException ex) {
+            // expected
+        }
+
+        try {
+            list(fs.getPath("/missing"), "*");
+            fail("Missing directory was listed");
+        } catch (NoSuchFileException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReadAttributes() throws IOException {
+        Path filePath = fs.getPath("/materials/wood/floor.vtf");
+        BasicFileAttributes attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+
+        assertTrue(attrs.isRegularFile());
+        assertFalse(attrs.isDirectory());
+        assertEquals(5, attrs.size());
+        assertEquals(Files.getLastModifiedTime(file.toPath()), attrs.lastModifiedTime());
+
+        attrs = Files.readAttributes(fs.getPath("/materials"), BasicFileAttributes.class);
+        assertTrue(attrs.isDirectory());
+        assertFalse(attrs.isRegularFile());
+
+        Map<String, Object> map = Files.readAttributes(filePath, "basic:size,isDirectory");
+        assertEquals(2, map.size());
+        assertEquals(5L, map.get("size"));
+        assertEquals(false, map.get("isDirectory"));
+
+        assertTrue(Files.exists(filePath));
+        assertTrue(Files.isDirectory(fs.getPath("/materials/wood")));
+        assertFalse(Files.exists(fs.getPath("/materials/stone")));
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("/materials/brick/wall.vmt",
+                fs.getPath("/materials//brick/./../brick/wall.vmt").normalize().toString());
+        assertEquals("/root.txt", fs.getPath("/../root.txt").normalize().toString());
+        assertEquals("../scripts", fs.getPath("materials/../../scripts").normalize().toString());
+        assertEquals("materials/brick", fs.getPath("materials/brick/").toString());
+        assertEquals("materials/brick/wall.vmt", fs.getPath("materials", "brick", "wall.vmt").toString());
+
+        Path path = fs.getPath("/materials/brick/wall.vmt");
+        assertEquals(3, path.getNameCount());
+        assertEquals("wall.vmt", path.getFileName().toString());
+        assertEquals("/materials/brick", path.getParent().toString());
+        assertEquals("/", path.getRoot().toString());
+        assertEquals("brick/wall.vmt", path.subpath(1, 3).toString());
+        assertTrue(path.startsWith("/materials"));
+        assertTrue(path.endsWith("brick/wall.vmt"));
+
+        // entries are found through unnormalized paths
+        assertTrue(Files.exists(fs.getPath("/materials/wood/../brick/wall.vmt")));
+    }
+
+    @Test
+    public void testPathMatcher() {
+        PathMatcher vmt = fs.getPathMatcher("glob:/materials/**.vmt");
+        assertTrue(vmt.matches(fs.getPath("/materials/brick/wall.vmt")));
+        assertFalse(vmt.matches(fs.getPath("/materials/wood/floor.vtf")));
+
+        PathMatcher brick = fs.getPathMatcher("glob:/materials/*/wall?.vmt");
+        assertTrue(brick.matches(fs.getPath("/materials/brick/wall2.vmt")));
+        assertFalse(brick.matches(fs.getPath("/materials/brick/wall.vmt")));
+
+        PathMatcher regex = fs.getPathMatcher("regex:.*\\.txt");
+        assertTrue(regex.matches(fs.getPath("/scripts/game.txt")));
+        assertFalse(regex.matches(fs.getPath("/scripts")));
+    }
+
+    @Test
+    public void testWalk() throws IOException {
+        final List<String> files = new ArrayList<>();
+        final List<String> dirs = new ArrayList<>();
+
+        Files.walkFileTree(fs.getPath("/"), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                dirs.add(dir.toString());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                assertTrue(attrs.isRegularFile());
+                files.add(file.toString().substring(1));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        assertEquals(new TreeSet<>(data.keySet()), new TreeSet<>(files));
+        assertEquals(new TreeSet<>(Arrays.asList("/", "/materials", "/materials/brick",
+                "/materials/wood", "/scripts")), new TreeSet<>(dirs));
+    }
+
+    @Test
+    public void testRelativize() {
+        Path brick = fs.getPath("/materials/brick");
+        Path floor = fs.getPath("/materials/wood/floor.vtf");
+        Path relative = brick.relativize(floor);
+
+        assertEquals("../wood/floor.vtf", relative.toString());
+        assertEquals(floor, brick.resolve(relative).normalize());
+        assertEquals("materials/brick", fs.getPath("/").relativize(brick).toString());
+        assertEquals("", brick.relativize(brick).toString());
+
+        try {
+            brick.relativize(fs.getPath("scripts"));
+            fail("Relative path was relativized against an absolute one");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    private static List<String> list(Path dir, String glob) throws IOException {
+        List<String> names = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+        }
+
+        return names;
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}